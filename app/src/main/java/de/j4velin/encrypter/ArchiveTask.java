@@ -0,0 +1,337 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
+import de.j4velin.encrypter.core.VaultArchive;
+
+/**
+ * Background task to export all encrypted files into a {@link VaultArchive} or to import them
+ * from one. The files stay encrypted, so no authentication is necessary.
+ */
+abstract class ArchiveTask extends AsyncTask<Void, Long, String> {
+
+    private final static int BUFFER_SIZE = 256 * 1024;
+
+    interface Callback {
+        /**
+         * Called once the task has finished
+         *
+         * @param task  the task
+         * @param error the error message or null, if the task completed successfully
+         */
+        void archiveComplete(final ArchiveTask task, final String error);
+    }
+
+    final Context context;
+    final Uri archive;
+    final List<File> files;
+    final Progress progress;
+    private final Callback callback;
+    private ProgressDialog dialog;
+
+    private ArchiveTask(final Context context, final Callback callback, final Uri archive,
+                        final List<File> files, long total) {
+        this.context = context;
+        this.callback = callback;
+        this.archive = archive;
+        this.files = files;
+        progress = new Progress(total);
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                publishProgress(p.getBytes());
+            }
+        });
+        Jobs.attach(context, progress, Scheduler.Priority.BACKGROUND);
+    }
+
+    /**
+     * Starts the task on the {@link Jobs} scheduler
+     */
+    void start() {
+        Jobs.execute(context, this, Scheduler.Priority.BACKGROUND);
+    }
+
+    /**
+     * @return the files written to or read from the archive
+     */
+    List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return true, if this task imports an archive
+     */
+    abstract boolean isImport();
+
+    /**
+     * Does the actual work
+     */
+    abstract void run() throws IOException;
+
+    /**
+     * Removes any partial output after the task has failed or been cancelled
+     */
+    abstract void cleanup();
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        dialog = ProgressDialogs.create(context, progress);
+        dialog.show();
+    }
+
+    @Override
+    protected void onProgressUpdate(final Long... values) {
+        ProgressDialogs.update(dialog, progress);
+    }
+
+    @Override
+    protected String doInBackground(final Void... voids) {
+        try {
+            run();
+            progress.finish();
+            return null;
+        } catch (Progress.CancelledException e) {
+            cleanup();
+            return context.getString(R.string.cancelled);
+        } catch (IOException e) {
+            e.printStackTrace();
+            cleanup();
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+    }
+
+    @Override
+    protected void onPostExecute(final String error) {
+        super.onPostExecute(error);
+        dialog.dismiss();
+        if (callback != null) {
+            callback.archiveComplete(this, error);
+        }
+    }
+
+    /**
+     * Writes the given encrypted files into a new archive
+     */
+    static class Pack extends ArchiveTask {
+
+        /**
+         * @param context  the context
+         * @param callback the callback to notify once the task is complete
+         * @param files    the encrypted files
+         * @param archive  the uri of the archive to write
+         */
+        Pack(final Context context, final Callback callback, final List<File> files,
+             final Uri archive) {
+            super(context, callback, archive, files, totalSize(context, files));
+        }
+
+        @Override
+        boolean isImport() {
+            return false;
+        }
+
+        @Override
+        void run() throws IOException {
+            try (ParcelFileDescriptor fd = context.getContentResolver()
+                    .openFileDescriptor(archive, "w");
+                 FileOutputStream out = new FileOutputStream(fd.getFileDescriptor())) {
+                VaultArchive.Writer writer = new VaultArchive.Writer(out.getChannel());
+                for (File file : files) {
+                    if (file.isInline()) {
+                        byte[] blob = EncryptedStorage.getBlob(context, file);
+                        writer.add(new VaultArchive.Entry(file.getName(), file.getMime(), file.size,
+                                blob.length), blob, progress);
+                        continue;
+                    }
+                    java.io.File blob = new java.io.File(file.uri.getPath());
+                    try (FileInputStream in = new FileInputStream(blob)) {
+                        writer.add(new VaultArchive.Entry(file.getName(), file.getMime(), file.size,
+                                blob.length()), in.getChannel(), progress);
+                    }
+                }
+                writer.finish();
+            }
+        }
+
+        @Override
+        void cleanup() {
+            try {
+                DocumentsContract.deleteDocument(context.getContentResolver(), archive);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static long totalSize(final Context context, final List<File> files) {
+            long total = 0;
+            for (File file : files) {
+                total += EncryptedStorage.length(context, file);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Reads all files from an archive into the app's storage and adds them to the database
+     */
+    static class Unpack extends ArchiveTask {
+
+        /**
+         * Amount of inline data kept in memory until it is added to the import
+         */
+        private final static int INLINE_BATCH_SIZE = 4 * 1024 * 1024;
+
+        private final List<java.io.File> written = new ArrayList<>();
+        /**
+         * Number of files at the start of the list which have been added to the import
+         */
+        private int stored;
+
+        /**
+         * @param context  the context
+         * @param callback the callback to notify once the task is complete
+         * @param archive  the uri of the archive to read
+         */
+        Unpack(final Context context, final Callback callback, final Uri archive) {
+            super(context, callback, archive, new ArrayList<File>(), archiveSize(context, archive));
+        }
+
+        @Override
+        boolean isImport() {
+            return true;
+        }
+
+        @Override
+        void run() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long pending = 0;
+            Database db = new Database(context);
+            // all files are added in a single transaction, which is rolled back if the import
+            // does not complete
+            try (InputStream in = new BufferedInputStream(
+                    context.getContentResolver().openInputStream(archive), BUFFER_SIZE);
+                 Database.Import batch = begin(db)) {
+                VaultArchive.Reader reader = new VaultArchive.Reader(in);
+                VaultArchive.Entry entry;
+                while ((entry = reader.next()) != null) {
+                    // the sizes come from the archive, so the blob is checked as well before it
+                    // is read into memory
+                    if (EncryptedStorage.shouldInline(context, entry.size) &&
+                            entry.blobLength <= EncryptedStorage.getInlineLimit(context)) {
+                        File file = new File(-1, entry.name, entry.mime,
+                                EncryptedStorage.newInlineUri(), entry.size, true);
+                        file.data = new byte[(int) entry.blobLength];
+                        new DataInputStream(reader.blob()).readFully(file.data);
+                        progress.advance(file.data.length);
+                        files.add(file);
+                        pending += file.data.length;
+                        if (pending >= INLINE_BATCH_SIZE) {
+                            store(batch, false);
+                            pending = 0;
+                        }
+                        continue;
+                    }
+                    java.io.File target = CryptoUtil.newEncryptedFile(context);
+                    written.add(target);
+                    try (OutputStream out = Durability.newOutputStream(target, entry.blobLength)) {
+                        InputStream blob = reader.blob();
+                        int read;
+                        while ((read = blob.read(buffer)) > 0) {
+                            out.write(buffer, 0, read);
+                            progress.advance(read);
+                        }
+                    }
+                    files.add(new File(-1, entry.name, entry.mime, Uri.fromFile(target),
+                            entry.size, true));
+                }
+                // the entries only become visible with the commit, so one sync is enough
+                Durability.sync(context, written);
+                store(batch, true);
+            } finally {
+                db.close();
+            }
+        }
+
+        private static Database.Import begin(final Database db) throws IOException {
+            try {
+                return db.beginImport();
+            } catch (RuntimeException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Adds all files read since the last call to the import, which releases the data of the
+         * inline files
+         *
+         * @param batch  the import
+         * @param commit true, to commit the import afterwards
+         */
+        private void store(final Database.Import batch, boolean commit) throws IOException {
+            try {
+                batch.add(files.subList(stored, files.size()));
+                stored = files.size();
+                if (commit) {
+                    batch.commit();
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        void cleanup() {
+            // the entries have been rolled back already, only the files are left
+            for (java.io.File f : written) {
+                if (f.exists() && !f.delete()) {
+                    f.deleteOnExit();
+                }
+            }
+            files.clear();
+            stored = 0;
+        }
+
+        private static long archiveSize(final Context context, final Uri archive) {
+            try (ParcelFileDescriptor fd = context.getContentResolver()
+                    .openFileDescriptor(archive, "r")) {
+                return fd.getStatSize();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.AsyncTask;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.j4velin.encrypter.core.Calibrator;
+import de.j4velin.encrypter.core.Progress;
+
+/**
+ * Background task to calibrate the buffer sizes and thread counts for this device and to store
+ * the result as the new {@link Tuning}.
+ * <p>
+ * The key store only allows our key to be used with {@link CipherUtil#TRANSFORMATION}, so that is
+ * the cipher the buffer size is chosen for. A few software ciphers are measured as well, but
+ * only to show the overhead of the key store in the diagnostics.
+ */
+class CalibrationTask extends AsyncTask<Void, Long, Calibrator.Result> {
+
+    private final static String[] SOFTWARE_TRANSFORMATIONS =
+            {"AES/CBC/PKCS5Padding", "AES/CTR/NoPadding"};
+
+    interface Callback {
+        /**
+         * Called once the calibration has finished
+         *
+         * @param result the result or null, if the calibration failed or has been cancelled
+         */
+        void calibrationComplete(final Calibrator.Result result);
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final Calibrator calibrator;
+    private final Progress progress;
+    private ProgressDialog dialog;
+
+    /**
+     * @param context    the context
+     * @param callback   the callback to notify once the calibration is complete or null
+     * @param showDialog true to show the progress, false to calibrate silently in the background
+     */
+    CalibrationTask(final Context context, final Callback callback, boolean showDialog) {
+        this.context = context.getApplicationContext();
+        this.callback = callback;
+        List<Calibrator.CipherFactory> ciphers = new ArrayList<>();
+        ciphers.add(new Calibrator.CipherFactory() {
+            @Override
+            public String getName() {
+                return CipherUtil.TRANSFORMATION + " (AndroidKeyStore)";
+            }
+
+            @Override
+            public Cipher newCipher() throws GeneralSecurityException {
+                try {
+                    return CipherUtil.getCalibrationCipher();
+                } catch (IOException e) {
+                    throw new GeneralSecurityException(e);
+                }
+            }
+        });
+        byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        final SecretKeySpec softwareKey = new SecretKeySpec(key, "AES");
+        for (final String transformation : SOFTWARE_TRANSFORMATIONS) {
+            ciphers.add(new Calibrator.CipherFactory() {
+                @Override
+                public String getName() {
+                    return transformation;
+                }
+
+                @Override
+                public Cipher newCipher() throws GeneralSecurityException {
+                    Cipher c = Cipher.getInstance(transformation);
+                    c.init(Cipher.ENCRYPT_MODE, softwareKey);
+                    return c;
+                }
+            });
+        }
+        calibrator = new Calibrator(ciphers, context.getCacheDir(),
+                Calibrator.DEFAULT_SAMPLE_SIZE);
+        progress = new Progress(calibrator.getTotal());
+        if (showDialog) {
+            progress.addListener(new Progress.Listener() {
+                @Override
+                public void onProgress(final Progress p) {
+                    publishProgress(p.getBytes());
+                }
+            });
+            dialog = ProgressDialogs.create(context, progress);
+            dialog.setTitle(R.string.calibrating);
+        }
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        if (dialog != null) {
+            dialog.show();
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(final Long... values) {
+        if (dialog != null) {
+            ProgressDialogs.update(dialog, progress);
+        }
+    }
+
+    @Override
+    protected Calibrator.Result doInBackground(final Void... voids) {
+        long start = Tracing.begin("Calibration");
+        try {
+            Calibrator.Result result = calibrator.run(progress);
+            progress.finish();
+            Tuning.save(context, result);
+            return result;
+        } catch (Progress.CancelledException e) {
+            return null;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                CipherUtil.deleteCalibrationKey();
+            } catch (IOException | GeneralSecurityException e) {
+                e.printStackTrace();
+            }
+            Tracing.end("Calibration", start);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(final Calibrator.Result result) {
+        super.onPostExecute(result);
+        if (dialog != null) {
+            dialog.dismiss();
+        }
+        if (callback != null) {
+            callback.calibrationComplete(result);
+        }
+    }
+}
@@ -15,12 +15,16 @@
  */
 package de.j4velin.encrypter;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.hardware.fingerprint.FingerprintManager;
+import android.os.AsyncTask;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.widget.TextView;
@@ -31,12 +35,18 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
+import de.j4velin.encrypter.core.Fingerprints;
+
 /**
  * Utility class to deal with the cryptographic ciphers.
  *
@@ -52,37 +62,106 @@ class CipherUtil {
      */
     private static final String KEY_NAME = "my_key";
 
+    /**
+     * Alias for the key used by the {@link CalibrationTask}. It only ever encrypts synthetic data,
+     * so unlike our key, it can be used without authentication.
+     */
+    private static final String CALIBRATION_KEY_NAME = "calibration";
+
+    /**
+     * Aliases for the keys used by {@link Metadata}. They protect the file names and mime types,
+     * which are needed to show the list, so they can be used without authentication.
+     */
+    private static final String METADATA_KEY_NAME = "metadata";
+    private static final String BLIND_INDEX_KEY_NAME = "blind_index";
+
+    /**
+     * Alias for the key of the chunk fingerprints, see {@link Fingerprints}. They are computed
+     * while the authenticated cipher is in use, so the key does not need authentication either.
+     */
+    private static final String FINGERPRINT_KEY_NAME = "fingerprint";
+
+    static final String BLIND_INDEX_ALGORITHM = KeyProperties.KEY_ALGORITHM_HMAC_SHA256;
+
+    static final String TRANSFORMATION =
+            KeyProperties.KEY_ALGORITHM_AES + "/" + KeyProperties.BLOCK_MODE_CBC + "/" +
+                    KeyProperties.ENCRYPTION_PADDING_PKCS7;
+
+    /**
+     * Delivers the ciphers created in the background to the main thread
+     */
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
     private static KeyStore mKeyStore;
-    private static Cipher encrypt;
-    private static Cipher decrypt;
     private static KeyGenerator mKeyGenerator;
+    private static FutureTask<Boolean> initialization;
 
     /**
-     * Initializes the keystore and the ciphers and creates the key if necessary
+     * Starts the initialization of the keystore and the ciphers in the background, if it has not
+     * been started yet. Creates the key if necessary.
      *
-     * @return true, if a new key has been generated
-     * @throws GeneralSecurityException
-     * @throws IOException
+     * @return the future result of the initialization, true if a new key has been generated
+     */
+    static synchronized Future<Boolean> init() {
+        if (initialization == null) {
+            initialization = new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws GeneralSecurityException, IOException {
+                    long start = Tracing.begin("CipherUtil.init");
+                    try {
+                        return initKeyStore();
+                    } finally {
+                        Tracing.end("CipherUtil.init", start);
+                    }
+                }
+            });
+            new Thread(initialization, "CipherUtil.init").start();
+        }
+        return initialization;
+    }
+
+    /**
+     * Waits for the initialization started by {@link #init()} to complete
      */
-    static boolean init() throws GeneralSecurityException, IOException {
+    private static void awaitInit() throws GeneralSecurityException, IOException {
+        try {
+            init().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static boolean initKeyStore() throws GeneralSecurityException, IOException {
+        long start = Tracing.begin("KeyStore.getInstance");
         mKeyStore = KeyStore.getInstance("AndroidKeyStore");
         mKeyGenerator =
                 KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-        encrypt = Cipher.getInstance(
-                KeyProperties.KEY_ALGORITHM_AES + "/" + KeyProperties.BLOCK_MODE_CBC + "/" +
-                        KeyProperties.ENCRYPTION_PADDING_PKCS7);
-        decrypt = Cipher.getInstance(
-                KeyProperties.KEY_ALGORITHM_AES + "/" + KeyProperties.BLOCK_MODE_CBC + "/" +
-                        KeyProperties.ENCRYPTION_PADDING_PKCS7);
-        if (!hasKey()) {
-            createKey();
-            return true;
-        } else {
-            return false;
+        Tracing.end("KeyStore.getInstance", start);
+        start = Tracing.begin("Cipher.getInstance");
+        // loads the provider, the ciphers themselves are created per operation
+        Cipher.getInstance(TRANSFORMATION);
+        Tracing.end("Cipher.getInstance", start);
+        start = Tracing.begin("KeyStore.load");
+        try {
+            if (!hasKey()) {
+                createKey();
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            Tracing.end("KeyStore.load", start);
         }
     }
 
-
     /**
      * Creates a symmetric key in the Android Key Store which can only be used after the user has
      * authenticated with fingerprint.
@@ -122,23 +201,158 @@ class CipherUtil {
     }
 
     /**
-     * Request a cipher
+     * Request a cipher. The key store might still be initializing, so the cipher is created in
+     * the background, after the {@link CipherResultCallback#prepare() preparations} of the
+     * callback. The callback is notified on the main thread.
      *
      * @param context  the context
-     * @param iv       the initialization vector for CBC mode or null, to request encryption cipher
      * @param callback the callback which will be notified once the cipher is ready
      */
-    static void getCipher(final Context context, final byte[] iv,
-                          final CipherResultCallback callback) throws GeneralSecurityException,
-            IOException {
+    static void getCipher(final Context context, final CipherResultCallback callback) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Cipher c = createCipher(callback.prepare());
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (context instanceof Activity &&
+                                    ((Activity) context).isFinishing()) {
+                                callback.cipherUnavailable();
+                            } else {
+                                auth(c, context, callback);
+                            }
+                        }
+                    });
+                } catch (final GeneralSecurityException | IOException e) {
+                    e.printStackTrace();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.cipherFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a cipher with our key. Waits for the initialization, if it has not completed yet.
+     *
+     * @param iv the initialization vector for CBC mode or null, to create an encryption cipher
+     * @return the cipher, which can only be used after the user has authenticated
+     */
+    private static Cipher createCipher(final byte[] iv)
+            throws GeneralSecurityException, IOException {
+        awaitInit();
         mKeyStore.load(null);
         SecretKey key = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
+        // a new instance each time, as the jobs of the Scheduler run concurrently and a shared
+        // cipher would be reset in the middle of another job
+        Cipher c = Cipher.getInstance(TRANSFORMATION);
         if (iv == null) {
-            encrypt.init(Cipher.ENCRYPT_MODE, key);
+            c.init(Cipher.ENCRYPT_MODE, key);
         } else {
-            decrypt.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        }
+        return c;
+    }
+
+    /**
+     * Creates a cipher for measuring the throughput of the key store. It uses the same
+     * transformation as our key, but a separate key which does not require authentication.
+     *
+     * @return a new cipher, initialized for encryption
+     */
+    static Cipher getCalibrationCipher() throws GeneralSecurityException, IOException {
+        awaitInit();
+        mKeyStore.load(null);
+        SecretKey key = (SecretKey) mKeyStore.getKey(CALIBRATION_KEY_NAME, null);
+        if (key == null) {
+            KeyGenerator generator =
+                    KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            generator.init(new KeyGenParameterSpec.Builder(CALIBRATION_KEY_NAME,
+                    KeyProperties.PURPOSE_ENCRYPT).setBlockModes(KeyProperties.BLOCK_MODE_CBC)
+                    .setUserAuthenticationRequired(false)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7).build());
+            key = generator.generateKey();
         }
-        auth(iv == null ? encrypt : decrypt, context, callback);
+        Cipher c = Cipher.getInstance(TRANSFORMATION);
+        c.init(Cipher.ENCRYPT_MODE, key);
+        return c;
+    }
+
+    /**
+     * Removes the key created by {@link #getCalibrationCipher()}, if it exists
+     */
+    static void deleteCalibrationKey() throws GeneralSecurityException, IOException {
+        awaitInit();
+        mKeyStore.load(null);
+        if (mKeyStore.containsAlias(CALIBRATION_KEY_NAME)) {
+            mKeyStore.deleteEntry(CALIBRATION_KEY_NAME);
+        }
+    }
+
+    /**
+     * Gets the key to encrypt the metadata of files with, creating it if necessary
+     *
+     * @return the AES/GCM key
+     */
+    static SecretKey getMetadataKey() throws GeneralSecurityException, IOException {
+        awaitInit();
+        mKeyStore.load(null);
+        SecretKey key = (SecretKey) mKeyStore.getKey(METADATA_KEY_NAME, null);
+        if (key == null) {
+            KeyGenerator generator =
+                    KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            generator.init(new KeyGenParameterSpec.Builder(METADATA_KEY_NAME,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setUserAuthenticationRequired(false).build());
+            key = generator.generateKey();
+        }
+        return key;
+    }
+
+    /**
+     * Gets the key to compute the blind index of the metadata with, creating it if necessary
+     *
+     * @return the {@link #BLIND_INDEX_ALGORITHM} key
+     */
+    static SecretKey getBlindIndexKey() throws GeneralSecurityException, IOException {
+        awaitInit();
+        mKeyStore.load(null);
+        SecretKey key = (SecretKey) mKeyStore.getKey(BLIND_INDEX_KEY_NAME, null);
+        if (key == null) {
+            KeyGenerator generator =
+                    KeyGenerator.getInstance(BLIND_INDEX_ALGORITHM, "AndroidKeyStore");
+            generator.init(new KeyGenParameterSpec.Builder(BLIND_INDEX_KEY_NAME,
+                    KeyProperties.PURPOSE_SIGN).setUserAuthenticationRequired(false).build());
+            key = generator.generateKey();
+        }
+        return key;
+    }
+
+    /**
+     * Gets the key to compute the fingerprints of files with, creating it if necessary
+     *
+     * @return the {@link Fingerprints#ALGORITHM} key
+     */
+    static SecretKey getFingerprintKey() throws GeneralSecurityException, IOException {
+        awaitInit();
+        mKeyStore.load(null);
+        SecretKey key = (SecretKey) mKeyStore.getKey(FINGERPRINT_KEY_NAME, null);
+        if (key == null) {
+            KeyGenerator generator =
+                    KeyGenerator.getInstance(Fingerprints.ALGORITHM, "AndroidKeyStore");
+            generator.init(new KeyGenParameterSpec.Builder(FINGERPRINT_KEY_NAME,
+                    KeyProperties.PURPOSE_SIGN).setUserAuthenticationRequired(false).build());
+            key = generator.generateKey();
+        }
+        return key;
     }
 
     private static void auth(final Cipher c, final Context context,
@@ -151,6 +365,8 @@ class CipherUtil {
                     public void onCancel(final DialogInterface dialogInterface) {
                         mCancellationSignal.cancel();
                         dialogInterface.dismiss();
+                        // also after an authentication error, which leaves the dialog open
+                        callback.cipherUnavailable();
                     }
                 })
                 .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
@@ -182,12 +398,39 @@ class CipherUtil {
                         }, null);
     }
 
-    interface CipherResultCallback {
+    static abstract class CipherResultCallback {
+        /**
+         * Called on a background thread before the cipher is created, for the preparations which
+         * would block the main thread, like database queries or reading the file to decrypt
+         *
+         * @return the initialization vector to decrypt with or null, to encrypt
+         */
+        byte[] prepare() throws GeneralSecurityException, IOException {
+            return null;
+        }
+
         /**
          * A cipher is now ready for use
          *
          * @param c the cipher
          */
-        void cipherAvailable(final Cipher c);
+        abstract void cipherAvailable(final Cipher c);
+
+        /**
+         * The user has not authenticated, so no cipher will become available. Resources
+         * acquired for the operation should be released.
+         */
+        void cipherUnavailable() {
+        }
+
+        /**
+         * The preparations or the key store have failed, so no cipher will become available.
+         * Calls {@link #cipherUnavailable()} by default.
+         *
+         * @param e the error
+         */
+        void cipherFailed(final Exception e) {
+            cipherUnavailable();
+        }
     }
 }
@@ -22,4 +22,12 @@ interface CryptoCallback {
      * @param resultFile the newly isEncrypted or decrypted file
      */
     void operationComplete(final File resultFile);
+
+    /**
+     * Called on the main thread when the operation could not be started, for example because
+     * the file could not be read
+     *
+     * @param e the error
+     */
+    void operationFailed(final Exception e);
 }
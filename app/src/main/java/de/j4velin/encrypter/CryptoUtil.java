@@ -17,20 +17,25 @@ package de.j4velin.encrypter;
 
 import android.content.Context;
 import android.net.Uri;
+import android.provider.DocumentsContract;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
-import java.security.spec.InvalidParameterSpecException;
+import java.util.List;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.spec.IvParameterSpec;
+
+import de.j4velin.encrypter.core.CryptoEngine;
+import de.j4velin.encrypter.core.FileFormat;
+import de.j4velin.encrypter.core.Fingerprints;
+import de.j4velin.encrypter.core.PipelinedInputStream;
+import de.j4velin.encrypter.core.PipelinedOutputStream;
+import de.j4velin.encrypter.core.Progress;
 
 /**
  * Utility class to deal with encryption and decryption
@@ -41,48 +46,110 @@ class CryptoUtil {
     }
 
     /**
-     * Encrypts the given file
+     * Encrypts the given file. Small files are stored inline in the database, see
+     * {@link EncryptedStorage}.
      *
      * @param context       the context
      * @param callback      callback to be called once the encryption is complete
      * @param plaintextFile the plaintext file
      */
     static void encrypt(final Context context, final CryptoCallback callback,
-                        final File plaintextFile) throws GeneralSecurityException, IOException {
-        java.io.File dir = context.getExternalFilesDir(null);
-        if (dir == null) {
-            dir = context.getFilesDir();
-        }
-        java.io.File encryptedFile = new java.io.File(dir, plaintextFile.name + ".enc");
-        if (encryptedFile.exists()) {
-            int index = plaintextFile.name.lastIndexOf(".");
-            String prefix = plaintextFile.name.substring(0, index) + "_";
-            String postfix = plaintextFile.name.substring(index) + ".enc";
-            int tries = 2;
-            while (encryptedFile.exists()) {
-                encryptedFile = new java.io.File(dir, prefix + tries + postfix);
-                tries++;
+                        final File plaintextFile) {
+        final java.io.File encryptedFile = newEncryptedFile(context);
+        final File target = new File(-1, plaintextFile.getName(), plaintextFile.getMime(),
+                Uri.fromFile(encryptedFile), plaintextFile.size, true);
+        final Tuning tuning = Tuning.get(context);
+        CipherUtil.getCipher(context, new CipherUtil.CipherResultCallback() {
+            private InputStream input;
+
+            @Override
+            byte[] prepare() throws IOException {
+                input = new BufferedInputStream(
+                        context.getContentResolver().openInputStream(plaintextFile.uri));
+                return null;
             }
-        }
-        Uri uri = Uri.fromFile(encryptedFile);
-        final File resultFile =
-                new File(-1, plaintextFile.name, plaintextFile.mime, uri, plaintextFile.size, true);
-        final OutputStream output = new BufferedOutputStream(new FileOutputStream(encryptedFile));
-        final InputStream input = new BufferedInputStream(
-                context.getContentResolver().openInputStream(plaintextFile.uri));
-        CipherUtil.getCipher(context, null, new CipherUtil.CipherResultCallback() {
+
             @Override
             public void cipherAvailable(final Cipher c) {
+                // the output is only created now, the user might not authenticate
+                new SaveTask(context, callback, target).start(new SaveTask.Operation() {
+                    @Override
+                    public File run(final Progress progress)
+                            throws IOException, GeneralSecurityException {
+                        // the reported size is only a hint, the file is created once the
+                        // ciphertext turns out to be too large to be stored inline
+                        SpillOutputStream output = new SpillOutputStream(encryptedFile,
+                                EncryptedStorage.getInlineLimit(context),
+                                plaintextFile.size >= 0 ? FileFormat.chunkedLength(
+                                        plaintextFile.size, FileFormat.DEFAULT_CHUNK_SIZE) : -1,
+                                tuning.ioBufferSize);
+                        Fingerprints fingerprints;
+                        try (InputStream in = new PipelinedInputStream(input,
+                                tuning.ioBufferSize, PipelinedInputStream.DEFAULT_BUFFERS);
+                             OutputStream out = new PipelinedOutputStream(output,
+                                     tuning.ioBufferSize, PipelinedInputStream.DEFAULT_BUFFERS)) {
+                            fingerprints = CryptoEngine.encrypt(c,
+                                    CipherUtil.getFingerprintKey(), in, out,
+                                    FileFormat.DEFAULT_CHUNK_SIZE, tuning.bufferSize, progress);
+                        }
+                        File result = new File(-1, target.getName(), target.getMime(),
+                                output.isSpilled() ? target.uri :
+                                        EncryptedStorage.newInlineUri(),
+                                progress.getBytes(), true);
+                        result.fingerprints = fingerprints;
+                        result.data = output.toByteArray();
+                        return result;
+                    }
+                });
+            }
+
+            @Override
+            void cipherUnavailable() {
+                close(input);
+            }
+
+            @Override
+            void cipherFailed(final Exception e) {
+                super.cipherFailed(e);
+                callback.operationFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Encrypts a new version of an already encrypted file into the existing entry, re-encrypting
+     * only the parts of the file which have changed
+     *
+     * @param context       the context
+     * @param callback      callback to be called once the update is complete
+     * @param plaintextFile the new version of the plaintext file
+     * @param existing      the existing encrypted file
+     */
+    static void update(final Context context, final CryptoCallback callback,
+                       final File plaintextFile, final File existing) {
+        CipherUtil.getCipher(context, new CipherUtil.CipherResultCallback() {
+            private Fingerprints fingerprints;
+
+            @Override
+            byte[] prepare() {
+                Database db = new Database(context);
                 try {
-                    byte[] iv = c.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
-                    output.write(iv.length);
-                    output.write(iv);
-                    CipherOutputStream outputStream = new CipherOutputStream(output, c);
-                    new SaveTask(context, callback, resultFile)
-                            .execute(new SaveTask.Streams(input, outputStream));
-                } catch (IOException | InvalidParameterSpecException e) {
-                    e.printStackTrace();
+                    fingerprints = db.getFingerprints(existing.id);
+                } finally {
+                    db.close();
                 }
+                return null;
+            }
+
+            @Override
+            public void cipherAvailable(final Cipher c) {
+                new UpdateTask(context, callback, plaintextFile, existing, fingerprints, c)
+                        .start();
+            }
+
+            @Override
+            void cipherFailed(final Exception e) {
+                callback.operationFailed(e);
             }
         });
     }
@@ -96,25 +163,139 @@ class CryptoUtil {
      * @param out           the output uri to write the plaintext file to
      */
     static void decrypt(final Context context, final CryptoCallback callback,
-                        final File encryptedFile, final Uri out) throws GeneralSecurityException,
-            IOException {
-        final InputStream input = new BufferedInputStream(
-                context.getContentResolver().openInputStream(encryptedFile.uri));
-        final OutputStream output =
-                new BufferedOutputStream(context.getContentResolver().openOutputStream(out));
-        int ivLength = input.read();
-        byte[] iv = new byte[ivLength];
-        input.read(iv);
-        final File resultFile =
-                new File(-1, encryptedFile.name, encryptedFile.mime, out, encryptedFile.size,
-                        false);
-        CipherUtil.getCipher(context, iv, new CipherUtil.CipherResultCallback() {
+                        final File encryptedFile, final Uri out) {
+        final File resultFile = new File(-1, encryptedFile.getName(), encryptedFile.getMime(), out,
+                encryptedFile.size, false);
+        final Tuning tuning = Tuning.get(context);
+        CipherUtil.getCipher(context, new CipherUtil.CipherResultCallback() {
+            private InputStream input;
+            private FileFormat.Header header;
+            private long length;
+
+            @Override
+            byte[] prepare() throws IOException {
+                input = new BufferedInputStream(EncryptedStorage.open(context, encryptedFile));
+                header = FileFormat.readHeader(input);
+                length = EncryptedStorage.length(context, encryptedFile);
+                return header.iv;
+            }
+
             @Override
             public void cipherAvailable(final Cipher c) {
-                CipherInputStream inputStream = new CipherInputStream(input, c);
-                new SaveTask(context, callback, resultFile)
-                        .execute(new SaveTask.Streams(inputStream, output));
+                new SaveTask(context, callback, resultFile).start(new SaveTask.Operation() {
+                    @Override
+                    public File run(final Progress progress) throws IOException {
+                        OutputStream output = new BufferedOutputStream(
+                                context.getContentResolver().openOutputStream(out));
+                        try (InputStream in = new PipelinedInputStream(input,
+                                tuning.ioBufferSize, PipelinedInputStream.DEFAULT_BUFFERS);
+                             OutputStream plaintext = new PipelinedOutputStream(output,
+                                     tuning.ioBufferSize, PipelinedInputStream.DEFAULT_BUFFERS)) {
+                            CryptoEngine.decrypt(header, c, in, length, plaintext,
+                                    tuning.bufferSize, progress);
+                        }
+                        return resultFile;
+                    }
+                });
+            }
+
+            @Override
+            void cipherUnavailable() {
+                close(input);
+                try {
+                    // created empty by the document picker
+                    DocumentsContract.deleteDocument(context.getContentResolver(), out);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            void cipherFailed(final Exception e) {
+                super.cipherFailed(e);
+                callback.operationFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Decrypts the given files into a directory
+     *
+     * @param context  the context
+     * @param callback callback to be called once all files have been processed
+     * @param files    the encrypted files
+     * @param tree     the document tree uri of the output directory
+     */
+    static void export(final Context context, final ExportTask.Callback callback,
+                       final List<File> files, final Uri tree) {
+        CipherUtil.getCipher(context, new CipherUtil.CipherResultCallback() {
+            private byte[] firstIv;
+
+            @Override
+            byte[] prepare() throws IOException {
+                // the cipher can be initialized with any IV, but it must be one of a readable
+                // file
+                IOException error = null;
+                for (int i = 0; i < files.size() && firstIv == null; i++) {
+                    try (InputStream in = EncryptedStorage.open(context, files.get(i))) {
+                        firstIv = FileFormat.readHeader(in).iv;
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                if (firstIv == null) {
+                    throw error != null ? error : new IOException("No files");
+                }
+                return firstIv;
+            }
+
+            @Override
+            public void cipherAvailable(final Cipher c) {
+                new ExportTask(context, callback, files, tree, c, firstIv).start();
+            }
+
+            @Override
+            void cipherFailed(final Exception e) {
+                callback.exportFailed(e);
             }
         });
     }
+
+    /**
+     * Creates a new, not yet existing file in the app's storage to save an encrypted file to.
+     * The storage might be shared, so the name is random and reveals nothing about the file.
+     *
+     * @param context the context
+     * @return the file to write the encrypted data to
+     */
+    static java.io.File newEncryptedFile(final Context context) {
+        java.io.File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+        return newEncryptedFile(dir);
+    }
+
+    /**
+     * @param dir the directory
+     * @return a new, not yet existing file with a random name in the given directory
+     */
+    static java.io.File newEncryptedFile(final java.io.File dir) {
+        java.io.File encryptedFile;
+        do {
+            encryptedFile = new java.io.File(dir, EncryptedStorage.newName() + ".enc");
+        } while (encryptedFile.exists());
+        return encryptedFile;
+    }
+
+    private static void close(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -20,69 +20,798 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import de.j4velin.encrypter.core.Fingerprints;
 
 class Database extends SQLiteOpenHelper {
 
     private final static String DB_NAME = "db";
-    private final static int DB_VERSION = 1;
+    private final static int DB_VERSION = 6;
 
+    /**
+     * The encrypted files. Their names and mime types are encrypted and can only be searched by
+     * their blind index, see {@link Metadata}.
+     */
     static class EncryptedFilesContract implements BaseColumns {
         private final static String TABLE_NAME = "encrypted_files";
+        /**
+         * The plaintext name and mime type, which only exist in databases created before
+         * version 4 and are always null
+         */
         private final static String COLUMN_FILENAME = "name";
         private final static String COLUMN_MIME = "mime";
+        private final static String COLUMN_SEALED_NAME = "sealed_name";
+        private final static String COLUMN_SEALED_MIME = "sealed_mime";
+        private final static String COLUMN_NAME_TOKEN = "name_token";
+        private final static String COLUMN_TYPE_TOKEN = "type_token";
         private final static String COLUMN_URI = "uri";
         private final static String COLUMN_SIZE = "size";
+        private final static String COLUMN_SALT = "salt";
+        private final static String COLUMN_CHUNK_SIZE = "chunk_size";
         private final static String[] ALL_COLUMNS =
-                new String[]{_ID, COLUMN_FILENAME, COLUMN_MIME, COLUMN_URI, COLUMN_SIZE};
+                new String[]{_ID, COLUMN_SEALED_NAME, COLUMN_SEALED_MIME, COLUMN_URI, COLUMN_SIZE};
+    }
+
+    /**
+     * The blind index of the name prefixes, see {@link Metadata#prefixTokens(String)}
+     */
+    static class PrefixesContract {
+        private final static String TABLE_NAME = "name_prefixes";
+        private final static String COLUMN_FILE = "file_id";
+        private final static String COLUMN_TOKEN = "token";
+    }
+
+    /**
+     * The documents of the {@link WatchedFolder} which have been encrypted before
+     */
+    static class IngestedContract {
+        private final static String TABLE_NAME = "ingested";
+        private final static String COLUMN_DOCUMENT = "document";
+        private final static String COLUMN_SIZE = "size";
+        private final static String COLUMN_MODIFIED = "modified";
+        private final static String COLUMN_HASH = "hash";
+    }
+
+    /**
+     * Encrypted files whose entries have been deleted, but whose data has not been purged yet,
+     * see {@link Trash}
+     */
+    static class TrashContract implements BaseColumns {
+        private final static String TABLE_NAME = "trash";
+        /**
+         * The path of the encrypted file before it has been moved to the trash
+         */
+        private final static String COLUMN_PATH = "path";
+    }
+
+    /**
+     * The fingerprints of the plaintext chunks of an encrypted file, see {@link Fingerprints}
+     */
+    static class ChunksContract {
+        private final static String TABLE_NAME = "chunks";
+        private final static String COLUMN_FILE = "file_id";
+        private final static String COLUMN_INDEX = "idx";
+        private final static String COLUMN_HASH = "hash";
     }
 
+    /**
+     * The encrypted data of small files, which are stored inline instead of in a file of their
+     * own, see {@link EncryptedStorage}
+     */
+    static class BlobsContract {
+        private final static String TABLE_NAME = "blobs";
+        private final static String COLUMN_FILE = "file_id";
+        private final static String COLUMN_DATA = "data";
+    }
+
+    /**
+     * Encrypted files which are about to get a new name. The new names are chosen within the
+     * upgrade to version 6, but the files are only renamed afterwards, see
+     * {@link #renamePendingFiles(SQLiteDatabase)}.
+     */
+    static class RenamesContract {
+        private final static String TABLE_NAME = "renames";
+        private final static String COLUMN_FILE = "file_id";
+        private final static String COLUMN_SOURCE = "source";
+        private final static String COLUMN_TARGET = "target";
+    }
+
+    private final Context context;
+    /**
+     * True, if the upgrade has removed content which might still be found in free pages
+     */
+    private boolean vacuum;
+
     Database(final Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
+    }
+
+    @Override
+    public void onConfigure(final SQLiteDatabase db) {
+        super.onConfigure(db);
+        // overwrite deleted content, so that no plaintext metadata remains in free pages. The
+        // pragma returns the new value and only takes effect once that has been stepped to.
+        try (Cursor c = db.rawQuery("PRAGMA secure_delete = ON", null)) {
+            c.moveToFirst();
+        }
+    }
+
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+        renamePendingFiles(db);
+        if (vacuum) {
+            // not possible within the transaction of the upgrade. Rewrites the database, which
+            // drops the free pages of databases which did not use secure_delete before.
+            vacuum = false;
+            db.execSQL("VACUUM");
+        }
     }
 
     @Override
     public void onCreate(final SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + EncryptedFilesContract.TABLE_NAME + " (" +
                 EncryptedFilesContract._ID + " INTEGER PRIMARY KEY," +
-                EncryptedFilesContract.COLUMN_FILENAME +
-                " TEXT, " + EncryptedFilesContract.COLUMN_MIME + " TEXT, " +
+                EncryptedFilesContract.COLUMN_SEALED_NAME + " BLOB, " +
+                EncryptedFilesContract.COLUMN_SEALED_MIME + " BLOB, " +
+                EncryptedFilesContract.COLUMN_NAME_TOKEN + " TEXT, " +
+                EncryptedFilesContract.COLUMN_TYPE_TOKEN + " TEXT, " +
                 EncryptedFilesContract.COLUMN_URI +
-                " TEXT, " + EncryptedFilesContract.COLUMN_SIZE + " INTEGER)");
+                " TEXT, " + EncryptedFilesContract.COLUMN_SIZE + " INTEGER, " +
+                EncryptedFilesContract.COLUMN_SALT + " BLOB, " +
+                EncryptedFilesContract.COLUMN_CHUNK_SIZE + " INTEGER)");
+        createChunksTable(db);
+        createBlobsTable(db);
+        createBlindIndex(db);
+        createIngestedTable(db);
+        createTrashTable(db);
+        createRenamesTable(db);
+    }
+
+    private static void createChunksTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ChunksContract.TABLE_NAME + " (" +
+                ChunksContract.COLUMN_FILE + " INTEGER NOT NULL, " +
+                ChunksContract.COLUMN_INDEX + " INTEGER NOT NULL, " +
+                ChunksContract.COLUMN_HASH + " BLOB NOT NULL, PRIMARY KEY (" +
+                ChunksContract.COLUMN_FILE + ", " + ChunksContract.COLUMN_INDEX + "))");
+    }
+
+    private static void createBlobsTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BlobsContract.TABLE_NAME + " (" +
+                BlobsContract.COLUMN_FILE + " INTEGER PRIMARY KEY, " +
+                BlobsContract.COLUMN_DATA + " BLOB NOT NULL)");
+    }
+
+    private static void createBlindIndex(final SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX name_token_index ON " + EncryptedFilesContract.TABLE_NAME + " (" +
+                EncryptedFilesContract.COLUMN_NAME_TOKEN + ")");
+        db.execSQL("CREATE INDEX type_token_index ON " + EncryptedFilesContract.TABLE_NAME + " (" +
+                EncryptedFilesContract.COLUMN_TYPE_TOKEN + ")");
+        db.execSQL("CREATE TABLE " + PrefixesContract.TABLE_NAME + " (" +
+                PrefixesContract.COLUMN_TOKEN + " TEXT NOT NULL, " +
+                PrefixesContract.COLUMN_FILE + " INTEGER NOT NULL, PRIMARY KEY (" +
+                PrefixesContract.COLUMN_TOKEN + ", " + PrefixesContract.COLUMN_FILE + "))");
+        db.execSQL("CREATE INDEX prefixes_file_index ON " + PrefixesContract.TABLE_NAME + " (" +
+                PrefixesContract.COLUMN_FILE + ")");
+    }
+
+    private static void createIngestedTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + IngestedContract.TABLE_NAME + " (" +
+                IngestedContract.COLUMN_DOCUMENT + " TEXT PRIMARY KEY, " +
+                IngestedContract.COLUMN_SIZE + " INTEGER NOT NULL, " +
+                IngestedContract.COLUMN_MODIFIED + " INTEGER NOT NULL, " +
+                IngestedContract.COLUMN_HASH + " BLOB)");
+        db.execSQL("CREATE INDEX ingested_size_index ON " + IngestedContract.TABLE_NAME + " (" +
+                IngestedContract.COLUMN_SIZE + ", " + IngestedContract.COLUMN_MODIFIED + ")");
+    }
+
+    private static void createTrashTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TrashContract.TABLE_NAME + " (" +
+                TrashContract._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                TrashContract.COLUMN_PATH + " TEXT NOT NULL)");
+    }
+
+    private static void createRenamesTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + RenamesContract.TABLE_NAME + " (" +
+                RenamesContract.COLUMN_FILE + " INTEGER PRIMARY KEY, " +
+                RenamesContract.COLUMN_SOURCE + " TEXT NOT NULL, " +
+                RenamesContract.COLUMN_TARGET + " TEXT NOT NULL)");
     }
 
     /**
-     * Adds the given file to the database of isEncrypted files
+     * Adds the given file to the database of isEncrypted files and to the {@link FileIndex}.
+     * The data of an inline file is stored in the same transaction and released afterwards.
      *
      * @param file the isEncrypted file
      * @return the entry id
      */
     long addFile(final File file) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        long id;
+        try {
+            id = db.insert(EncryptedFilesContract.TABLE_NAME, null, toContentValues(file));
+            if (id >= 0) {
+                insertPrefixes(db, id, file.getName());
+            }
+            if (id >= 0 && file.fingerprints != null) {
+                insertFingerprints(db, id, file.fingerprints);
+            }
+            if (id >= 0 && file.data != null) {
+                try (SQLiteStatement insert = compileBlobInsert(db)) {
+                    insertBlob(insert, id, file);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (id >= 0) {
+            file.id = id;
+            FileIndex.get(context).put(file);
+        }
+        return id;
+    }
+
+    /**
+     * Updates the size and the fingerprints of an existing entry after a new version of the
+     * file has been encrypted into it. The entry in the {@link FileIndex} is replaced.
+     *
+     * @param file the encrypted file, must have an id
+     */
+    void updateFile(final File file) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.update(EncryptedFilesContract.TABLE_NAME, toContentValues(file),
+                    EncryptedFilesContract._ID + " = ?", new String[]{String.valueOf(file.id)});
+            db.delete(ChunksContract.TABLE_NAME, ChunksContract.COLUMN_FILE + " = ?",
+                    new String[]{String.valueOf(file.id)});
+            db.delete(PrefixesContract.TABLE_NAME, PrefixesContract.COLUMN_FILE + " = ?",
+                    new String[]{String.valueOf(file.id)});
+            insertPrefixes(db, file.id, file.getName());
+            if (file.fingerprints != null) {
+                insertFingerprints(db, file.id, file.fingerprints);
+            }
+            if (!file.isInline()) {
+                db.delete(BlobsContract.TABLE_NAME, BlobsContract.COLUMN_FILE + " = ?",
+                        new String[]{String.valueOf(file.id)});
+            } else if (file.data != null) {
+                try (SQLiteStatement insert = compileBlobInsert(db)) {
+                    insertBlob(insert, file.id, file);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        FileIndex.get(context).put(file);
+    }
+
+    /**
+     * Removes the fingerprints of an entry, so the next update of the file encrypts it
+     * completely
+     *
+     * @param id the id of the entry
+     */
+    void removeFingerprints(final long id) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(ChunksContract.TABLE_NAME, ChunksContract.COLUMN_FILE + " = ?",
+                    new String[]{String.valueOf(id)});
+            ContentValues values = new ContentValues();
+            values.putNull(EncryptedFilesContract.COLUMN_SALT);
+            values.putNull(EncryptedFilesContract.COLUMN_CHUNK_SIZE);
+            db.update(EncryptedFilesContract.TABLE_NAME, values,
+                    EncryptedFilesContract._ID + " = ?", new String[]{String.valueOf(id)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void insertFingerprints(final SQLiteDatabase db, long id,
+                                           final Fingerprints fingerprints) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < fingerprints.size(); i++) {
+            values.put(ChunksContract.COLUMN_FILE, id);
+            values.put(ChunksContract.COLUMN_INDEX, i);
+            values.put(ChunksContract.COLUMN_HASH, fingerprints.get(i));
+            db.insertOrThrow(ChunksContract.TABLE_NAME, null, values);
+        }
+    }
+
+    private static void insertPrefixes(final SQLiteDatabase db, long id, final String name) {
+        ContentValues values = new ContentValues();
+        for (String token : Metadata.get().prefixTokens(name)) {
+            values.put(PrefixesContract.COLUMN_FILE, id);
+            values.put(PrefixesContract.COLUMN_TOKEN, token);
+            // different prefixes of the same name can not result in the same token, but ignore
+            // duplicates anyway, as they would not change the result of a lookup
+            db.insertWithOnConflict(PrefixesContract.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    private static SQLiteStatement compileBlobInsert(final SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR REPLACE INTO " + BlobsContract.TABLE_NAME + " (" +
+                BlobsContract.COLUMN_FILE + ", " + BlobsContract.COLUMN_DATA + ") VALUES (?, ?)");
+    }
+
+    private static void insertBlob(final SQLiteStatement insert, long id, final File file) {
+        insert.bindLong(1, id);
+        insert.bindBlob(2, file.data);
+        insert.executeInsert();
+        insert.clearBindings();
+        file.data = null;
+    }
+
+    /**
+     * Gets the encrypted data of an inline file
+     *
+     * @param id the id of the entry
+     * @return the data or null, if the file is not stored inline
+     */
+    byte[] getBlob(final long id) {
+        try (Cursor c = getReadableDatabase().query(BlobsContract.TABLE_NAME,
+                new String[]{BlobsContract.COLUMN_DATA}, BlobsContract.COLUMN_FILE + " = ?",
+                new String[]{String.valueOf(id)}, null, null, null)) {
+            if (c != null && c.moveToFirst()) {
+                return c.getBlob(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the length of the encrypted data of an inline file without loading it
+     *
+     * @param id the id of the entry
+     * @return the length in bytes or -1, if the file is not stored inline
+     */
+    long getBlobLength(final long id) {
+        try (Cursor c = getReadableDatabase().query(BlobsContract.TABLE_NAME,
+                new String[]{"length(" + BlobsContract.COLUMN_DATA + ")"},
+                BlobsContract.COLUMN_FILE + " = ?", new String[]{String.valueOf(id)}, null, null,
+                null)) {
+            if (c != null && c.moveToFirst()) {
+                return c.getLong(0);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the fingerprints of an encrypted file
+     *
+     * @param id the id of the entry
+     * @return the fingerprints or null, if the file was encrypted without fingerprints
+     */
+    Fingerprints getFingerprints(final long id) {
+        SQLiteDatabase db = getReadableDatabase();
+        byte[] salt;
+        int chunkSize;
+        try (Cursor c = db.query(EncryptedFilesContract.TABLE_NAME,
+                new String[]{EncryptedFilesContract.COLUMN_SALT,
+                        EncryptedFilesContract.COLUMN_CHUNK_SIZE},
+                EncryptedFilesContract._ID + " = ?", new String[]{String.valueOf(id)}, null, null,
+                null)) {
+            if (c == null || !c.moveToFirst() || c.isNull(0)) {
+                return null;
+            }
+            salt = c.getBlob(0);
+            chunkSize = c.getInt(1);
+        }
+        try (Cursor c = db.query(ChunksContract.TABLE_NAME,
+                new String[]{ChunksContract.COLUMN_HASH}, ChunksContract.COLUMN_FILE + " = ?",
+                new String[]{String.valueOf(id)}, null, null, ChunksContract.COLUMN_INDEX)) {
+            if (c == null || !c.moveToFirst()) {
+                return null;
+            }
+            List<byte[]> hashes = new ArrayList<>(c.getCount());
+            while (!c.isAfterLast()) {
+                hashes.add(c.getBlob(0));
+                c.moveToNext();
+            }
+            return new Fingerprints(salt, chunkSize, hashes);
+        }
+    }
+
+    /**
+     * Finds an encrypted file by its original name
+     *
+     * @param name the original display name
+     * @return the first entry with that name or null, if there is none
+     */
+    File findFile(final String name) {
+        try (Cursor c = getReadableDatabase()
+                .query(EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract.ALL_COLUMNS,
+                        EncryptedFilesContract.COLUMN_NAME_TOKEN + " = ?",
+                        new String[]{Metadata.get().nameToken(name)}, null, null,
+                        EncryptedFilesContract._ID, "1")) {
+            if (c != null && c.moveToFirst()) {
+                return new File(c.getLong(0), c.getBlob(1), c.getBlob(2),
+                        Uri.parse(c.getString(3)), c.getLong(4));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the encrypted files whose name starts with the given prefix, ignoring case. Only the
+     * first {@link Metadata#MAX_PREFIX_LENGTH} characters of the prefix are looked up, so the
+     * result may contain files which only match those.
+     *
+     * @param prefix the prefix, must not be empty
+     * @return the ids of the candidates
+     */
+    Set<Long> findFileIds(final String prefix) {
+        Set<Long> ids = new HashSet<>();
+        try (Cursor c = getReadableDatabase()
+                .query(PrefixesContract.TABLE_NAME, new String[]{PrefixesContract.COLUMN_FILE},
+                        PrefixesContract.COLUMN_TOKEN + " = ?",
+                        new String[]{Metadata.get().prefixToken(prefix)}, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Finds the encrypted files by the top-level type of their mime type
+     *
+     * @param types   the types, e.g. "image"
+     * @param exclude true to find the files of all other types instead
+     * @return the ids of the matching files
+     */
+    Set<Long> findFileIdsByType(final String[] types, boolean exclude) {
+        String[] tokens = new String[types.length];
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < types.length; i++) {
+            tokens[i] = Metadata.get().typeTokenOf(types[i]);
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        String column = EncryptedFilesContract.COLUMN_TYPE_TOKEN;
+        String selection = exclude ?
+                column + " IS NULL OR " + column + " NOT IN (" + placeholders + ")" :
+                column + " IN (" + placeholders + ")";
+        Set<Long> ids = new HashSet<>();
+        try (Cursor c = getReadableDatabase().query(EncryptedFilesContract.TABLE_NAME,
+                new String[]{EncryptedFilesContract._ID}, selection, tokens, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Adds the given files to the database of encrypted files within a single transaction and
+     * sets their ids. The data of inline files is stored in the same transaction and released
+     * afterwards. The files are added to the {@link FileIndex} as a single change.
+     *
+     * @param files the encrypted files
+     */
+    void addFiles(final List<File> files) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            insertFiles(db, files);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        FileIndex.get(context).put(files);
+    }
+
+    /**
+     * Adds the files encrypted from documents of the {@link WatchedFolder} like
+     * {@link #addFiles(List)} and marks the documents as ingested, within the same transaction
+     *
+     * @param files     the encrypted files
+     * @param documents the documents, in the same order as the files
+     */
+    void addIngestedFiles(final List<File> files, final List<WatchedFolder.Document> documents) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            insertFiles(db, files);
+            for (WatchedFolder.Document document : documents) {
+                insertIngested(db, document);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        FileIndex.get(context).put(files);
+    }
+
+    private static void insertFiles(final SQLiteDatabase db, final List<File> files) {
+        try (SQLiteStatement insert = compileBlobInsert(db)) {
+            insertFiles(db, insert, files);
+        }
+    }
+
+    private static void insertFiles(final SQLiteDatabase db, final SQLiteStatement insert,
+                                    final List<File> files) {
+        for (File file : files) {
+            file.id = db.insertOrThrow(EncryptedFilesContract.TABLE_NAME, null,
+                    toContentValues(file));
+            insertPrefixes(db, file.id, file.getName());
+            if (file.fingerprints != null) {
+                insertFingerprints(db, file.id, file.fingerprints);
+            }
+            if (file.data != null) {
+                insertBlob(insert, file.id, file);
+            }
+        }
+    }
+
+    /**
+     * Starts adding files in a single transaction, which stays open until
+     * {@link Import#commit()}. The files can be added in batches, so that the data of inline
+     * files does not have to be kept in memory until the end.
+     *
+     * @return the import, which must be closed on the same thread
+     */
+    Import beginImport() {
+        return new Import(getWritableDatabase());
+    }
+
+    /**
+     * Files added in a single transaction, see {@link #beginImport()}. Closing an import which
+     * has not been committed rolls back all files added to it.
+     */
+    class Import implements Closeable {
+
+        private final SQLiteDatabase db;
+        private final SQLiteStatement insert;
+        private final List<File> added = new ArrayList<>();
+        private boolean open = true;
+
+        private Import(final SQLiteDatabase db) {
+            this.db = db;
+            db.beginTransaction();
+            insert = compileBlobInsert(db);
+        }
+
+        /**
+         * Adds files to the transaction and sets their ids. The data of inline files is released
+         * afterwards.
+         *
+         * @param files the encrypted files
+         */
+        void add(final List<File> files) {
+            insertFiles(db, insert, files);
+            added.addAll(files);
+        }
+
+        /**
+         * Commits all files added so far and adds them to the {@link FileIndex} as a single
+         * change
+         */
+        void commit() {
+            db.setTransactionSuccessful();
+            close();
+            FileIndex.get(context).put(added);
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                insert.close();
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Marks a document of the {@link WatchedFolder} as ingested, without adding a file
+     *
+     * @param document the document
+     */
+    void addIngested(final WatchedFolder.Document document) {
+        insertIngested(getWritableDatabase(), document);
+    }
+
+    private static void insertIngested(final SQLiteDatabase db,
+                                       final WatchedFolder.Document document) {
         ContentValues values = new ContentValues();
-        values.put(EncryptedFilesContract.COLUMN_FILENAME, file.name);
-        values.put(EncryptedFilesContract.COLUMN_MIME, file.mime);
+        values.put(IngestedContract.COLUMN_DOCUMENT, document.uri.toString());
+        values.put(IngestedContract.COLUMN_SIZE, document.size);
+        values.put(IngestedContract.COLUMN_MODIFIED, document.modified);
+        values.put(IngestedContract.COLUMN_HASH, document.hash);
+        db.insertWithOnConflict(IngestedContract.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @param document the uri of the document
+     * @param size     the size of the document
+     * @param modified the modification time of the document
+     * @return true, if the document has been ingested in exactly this version
+     */
+    boolean isIngested(final String document, long size, long modified) {
+        try (Cursor c = getReadableDatabase().query(IngestedContract.TABLE_NAME,
+                new String[]{IngestedContract.COLUMN_DOCUMENT},
+                IngestedContract.COLUMN_DOCUMENT + " = ? AND " + IngestedContract.COLUMN_SIZE +
+                        " = ? AND " + IngestedContract.COLUMN_MODIFIED + " = ?",
+                new String[]{document, String.valueOf(size), String.valueOf(modified)}, null,
+                null, null)) {
+            return c != null && c.moveToFirst();
+        }
+    }
+
+    /**
+     * @param size     the size of a document
+     * @param modified the modification time of a document
+     * @return the hashes of all ingested documents with that size and modification time
+     */
+    List<byte[]> getIngestedHashes(long size, long modified) {
+        List<byte[]> hashes = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(IngestedContract.TABLE_NAME,
+                new String[]{IngestedContract.COLUMN_HASH},
+                IngestedContract.COLUMN_SIZE + " = ? AND " + IngestedContract.COLUMN_MODIFIED +
+                        " = ? AND " + IngestedContract.COLUMN_HASH + " IS NOT NULL",
+                new String[]{String.valueOf(size), String.valueOf(modified)}, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                hashes.add(c.getBlob(0));
+            }
+        }
+        return hashes;
+    }
+
+    private static ContentValues toContentValues(final File file) {
+        ContentValues values = sealedValues(file.getName(), file.getMime());
         values.put(EncryptedFilesContract.COLUMN_URI, file.uri.toString());
         values.put(EncryptedFilesContract.COLUMN_SIZE, file.size);
-        return getWritableDatabase().insert(EncryptedFilesContract.TABLE_NAME, null, values);
+        if (file.fingerprints != null) {
+            values.put(EncryptedFilesContract.COLUMN_SALT, file.fingerprints.salt);
+            values.put(EncryptedFilesContract.COLUMN_CHUNK_SIZE, file.fingerprints.chunkSize);
+        } else {
+            values.putNull(EncryptedFilesContract.COLUMN_SALT);
+            values.putNull(EncryptedFilesContract.COLUMN_CHUNK_SIZE);
+        }
+        return values;
+    }
+
+    /**
+     * @return the values of the encrypted name and mime type and their blind index
+     */
+    private static ContentValues sealedValues(final String name, final String mime) {
+        Metadata metadata = Metadata.get();
+        ContentValues values = new ContentValues();
+        values.put(EncryptedFilesContract.COLUMN_SEALED_NAME, metadata.seal(name));
+        values.put(EncryptedFilesContract.COLUMN_SEALED_MIME, metadata.seal(mime));
+        values.put(EncryptedFilesContract.COLUMN_NAME_TOKEN, metadata.nameToken(name));
+        values.put(EncryptedFilesContract.COLUMN_TYPE_TOKEN, metadata.typeToken(mime));
+        return values;
     }
 
     /**
-     * Deletes a file from the database
+     * Deletes a file from the database and the {@link FileIndex}
      *
      * @param id the id of the entry to delete
      */
     void deleteFile(final long id) {
-        getWritableDatabase()
-                .delete(EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract._ID + " = ?",
-                        new String[]{String.valueOf(id)});
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            deleteRows(db, Collections.singletonList(id));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        FileIndex.get(context).remove(id);
+    }
+
+    /**
+     * Deletes files from the database and the {@link FileIndex} in a single transaction. The
+     * encrypted data of files which are not inline is recorded in the trash within the same
+     * transaction, so it is purged eventually even if the app is killed right afterwards.
+     *
+     * @param files the files to delete
+     * @return the trash entries of the deleted files which are not inline
+     */
+    List<Trash.Item> deleteFiles(final Collection<File> files) {
+        List<Long> ids = new ArrayList<>(files.size());
+        List<Trash.Item> trash = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement insert = db.compileStatement("INSERT INTO " +
+                TrashContract.TABLE_NAME + " (" + TrashContract.COLUMN_PATH + ") VALUES (?)")) {
+            for (File file : files) {
+                ids.add(file.id);
+                if (!file.isInline()) {
+                    insert.bindString(1, file.uri.getPath());
+                    trash.add(new Trash.Item(insert.executeInsert(), file.uri.getPath()));
+                }
+            }
+            deleteRows(db, ids);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        FileIndex.get(context).remove(ids);
+        return trash;
+    }
+
+    private static void deleteRows(final SQLiteDatabase db, final List<Long> ids) {
+        String[][] tables = {
+                {EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract._ID},
+                {ChunksContract.TABLE_NAME, ChunksContract.COLUMN_FILE},
+                {BlobsContract.TABLE_NAME, BlobsContract.COLUMN_FILE},
+                {PrefixesContract.TABLE_NAME, PrefixesContract.COLUMN_FILE}};
+        for (String[] table : tables) {
+            try (SQLiteStatement delete = db.compileStatement(
+                    "DELETE FROM " + table[0] + " WHERE " + table[1] + " = ?")) {
+                for (long id : ids) {
+                    delete.bindLong(1, id);
+                    delete.executeUpdateDelete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param limit the maximum number of entries to return
+     * @return the oldest entries of the trash
+     */
+    List<Trash.Item> getTrash(int limit) {
+        List<Trash.Item> items = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(TrashContract.TABLE_NAME,
+                new String[]{TrashContract._ID, TrashContract.COLUMN_PATH}, null, null, null,
+                null, TrashContract._ID, String.valueOf(limit))) {
+            while (c != null && c.moveToNext()) {
+                items.add(new Trash.Item(c.getLong(0), c.getString(1)));
+            }
+        }
+        return items;
     }
 
     /**
-     * Gets all isEncrypted files in the database
+     * Removes an entry from the trash after its data has been purged
+     *
+     * @param id the id of the trash entry
+     */
+    void removeFromTrash(long id) {
+        getWritableDatabase().delete(TrashContract.TABLE_NAME, TrashContract._ID + " = ?",
+                new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * @param path the path of an encrypted file
+     * @return true, if an entry refers to the file at the given path
+     */
+    boolean isReferenced(final String path) {
+        try (Cursor c = getReadableDatabase().query(EncryptedFilesContract.TABLE_NAME,
+                new String[]{EncryptedFilesContract._ID},
+                EncryptedFilesContract.COLUMN_URI + " = ?",
+                new String[]{Uri.fromFile(new java.io.File(path)).toString()}, null, null, null,
+                "1")) {
+            return c != null && c.moveToFirst();
+        }
+    }
+
+    /**
+     * Gets all isEncrypted files in the database. Their names and mime types are not decrypted
+     * until they are needed.
      *
      * @return the list of isEncrypted files
      */
@@ -92,15 +821,15 @@ class Database extends SQLiteOpenHelper {
                         null, null, null, null)) {
             if (c != null && c.moveToFirst()) {
                 int indexId = c.getColumnIndex(EncryptedFilesContract._ID);
-                int indexName = c.getColumnIndex(EncryptedFilesContract.COLUMN_FILENAME);
-                int indexMime = c.getColumnIndex(EncryptedFilesContract.COLUMN_MIME);
+                int indexName = c.getColumnIndex(EncryptedFilesContract.COLUMN_SEALED_NAME);
+                int indexMime = c.getColumnIndex(EncryptedFilesContract.COLUMN_SEALED_MIME);
                 int indexUri = c.getColumnIndex(EncryptedFilesContract.COLUMN_URI);
                 int indexSize = c.getColumnIndex(EncryptedFilesContract.COLUMN_SIZE);
                 List<File> re = new ArrayList<>(c.getCount());
                 while (!c.isAfterLast()) {
-                    re.add(new File(c.getInt(indexId), c.getString(indexName),
-                            c.getString(indexMime), Uri.parse(c.getString(indexUri)),
-                            c.getInt(indexSize), true));
+                    re.add(new File(c.getLong(indexId), c.getBlob(indexName),
+                            c.getBlob(indexMime), Uri.parse(c.getString(indexUri)),
+                            c.getLong(indexSize)));
                     c.moveToNext();
                 }
                 return re;
@@ -111,6 +840,158 @@ class Database extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(final SQLiteDatabase db, int from, int to) {
+        if (from < 2) {
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    EncryptedFilesContract.COLUMN_SALT + " BLOB");
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    EncryptedFilesContract.COLUMN_CHUNK_SIZE + " INTEGER");
+            createChunksTable(db);
+        }
+        if (from < 3) {
+            createBlobsTable(db);
+        }
+        if (from < 4) {
+            encryptMetadata(db);
+        }
+        if (from < 5) {
+            createIngestedTable(db);
+        }
+        if (from < 6) {
+            createTrashTable(db);
+            createRenamesTable(db);
+            renameEncryptedData(db);
+            dropFingerprints(db);
+            vacuum = true;
+        }
+    }
 
+    /**
+     * Removes the fingerprints of all files. Until version 6, they were plain salted SHA-256
+     * hashes, which can not be compared to the HMACs computed since. The next update of each file
+     * encrypts it completely and stores new fingerprints.
+     */
+    private static void dropFingerprints(final SQLiteDatabase db) {
+        db.delete(ChunksContract.TABLE_NAME, null, null);
+        ContentValues values = new ContentValues();
+        values.putNull(EncryptedFilesContract.COLUMN_SALT);
+        values.putNull(EncryptedFilesContract.COLUMN_CHUNK_SIZE);
+        db.update(EncryptedFilesContract.TABLE_NAME, values, null, null);
+    }
+
+    /**
+     * Gives the encrypted data of all files a random name, see {@link EncryptedStorage#newName()}.
+     * Until version 6, the files and the inline uris were named after the original file.
+     * <p>
+     * The inline uris are replaced right away. The files are only renamed after the upgrade has
+     * been committed, as a rollback would not undo the renames. Until then, their new names are
+     * kept in the {@link RenamesContract} table.
+     */
+    private static void renameEncryptedData(final SQLiteDatabase db) {
+        try (Cursor c = db.query(EncryptedFilesContract.TABLE_NAME,
+                new String[]{EncryptedFilesContract._ID, EncryptedFilesContract.COLUMN_URI}, null,
+                null, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                Uri uri = Uri.parse(c.getString(1));
+                ContentValues values = new ContentValues();
+                if (File.INLINE_SCHEME.equals(uri.getScheme())) {
+                    values.put(EncryptedFilesContract.COLUMN_URI,
+                            EncryptedStorage.newInlineUri().toString());
+                    db.update(EncryptedFilesContract.TABLE_NAME, values,
+                            EncryptedFilesContract._ID + " = ?",
+                            new String[]{String.valueOf(c.getLong(0))});
+                } else if ("file".equals(uri.getScheme())) {
+                    java.io.File original = new java.io.File(uri.getPath());
+                    values.put(RenamesContract.COLUMN_FILE, c.getLong(0));
+                    values.put(RenamesContract.COLUMN_SOURCE, original.getPath());
+                    values.put(RenamesContract.COLUMN_TARGET,
+                            CryptoUtil.newEncryptedFile(original.getParentFile()).getPath());
+                    db.insertOrThrow(RenamesContract.TABLE_NAME, null, values);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames the files listed in the {@link RenamesContract} table and points their entries to
+     * the new names. Every step can be repeated after an interruption: a file whose new name
+     * already exists has been renamed before, and an entry is only updated once the rename is on
+     * the storage. A file which can not be renamed keeps its name.
+     */
+    private static void renamePendingFiles(final SQLiteDatabase db) {
+        List<Long> ids = new ArrayList<>();
+        List<java.io.File> renamed = new ArrayList<>();
+        try (Cursor c = db.query(RenamesContract.TABLE_NAME,
+                new String[]{RenamesContract.COLUMN_FILE, RenamesContract.COLUMN_SOURCE,
+                        RenamesContract.COLUMN_TARGET}, null, null, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                java.io.File source = new java.io.File(c.getString(1));
+                java.io.File target = new java.io.File(c.getString(2));
+                ids.add(c.getLong(0));
+                renamed.add(target.exists() || source.renameTo(target) ? target : null);
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<java.io.File> files = new ArrayList<>();
+        for (java.io.File f : renamed) {
+            if (f != null) {
+                files.add(f);
+            }
+        }
+        try {
+            Durability.syncDirectories(files);
+        } catch (IOException e) {
+            // the entries are updated with the next attempt
+            e.printStackTrace();
+            return;
+        }
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                String[] id = new String[]{String.valueOf(ids.get(i))};
+                if (renamed.get(i) != null) {
+                    ContentValues values = new ContentValues();
+                    values.put(EncryptedFilesContract.COLUMN_URI,
+                            Uri.fromFile(renamed.get(i)).toString());
+                    db.update(EncryptedFilesContract.TABLE_NAME, values,
+                            EncryptedFilesContract._ID + " = ?", id);
+                }
+                db.delete(RenamesContract.TABLE_NAME, RenamesContract.COLUMN_FILE + " = ?", id);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the plaintext names and mime types with their encrypted form and blind index
+     */
+    private static void encryptMetadata(final SQLiteDatabase db) {
+        for (String column : new String[]{EncryptedFilesContract.COLUMN_SEALED_NAME,
+                EncryptedFilesContract.COLUMN_SEALED_MIME}) {
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    column + " BLOB");
+        }
+        for (String column : new String[]{EncryptedFilesContract.COLUMN_NAME_TOKEN,
+                EncryptedFilesContract.COLUMN_TYPE_TOKEN}) {
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    column + " TEXT");
+        }
+        createBlindIndex(db);
+        try (Cursor c = db.query(EncryptedFilesContract.TABLE_NAME,
+                new String[]{EncryptedFilesContract._ID, EncryptedFilesContract.COLUMN_FILENAME,
+                        EncryptedFilesContract.COLUMN_MIME}, null, null, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                long id = c.getLong(0);
+                ContentValues values = sealedValues(c.getString(1), c.getString(2));
+                values.putNull(EncryptedFilesContract.COLUMN_FILENAME);
+                values.putNull(EncryptedFilesContract.COLUMN_MIME);
+                db.update(EncryptedFilesContract.TABLE_NAME, values,
+                        EncryptedFilesContract._ID + " = ?", new String[]{String.valueOf(id)});
+                insertPrefixes(db, id, c.getString(1));
+            }
+        }
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.text.format.DateUtils;
+
+import de.j4velin.encrypter.core.Calibrator;
+
+/**
+ * Dialog showing the current {@link Tuning} and the measurements it is based on, from which the
+ * calibration can be run again
+ */
+class Diagnostics {
+
+    private Diagnostics() {
+    }
+
+    /**
+     * Shows the diagnostics dialog
+     *
+     * @param activity the activity
+     */
+    static void show(final Activity activity) {
+        new AlertDialog.Builder(activity).setTitle(R.string.diagnostics)
+                .setMessage(describe(activity, Tuning.get(activity)))
+                .setPositiveButton(R.string.calibrate, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        new CalibrationTask(activity, new CalibrationTask.Callback() {
+                            @Override
+                            public void calibrationComplete(final Calibrator.Result result) {
+                                if (result != null && !activity.isFinishing()) {
+                                    show(activity);
+                                }
+                            }
+                        }, true).execute();
+                    }
+                })
+                .setNegativeButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        dialogInterface.dismiss();
+                    }
+                }).create().show();
+    }
+
+    private static String describe(final Activity activity, final Tuning tuning) {
+        StringBuilder text = new StringBuilder();
+        if (tuning.isCalibrated()) {
+            text.append(activity.getString(R.string.calibrated_at, DateUtils
+                    .formatDateTime(activity, tuning.timestamp,
+                            DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME)));
+        } else {
+            text.append(activity.getString(R.string.not_calibrated));
+        }
+        text.append("\n\n").append(activity.getString(R.string.tuning_values,
+                File.formatSize(tuning.bufferSize), File.formatSize(tuning.ioBufferSize),
+                tuning.writers));
+        String group = null;
+        for (Calibrator.Measurement m : tuning.measurements) {
+            if (!(m.category + m.candidate).equals(group)) {
+                group = m.category + m.candidate;
+                text.append("\n\n").append(m.category).append(": ").append(m.candidate);
+            }
+            String parameter = Calibrator.CATEGORY_WRITERS.equals(m.category) ?
+                    String.valueOf(m.parameter) : File.formatSize(m.parameter);
+            text.append("\n  ").append(parameter).append(": ")
+                    .append(activity.getString(R.string.progress_rate,
+                            File.formatSize(m.bytesPerSecond)));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.j4velin.encrypter.core.GroupCommit;
+
+/**
+ * Makes sure an entry in the database never refers to an encrypted file whose data might not be
+ * on the storage yet, depending on the chosen {@link GroupCommit.Policy}.
+ * <p>
+ * Files encrypted one at a time are added through a shared {@link GroupCommit}, so with
+ * {@link GroupCommit.Policy#GROUP} concurrent jobs share their syncs and database transactions.
+ * Batch jobs, which add all their files in one transaction anyway, only sync the data of the
+ * batch before, see {@link #sync(Context, List)}.
+ * <p>
+ * Besides the data, the directories containing the files are synced, as a new or renamed file
+ * is only found after a power loss once its directory entry is on the storage as well.
+ */
+class Durability {
+
+    private final static String PREFS = "settings";
+    private final static String KEY_POLICY = "durability";
+
+    private static GroupCommit<File> groupCommit;
+
+    private Durability() {
+    }
+
+    /**
+     * @param context the context
+     * @return the chosen policy, {@link GroupCommit.Policy#GROUP} by default
+     */
+    static GroupCommit.Policy getPolicy(final Context context) {
+        String policy = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getString(KEY_POLICY, null);
+        try {
+            return policy != null ? GroupCommit.Policy.valueOf(policy) : GroupCommit.Policy.GROUP;
+        } catch (IllegalArgumentException e) {
+            return GroupCommit.Policy.GROUP;
+        }
+    }
+
+    /**
+     * @param context the context
+     * @param policy  the policy to use for all files written afterwards
+     */
+    static void setPolicy(final Context context, final GroupCommit.Policy policy) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putString(KEY_POLICY, policy.name()).apply();
+    }
+
+    /**
+     * Adds a newly encrypted file to the database once its data is durable according to the
+     * policy. Blocks until the file has been added, so it must not be called on the main thread.
+     *
+     * @param context the context
+     * @param file    the encrypted file, whose id is set
+     * @throws IOException if the data could not be synced or the file not be added
+     */
+    static void addFile(final Context context, final File file) throws IOException {
+        get(context).commit(file.isInline() ? null : new java.io.File(file.uri.getPath()), file);
+    }
+
+    /**
+     * Updates the entry of an existing file, whose new version has been written to a new file
+     * or inline, like {@link #addFile(Context, File)}
+     *
+     * @param context the context
+     * @param file    the new version, with the id of the existing entry
+     * @throws IOException if the data could not be synced or the entry not be updated
+     */
+    static void updateFile(final Context context, final File file) throws IOException {
+        addFile(context, file);
+    }
+
+    /**
+     * Replaces an encrypted file with its new version and updates its entry. The new version is
+     * synced before it is renamed over the old one, independent of the policy, so the file is
+     * always either completely old or completely new. The fingerprints of the entry are removed
+     * before the rename: until the entry has been updated, they do not match the file anymore,
+     * and without fingerprints, the next update encrypts the whole file again.
+     *
+     * @param context     the context
+     * @param replacement the new version, in the same directory as the target
+     * @param target      the file to replace
+     * @param file        the new version of the entry
+     * @throws IOException if the file could not be replaced or the entry not be updated
+     */
+    static void replaceFile(final Context context, final java.io.File replacement,
+                            final java.io.File target, final File file) throws IOException {
+        GroupCommit.sync(replacement);
+        Database db = new Database(context);
+        try {
+            db.removeFingerprints(file.id);
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            db.close();
+        }
+        if (!replacement.renameTo(target)) {
+            throw new IOException("Can not replace " + target);
+        }
+        // the directory is synced along with the entry
+        updateFile(context, file);
+    }
+
+    private static synchronized GroupCommit<File> get(final Context context) {
+        final GroupCommit.Policy policy = getPolicy(context);
+        if (groupCommit == null || groupCommit.getPolicy() != policy) {
+            final Context appContext = context.getApplicationContext();
+            groupCommit = new GroupCommit<>(policy, new GroupCommit.Committer<File>() {
+                @Override
+                public void commit(final List<File> entries) throws IOException {
+                    List<java.io.File> files = new ArrayList<>(entries.size());
+                    List<File> added = new ArrayList<>(entries.size());
+                    for (File f : entries) {
+                        if (!f.isInline()) {
+                            files.add(new java.io.File(f.uri.getPath()));
+                        }
+                        if (f.id < 0) {
+                            added.add(f);
+                        }
+                    }
+                    if (policy != GroupCommit.Policy.NONE) {
+                        syncDirectories(files);
+                    }
+                    Database db = new Database(appContext);
+                    try {
+                        for (File f : entries) {
+                            if (f.id >= 0) {
+                                db.updateFile(f);
+                            }
+                        }
+                        if (!added.isEmpty()) {
+                            db.addFiles(added);
+                        }
+                    } catch (RuntimeException e) {
+                        throw new IOException(e);
+                    } finally {
+                        db.close();
+                    }
+                }
+            });
+        }
+        return groupCommit;
+    }
+
+    /**
+     * Syncs the data of a batch of encrypted files before they are added to the database, unless
+     * the policy is {@link GroupCommit.Policy#NONE}
+     *
+     * @param context the context
+     * @param files   the written files
+     */
+    static void sync(final Context context, final List<java.io.File> files) throws IOException {
+        if (getPolicy(context) == GroupCommit.Policy.NONE) {
+            return;
+        }
+        for (java.io.File f : files) {
+            GroupCommit.sync(f);
+        }
+        syncDirectories(files);
+    }
+
+    /**
+     * Syncs the directories of the given files, each one once, so that new or renamed files are
+     * found after a power loss
+     *
+     * @param files the files
+     */
+    static void syncDirectories(final List<java.io.File> files) throws IOException {
+        Set<java.io.File> directories = new LinkedHashSet<>();
+        for (java.io.File f : files) {
+            java.io.File dir = f.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                directories.add(dir);
+            }
+        }
+        for (java.io.File dir : directories) {
+            try {
+                FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+                try {
+                    Os.fsync(fd);
+                } finally {
+                    Os.close(fd);
+                }
+            } catch (ErrnoException e) {
+                throw new IOException("Can not sync " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Creates a stream to write a new encrypted file. The space for the file is allocated
+     * upfront, so the file system can place it in one piece instead of growing it with every
+     * write. If fewer bytes are written, the file is truncated when the stream is closed.
+     *
+     * @param file   the file to write
+     * @param length the expected length of the file or -1, if unknown
+     * @return the stream
+     */
+    static FileOutputStream newOutputStream(final java.io.File file, long length)
+            throws FileNotFoundException {
+        return new PreallocatedOutputStream(file, length);
+    }
+
+    private static class PreallocatedOutputStream extends FileOutputStream {
+        private boolean closed;
+
+        private PreallocatedOutputStream(final java.io.File file, long length)
+                throws FileNotFoundException {
+            super(file);
+            if (length > 0) {
+                try {
+                    Os.posix_fallocate(getFD(), 0, length);
+                } catch (ErrnoException | IOException e) {
+                    // not supported by every file system, writing works just the same
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // release the allocated space which has not been written
+                FileChannel channel = getChannel();
+                channel.truncate(channel.position());
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+
+import de.j4velin.encrypter.core.FileFormat;
+
+/**
+ * Access to the encrypted data of a file, regardless of where it is stored.
+ * <p>
+ * Files below the inline threshold are stored as a blob in the {@link Database} instead of in a
+ * file of their own. For small files, creating the file and opening the streams is more
+ * expensive than the encryption itself, and thousands of tiny files fragment the storage.
+ */
+class EncryptedStorage {
+
+    private final static String PREFS = "settings";
+    private final static String KEY_INLINE_THRESHOLD = "inline_threshold";
+    /**
+     * Plaintext files smaller than this are stored inline, unless configured otherwise
+     */
+    final static int DEFAULT_INLINE_THRESHOLD = 64 * 1024;
+    /**
+     * Number of random bytes in the name of a file, see {@link #newName()}
+     */
+    private final static int NAME_LENGTH = 16;
+    private final static SecureRandom RANDOM = new SecureRandom();
+
+    private EncryptedStorage() {
+    }
+
+    /**
+     * @param context the context
+     * @return the size in bytes below which encrypted files are stored inline, 0 to disable
+     */
+    static int getInlineThreshold(final Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getInt(KEY_INLINE_THRESHOLD, DEFAULT_INLINE_THRESHOLD);
+    }
+
+    /**
+     * @param context the context
+     * @param size    the size of the plaintext or -1, if it is not known
+     * @return true, if a file of the given size should be stored inline
+     */
+    static boolean shouldInline(final Context context, long size) {
+        return size >= 0 && size < getInlineThreshold(context);
+    }
+
+    /**
+     * @param context the context
+     * @return the maximum length of the encrypted data of an inline file, which is that of the
+     * largest plaintext below the inline threshold
+     */
+    static long getInlineLimit(final Context context) {
+        int threshold = getInlineThreshold(context);
+        return threshold > 0 ?
+                FileFormat.chunkedLength(threshold - 1, FileFormat.DEFAULT_CHUNK_SIZE) : 0;
+    }
+
+    /**
+     * @return a random name for the encrypted data of a file, which unlike the original name
+     * reveals nothing about the file
+     */
+    static String newName() {
+        byte[] bytes = new byte[NAME_LENGTH];
+        RANDOM.nextBytes(bytes);
+        StringBuilder name = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return the uri for a new inline file
+     */
+    static Uri newInlineUri() {
+        return Uri.fromParts(File.INLINE_SCHEME, newName(), null);
+    }
+
+    /**
+     * Opens the encrypted data of a file
+     *
+     * @param context the context
+     * @param file    the encrypted file
+     * @return the stream to read the encrypted data from, including the header
+     */
+    static InputStream open(final Context context, final File file) throws IOException {
+        if (file.isInline()) {
+            return new ByteArrayInputStream(getBlob(context, file));
+        }
+        return context.getContentResolver().openInputStream(file.uri);
+    }
+
+    /**
+     * Reads the encrypted data of an inline file
+     *
+     * @param context the context
+     * @param file    the encrypted inline file
+     * @return the encrypted data, including the header
+     */
+    static byte[] getBlob(final Context context, final File file) throws FileNotFoundException {
+        if (file.data != null) {
+            return file.data;
+        }
+        Database db = new Database(context);
+        try {
+            byte[] data = db.getBlob(file.id);
+            if (data == null) {
+                throw new FileNotFoundException(file.getName());
+            }
+            return data;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @param context the context
+     * @param file    the encrypted file
+     * @return the length of the encrypted data, including the header
+     */
+    static long length(final Context context, final File file) {
+        if (file.isInline()) {
+            if (file.data != null) {
+                return file.data.length;
+            }
+            Database db = new Database(context);
+            try {
+                return db.getBlobLength(file.id);
+            } finally {
+                db.close();
+            }
+        }
+        return new java.io.File(file.uri.getPath()).length();
+    }
+
+    /**
+     * Deletes the encrypted file, but not its database entry. The data of inline files is only
+     * removed together with the entry.
+     *
+     * @param file the encrypted file
+     * @return true, if the file does not exist anymore
+     */
+    static boolean delete(final File file) {
+        if (file.isInline()) {
+            return true;
+        }
+        java.io.File f = new java.io.File(file.uri.getPath());
+        return !f.exists() || f.delete();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.DocumentsContract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import de.j4velin.encrypter.core.CbcChainDecoder;
+import de.j4velin.encrypter.core.FileFormat;
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * Background task to decrypt several files into a directory.
+ * <p>
+ * All files are decrypted with a single cipher operation (see {@link CbcChainDecoder}), so the
+ * user only has to authenticate once. While the cipher works on the next file, the plaintext of
+ * the previous files is written by a small pool of writer threads.
+ */
+class ExportTask extends AsyncTask<Void, Long, List<ExportTask.Result>> {
+
+    /**
+     * Number of files written concurrently, unless the device has been calibrated. All files are
+     * written into the same document tree and therefore to the same storage volume, which would
+     * only slow down with too many writers.
+     */
+    final static int DEFAULT_WRITERS = 2;
+    /**
+     * Number of plaintext chunks buffered per file until the cipher has to wait for the writer
+     */
+    private final static int QUEUE_CAPACITY = 16;
+
+    interface Callback {
+        /**
+         * Called once all files have been processed
+         *
+         * @param results the result for each file, in the order of the input files
+         */
+        void exportComplete(final List<Result> results);
+
+        /**
+         * Called on the main thread when the export could not be started, because none of the
+         * files could be read or the key is not available
+         *
+         * @param e the error
+         */
+        void exportFailed(final Exception e);
+    }
+
+    /**
+     * The outcome of exporting a single file
+     */
+    static class Result {
+        final File file;
+        /**
+         * The reason for the failure or null, if the file has been exported successfully
+         */
+        final String error;
+
+        private Result(final File file, final String error) {
+            this.file = file;
+            this.error = error;
+        }
+
+        boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final List<File> files;
+    private final Uri tree;
+    private final Cipher cipher;
+    private final byte[] iv;
+    private final Progress progress;
+    private final ProgressDialog dialog;
+    private final Tuning tuning;
+
+    /**
+     * @param context  the context
+     * @param callback the callback to notify once the export is complete
+     * @param files    the encrypted files to export
+     * @param tree     the document tree uri of the output directory
+     * @param cipher   the authenticated cipher, initialized for decryption with the given iv
+     * @param iv       the iv the cipher has been initialized with
+     */
+    ExportTask(final Context context, final Callback callback, final List<File> files,
+               final Uri tree, final Cipher cipher, final byte[] iv) {
+        this.context = context;
+        this.callback = callback;
+        this.files = files;
+        this.tree = tree;
+        this.cipher = cipher;
+        this.iv = iv;
+        tuning = Tuning.get(context);
+        long total = 0;
+        for (File f : files) {
+            total += f.size;
+        }
+        progress = new Progress(total);
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                publishProgress(p.getBytes());
+            }
+        });
+        dialog = ProgressDialogs.create(context, progress);
+        dialog.setTitle(context.getResources()
+                .getQuantityString(R.plurals.exporting_files, files.size(), files.size()));
+        Jobs.attach(context, progress, Scheduler.Priority.BACKGROUND);
+    }
+
+    /**
+     * Starts the task on the {@link Jobs} scheduler
+     */
+    void start() {
+        Jobs.execute(context, this, Scheduler.Priority.BACKGROUND);
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        dialog.show();
+    }
+
+    @Override
+    protected void onProgressUpdate(final Long... values) {
+        ProgressDialogs.update(dialog, progress);
+    }
+
+    @Override
+    protected void onPostExecute(final List<Result> results) {
+        super.onPostExecute(results);
+        dialog.dismiss();
+        if (callback != null) {
+            callback.exportComplete(results);
+        }
+    }
+
+    @Override
+    protected List<Result> doInBackground(final Void... voids) {
+        Uri directory = DocumentsContract
+                .buildDocumentUriUsingTree(tree, DocumentsContract.getTreeDocumentId(tree));
+        ExecutorService writers = Executors.newFixedThreadPool(tuning.writers);
+        List<Future<Result>> futures = new ArrayList<>(files.size());
+        Result[] results = new Result[files.size()];
+        CbcChainDecoder decoder = new CbcChainDecoder(cipher, iv);
+        byte[] buffer = new byte[tuning.bufferSize];
+        String error = null;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                DocumentWriter writer = null;
+                FileFormat.Reader reader = null;
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(EncryptedStorage.open(context, file),
+                            tuning.ioBufferSize);
+                    FileFormat.Header header = FileFormat.readHeader(in);
+                    writer = new DocumentWriter(file, directory);
+                    futures.add(writers.submit(writer));
+                    reader = new FileFormat.Reader(header, in,
+                            EncryptedStorage.length(context, file), decoder, writer,
+                            progress, buffer);
+                    //noinspection StatementWithEmptyBody
+                    while (reader.step()) ;
+                } catch (Progress.CancelledException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (writer == null) {
+                        futures.add(null);
+                        results[i] = new Result(file, e.getMessage());
+                    } else {
+                        writer.readError = e.getMessage();
+                        if (reader != null) {
+                            reader.fail();
+                        }
+                    }
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            decoder.finish();
+            progress.finish();
+        } catch (Progress.CancelledException e) {
+            error = context.getString(R.string.cancelled);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            error = e.getMessage();
+        } finally {
+            try {
+                decoder.abort();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writers.shutdown();
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            Future<Result> future = i < futures.size() ? futures.get(i) : null;
+            if (future != null) {
+                try {
+                    results[i] = future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    results[i] = new Result(files.get(i), e.getMessage());
+                }
+            } else {
+                results[i] = new Result(files.get(i),
+                        error != null ? error : context.getString(R.string.cancelled));
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Writes the plaintext of one file, which it receives from the cipher thread, into a new
+     * document
+     */
+    private class DocumentWriter implements CbcChainDecoder.Sink, Callable<Result> {
+
+        private final byte[] END = new byte[0];
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final File file;
+        private final Uri directory;
+        private volatile boolean valid;
+        private volatile String readError;
+
+        private DocumentWriter(final File file, final Uri directory) {
+            this.file = file;
+            this.directory = directory;
+        }
+
+        @Override
+        public void write(final byte[] buffer, int offset, int length) throws IOException {
+            put(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void end(boolean valid) throws IOException {
+            this.valid = valid;
+            put(END);
+        }
+
+        private void put(final byte[] data) throws IOException {
+            try {
+                queue.put(data);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public Result call() throws InterruptedException {
+            Uri document = null;
+            OutputStream out = null;
+            String error = null;
+            try {
+                document = DocumentsContract
+                        .createDocument(context.getContentResolver(), directory, file.getMime(),
+                                file.getName());
+                if (document == null) {
+                    throw new IOException(context.getString(R.string.error_create_file));
+                }
+                out = new BufferedOutputStream(
+                        context.getContentResolver().openOutputStream(document),
+                        tuning.ioBufferSize);
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            byte[] data;
+            while ((data = queue.take()) != END) {
+                // keep draining the queue after an error, so that the cipher thread does not block
+                if (error == null) {
+                    try {
+                        out.write(data);
+                    } catch (IOException e) {
+                        error = e.getMessage();
+                    }
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e.getMessage();
+                    }
+                }
+            }
+            if (error == null && !valid) {
+                if (readError != null) {
+                    error = readError;
+                } else if (progress.isCancelled()) {
+                    error = context.getString(R.string.cancelled);
+                } else {
+                    error = context.getString(R.string.error_corrupt_file);
+                }
+            }
+            if (error != null && document != null) {
+                try {
+                    DocumentsContract.deleteDocument(context.getContentResolver(), document);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            return new Result(file, error);
+        }
+    }
+}
@@ -17,6 +17,8 @@ package de.j4velin.encrypter;
 
 import android.net.Uri;
 
+import de.j4velin.encrypter.core.Fingerprints;
+
 /**
  * A class representing an isEncrypted or a plaintext file.
  * If the object represents an isEncrypted file, the name, mime type and size information are those of
@@ -25,13 +27,29 @@ import android.net.Uri;
 class File {
 
     /**
-     * The original display name
+     * Scheme of the uri of encrypted files which are stored inline in the database, see
+     * {@link EncryptedStorage}
+     */
+    final static String INLINE_SCHEME = "inline";
+
+    /**
+     * The original display name or null, if it is only known in encrypted form
+     */
+    private final String name;
+    /**
+     * The original mime type or null, if it is only known in encrypted form
+     */
+    private final String mime;
+    /**
+     * The encrypted display name and mime type of a file loaded from the database, see
+     * {@link Metadata}
      */
-    final String name;
+    final byte[] sealedName;
+    final byte[] sealedMime;
     /**
-     * The original mime type
+     * The decrypted name and mime type of a sealed file, once {@link #reveal()} has been called
      */
-    final String mime;
+    private volatile String[] revealed;
     /**
      * The uri of the file
      */
@@ -39,7 +57,7 @@ class File {
     /**
      * The original file size
      */
-    final int size;
+    final long size;
     /**
      * The id of the entry in the database or -1, if no such exists (yet)
      */
@@ -48,26 +66,88 @@ class File {
      * True, if this object represents an encrypted file
      */
     final boolean isEncrypted;
+    /**
+     * The fingerprints of the plaintext chunks or null, if not known
+     */
+    Fingerprints fingerprints;
+    /**
+     * The encrypted data of an inline file until it has been stored in the database, null
+     * otherwise
+     */
+    byte[] data;
 
     protected File(final long id, final String name, final String mime, final Uri uri,
-                   final int size, final boolean isEncrypted) {
+                   final long size, final boolean isEncrypted) {
         this.id = id;
         this.name = name;
         this.mime = mime;
         this.uri = uri;
         this.size = size;
         this.isEncrypted = isEncrypted;
+        this.sealedName = null;
+        this.sealedMime = null;
+    }
+
+    /**
+     * Creates an encrypted file whose name and mime type are only decrypted when needed
+     */
+    File(final long id, final byte[] sealedName, final byte[] sealedMime, final Uri uri,
+         final long size) {
+        this.id = id;
+        this.name = null;
+        this.mime = null;
+        this.uri = uri;
+        this.size = size;
+        this.isEncrypted = true;
+        this.sealedName = sealedName;
+        this.sealedMime = sealedMime;
+    }
+
+    /**
+     * Decrypts the name and mime type of a sealed file and keeps them, so that the getters do
+     * not need the key store anymore. Should not be called on the main thread.
+     */
+    void reveal() {
+        if (sealedName != null && revealed == null) {
+            revealed = Metadata.get().reveal(this);
+        }
+    }
+
+    /**
+     * @return the original display name
+     */
+    String getName() {
+        return sealedName == null ? name : getRevealed()[0];
+    }
+
+    /**
+     * @return the original mime type, may be null
+     */
+    String getMime() {
+        return sealedMime == null ? mime : getRevealed()[1];
+    }
+
+    private String[] getRevealed() {
+        String[] values = revealed;
+        return values != null ? values : Metadata.get().reveal(this);
+    }
+
+    /**
+     * @return true, if this is an encrypted file which is stored inline in the database
+     */
+    boolean isInline() {
+        return INLINE_SCHEME.equals(uri.getScheme());
     }
 
     @Override
     public String toString() {
-        return id + "," + name + "," + mime + "," + formatSize(size) + "," + uri + "," +
+        return id + "," + getName() + "," + getMime() + "," + formatSize(size) + "," + uri + "," +
                 (isEncrypted ? "enc" : "plain");
     }
 
-    public static String formatSize(int size) {
+    public static String formatSize(long size) {
         if (size < 1024) return size + " Bytes";
-        int kb = size / 1024;
+        long kb = size / 1024;
         if (kb < 1024) return kb + " KB";
         else return (kb / 1024) + " MB";
     }
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory index of all encrypted files, keyed by their database id.
+ * <p>
+ * The {@link Database} updates the index whenever it adds, updates or deletes an entry, so the
+ * UI never has to track the outcome of jobs itself. Changes are coalesced: any number of
+ * changes made in quick succession result in a single new snapshot, which is compared to the
+ * previous one on a background thread. The listeners receive the snapshot together with the
+ * resulting {@link ChangeSet} on the main thread.
+ * <p>
+ * Snapshots are ordered by id, which is the order in which the files have been added. The names
+ * and mime types of all files in a snapshot are decrypted before it is published, so the UI can
+ * show them without accessing the key store.
+ */
+class FileIndex {
+
+    interface Listener {
+        /**
+         * Called on the main thread whenever the index has changed
+         *
+         * @param files   the new snapshot, must not be modified
+         * @param changes the changes from the previous snapshot to the new one
+         */
+        void onFilesChanged(final List<File> files, final ChangeSet changes);
+    }
+
+    private static FileIndex instance;
+
+    private final TreeMap<Long, File> entries = new TreeMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean publishScheduled;
+    /**
+     * The last snapshot the changes have been computed for, only accessed by the executor
+     */
+    private List<File> published = Collections.emptyList();
+    /**
+     * The last snapshot delivered to the listeners, only accessed on the main thread
+     */
+    private List<File> delivered = Collections.emptyList();
+
+    private FileIndex() {
+    }
+
+    /**
+     * Gets the index, loading it from the database in the background on first use
+     *
+     * @param context the context
+     * @return the index
+     */
+    static synchronized FileIndex get(final Context context) {
+        if (instance == null) {
+            instance = new FileIndex();
+            instance.load(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private void load(final Context context) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = Tracing.begin("Database.getFiles");
+                Database db = new Database(context);
+                List<File> files;
+                try {
+                    files = db.getFiles();
+                } finally {
+                    db.close();
+                    Tracing.end("Database.getFiles", start);
+                }
+                start = Tracing.begin("FileIndex.reveal");
+                for (File f : files) {
+                    f.reveal();
+                }
+                Tracing.end("FileIndex.reveal", start);
+                synchronized (FileIndex.this) {
+                    // entries added while loading are newer than the ones read from the database
+                    for (File f : files) {
+                        if (!entries.containsKey(f.id)) {
+                            entries.put(f.id, f);
+                        }
+                    }
+                    schedulePublish();
+                }
+                Tracing.milestone("List loaded");
+            }
+        });
+    }
+
+    /**
+     * Registers a listener. Must be called on the main thread.
+     *
+     * @param listener the listener
+     * @return the current snapshot, to which all changes passed to the listener will apply
+     */
+    List<File> addListener(final Listener listener) {
+        listeners.add(listener);
+        return delivered;
+    }
+
+    /**
+     * Removes a listener. Must be called on the main thread.
+     *
+     * @param listener the listener
+     */
+    void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param id the database id
+     * @return the file with the given id or null, if there is none
+     */
+    synchronized File getFile(long id) {
+        return entries.get(id);
+    }
+
+    /**
+     * @return a copy of all files currently in the index
+     */
+    synchronized List<File> getFiles() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Adds or replaces files
+     *
+     * @param files the files, which must have their database id
+     */
+    synchronized void put(final Collection<File> files) {
+        for (File f : files) {
+            entries.put(f.id, f);
+        }
+        schedulePublish();
+    }
+
+    /**
+     * Adds or replaces a file
+     *
+     * @param file the file, which must have its database id
+     */
+    void put(final File file) {
+        put(Collections.singletonList(file));
+    }
+
+    /**
+     * Removes files
+     *
+     * @param ids the database ids of the files to remove
+     */
+    synchronized void remove(final Collection<Long> ids) {
+        for (Long id : ids) {
+            entries.remove(id);
+        }
+        schedulePublish();
+    }
+
+    /**
+     * Removes a file
+     *
+     * @param id the database id of the file to remove
+     */
+    void remove(long id) {
+        remove(Collections.singletonList(id));
+    }
+
+    private void schedulePublish() {
+        if (!publishScheduled) {
+            publishScheduled = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    publish();
+                }
+            });
+        }
+    }
+
+    private void publish() {
+        final List<File> snapshot;
+        synchronized (this) {
+            publishScheduled = false;
+            snapshot = Collections.unmodifiableList(new ArrayList<>(entries.values()));
+        }
+        for (File f : snapshot) {
+            // only decrypts files which have been put since the last snapshot
+            f.reveal();
+        }
+        final ChangeSet changes = ChangeSet.compute(published, snapshot);
+        published = snapshot;
+        if (changes.isEmpty()) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                delivered = snapshot;
+                for (Listener l : listeners) {
+                    l.onFilesChanged(snapshot, changes);
+                }
+            }
+        });
+    }
+
+    /**
+     * The difference between two snapshots as ranges of inserted, removed and changed items
+     */
+    static class ChangeSet {
+
+        private final static int INSERT = 0;
+        private final static int REMOVE = 1;
+        private final static int CHANGE = 2;
+        private final static String[] NAMES = {"insert", "remove", "change"};
+
+        /**
+         * Triples of type, position and count, to be applied in this order
+         */
+        private final List<int[]> operations = new ArrayList<>();
+
+        private ChangeSet() {
+        }
+
+        /**
+         * Compares two snapshots. As both are ordered by id, a single pass over both lists is
+         * sufficient. Entries with the same id, but a different object, have been updated.
+         *
+         * @param before the old snapshot
+         * @param after  the new snapshot
+         * @return the changes to turn the old snapshot into the new one
+         */
+        static ChangeSet compute(final List<File> before, final List<File> after) {
+            ChangeSet changes = new ChangeSet();
+            int i = 0, j = 0, position = 0;
+            while (i < before.size() || j < after.size()) {
+                if (j == after.size() ||
+                        (i < before.size() && before.get(i).id < after.get(j).id)) {
+                    changes.add(REMOVE, position);
+                    i++;
+                } else if (i == before.size() || after.get(j).id < before.get(i).id) {
+                    changes.add(INSERT, position);
+                    position++;
+                    j++;
+                } else {
+                    if (before.get(i) != after.get(j)) {
+                        changes.add(CHANGE, position);
+                    }
+                    position++;
+                    i++;
+                    j++;
+                }
+            }
+            return changes;
+        }
+
+        /**
+         * Adds a single item operation, merging it with the previous one where possible
+         */
+        private void add(int type, int position) {
+            int[] last = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+            if (last != null && last[0] == type &&
+                    (type == REMOVE ? last[1] == position : last[1] + last[2] == position)) {
+                last[2]++;
+            } else {
+                operations.add(new int[]{type, position, 1});
+            }
+        }
+
+        /**
+         * @return true, if the snapshots are equal
+         */
+        boolean isEmpty() {
+            return operations.isEmpty();
+        }
+
+        /**
+         * @return the operations, e.g. "[remove(0, 2), insert(1, 1)]" for removing the first two
+         * items and inserting a new second one
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("[");
+            for (int[] op : operations) {
+                if (text.length() > 1) {
+                    text.append(", ");
+                }
+                text.append(NAMES[op[0]]).append('(').append(op[1]).append(", ").append(op[2])
+                        .append(')');
+            }
+            return text.append(']').toString();
+        }
+
+        /**
+         * Notifies the adapter about the changes, after it has switched to the new snapshot
+         *
+         * @param adapter the adapter
+         */
+        void dispatchTo(final RecyclerView.Adapter<?> adapter) {
+            for (int[] op : operations) {
+                switch (op[0]) {
+                    case INSERT:
+                        adapter.notifyItemRangeInserted(op[1], op[2]);
+                        break;
+                    case REMOVE:
+                        adapter.notifyItemRangeRemoved(op[1], op[2]);
+                        break;
+                    case CHANGE:
+                        adapter.notifyItemRangeChanged(op[1], op[2]);
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.DocumentsContract;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import de.j4velin.encrypter.core.CbcChainEncoder;
+import de.j4velin.encrypter.core.FileFormat;
+import de.j4velin.encrypter.core.Fingerprints;
+import de.j4velin.encrypter.core.GroupCommit;
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * Background task to encrypt the new files of the {@link WatchedFolder} or the files shared with
+ * us, see {@link ShareIntake}, as a single batch.
+ * <p>
+ * All files are encrypted within one cipher operation by a {@link CbcChainEncoder}, so the whole
+ * batch only requires a single authentication. The documents are streamed directly into the
+ * cipher, their sizes are only needed to show the progress. The files are added to the database
+ * in one transaction, together with the record that the documents of the watched folder have
+ * been ingested.
+ * <p>
+ * If requested, the original documents are deleted afterwards. Decrypting the files to verify
+ * them would require another authentication, so instead the stored ciphertext is synced and
+ * compared to the hash of the ciphertext produced by the cipher, and the document must not have
+ * changed since it was read.
+ */
+class IngestTask extends AsyncTask<Void, Long, String> {
+
+    interface Callback {
+        /**
+         * Called once the task has finished
+         *
+         * @param encrypted the number of files encrypted
+         * @param deleted   the number of original documents deleted
+         * @param error     the error message or null, if the task completed successfully
+         */
+        void ingestComplete(int encrypted, int deleted, final String error);
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final List<WatchedFolder.Document> documents;
+    private final Cipher cipher;
+    private final boolean watched;
+    private final boolean deleteOriginals;
+    private final Progress progress;
+    private final ProgressDialog dialog;
+
+    private final List<File> files = new ArrayList<>();
+    private final List<WatchedFolder.Document> ingested = new ArrayList<>();
+    /**
+     * The files which might have been written: every target, until the encoder has finished,
+     * afterwards only the ones which are not stored inline
+     */
+    private final List<java.io.File> written = new ArrayList<>();
+    private boolean stored;
+    private int deleted;
+    /**
+     * Number of the document currently encrypted, starting at 1
+     */
+    private volatile int current;
+
+    /**
+     * @param context         the context
+     * @param callback        the callback to notify once the task is complete
+     * @param documents       the documents to encrypt
+     * @param cipher          the authenticated cipher, initialized for encryption
+     * @param watched         true, if the documents are from the watched folder
+     * @param deleteOriginals true to delete the documents of the watched folder once they have
+     *                        been encrypted
+     */
+    IngestTask(final Context context, final Callback callback,
+               final List<WatchedFolder.Document> documents, final Cipher cipher,
+               boolean watched, boolean deleteOriginals) {
+        this.context = context;
+        this.callback = callback;
+        this.documents = documents;
+        this.cipher = cipher;
+        this.watched = watched;
+        this.deleteOriginals = watched && deleteOriginals;
+        long total = 0;
+        for (WatchedFolder.Document document : documents) {
+            if (document.size < 0) {
+                // show the number of the current document instead of the bytes
+                total = -1;
+                break;
+            }
+            total += document.size;
+        }
+        progress = new Progress(total);
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                publishProgress(p.getBytes());
+            }
+        });
+        dialog = ProgressDialogs.create(context, progress);
+        Jobs.attach(context, progress, getPriority());
+    }
+
+    /**
+     * Starts the task on the {@link Jobs} scheduler
+     */
+    void start() {
+        Jobs.execute(context, this, getPriority());
+    }
+
+    private Scheduler.Priority getPriority() {
+        // files shared by the user are encrypted like a picked file
+        return watched ? Scheduler.Priority.BACKGROUND : Scheduler.Priority.USER;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        dialog.show();
+    }
+
+    @Override
+    protected void onProgressUpdate(final Long... values) {
+        ProgressDialogs.update(dialog, progress);
+        if (documents.size() > 1) {
+            dialog.setTitle(context.getString(R.string.ingest_document, current,
+                    documents.size()));
+        }
+    }
+
+    @Override
+    protected String doInBackground(final Void... voids) {
+        long start = Tracing.begin("IngestTask");
+        try {
+            run();
+            progress.finish();
+            return null;
+        } catch (Progress.CancelledException e) {
+            cleanup();
+            return context.getString(R.string.cancelled);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            e.printStackTrace();
+            cleanup();
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            Tracing.end("IngestTask", start);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(final String error) {
+        super.onPostExecute(error);
+        dialog.dismiss();
+        if (callback != null) {
+            callback.ingestComplete(stored ? files.size() : 0, deleted, error);
+        }
+    }
+
+    private void run() throws IOException, GeneralSecurityException {
+        Tuning tuning = Tuning.get(context);
+        CbcChainEncoder encoder = new CbcChainEncoder(cipher, CipherUtil.getFingerprintKey(),
+                FileFormat.DEFAULT_CHUNK_SIZE, tuning.bufferSize);
+        List<SpillOutputStream> outputs = new ArrayList<>();
+        List<java.io.File> targets = new ArrayList<>();
+        List<Fingerprints> fingerprints = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<MessageDigest> digests = new ArrayList<>();
+        for (WatchedFolder.Document document : documents) {
+            current++;
+            InputStream input;
+            try {
+                input = context.getContentResolver().openInputStream(document.uri);
+            } catch (FileNotFoundException e) {
+                // deleted meanwhile
+                continue;
+            }
+            // the size reported by the provider might be missing or outdated, so whether the
+            // file is stored inline depends on the actual ciphertext
+            java.io.File target = CryptoUtil.newEncryptedFile(context);
+            SpillOutputStream output = new SpillOutputStream(target,
+                    EncryptedStorage.getInlineLimit(context), document.size >= 0 ?
+                    FileFormat.chunkedLength(document.size, FileFormat.DEFAULT_CHUNK_SIZE) : -1,
+                    tuning.ioBufferSize);
+            // the output may spill any time until the encoder has finished, see cleanup()
+            written.add(target);
+            MessageDigest plaintextDigest = WatchedFolder.newDigest();
+            MessageDigest ciphertextDigest = WatchedFolder.newDigest();
+            long before = progress.getBytes();
+            try (InputStream in = new DigestInputStream(
+                    new BufferedInputStream(input, tuning.ioBufferSize), plaintextDigest)) {
+                // the encoder closes the output once the ciphertext is complete
+                fingerprints.add(encoder.encrypt(in,
+                        new DigestOutputStream(output, ciphertextDigest), progress));
+            }
+            document.hash = plaintextDigest.digest();
+            ingested.add(document);
+            outputs.add(output);
+            targets.add(target);
+            sizes.add(progress.getBytes() - before);
+            digests.add(ciphertextDigest);
+        }
+        // the cipher holds back ciphertext, so the outputs are only complete now
+        encoder.finish();
+        written.clear();
+        if (ingested.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> ciphertextHashes = new ArrayList<>(ingested.size());
+        for (int i = 0; i < ingested.size(); i++) {
+            WatchedFolder.Document document = ingested.get(i);
+            SpillOutputStream output = outputs.get(i);
+            Uri uri;
+            if (output.isSpilled()) {
+                written.add(targets.get(i));
+                uri = Uri.fromFile(targets.get(i));
+            } else {
+                uri = EncryptedStorage.newInlineUri();
+            }
+            File file = new File(-1, document.name, document.mime, uri, sizes.get(i), true);
+            file.fingerprints = fingerprints.get(i);
+            file.data = output.toByteArray();
+            files.add(file);
+            ciphertextHashes.add(digests.get(i).digest());
+        }
+        Durability.sync(context, written);
+        Database db = new Database(context);
+        try {
+            if (watched) {
+                db.addIngestedFiles(files, ingested);
+            } else {
+                db.addFiles(files);
+            }
+            stored = true;
+        } finally {
+            db.close();
+        }
+
+        if (deleteOriginals) {
+            for (int i = 0; i < files.size(); i++) {
+                if (verify(files.get(i), ciphertextHashes.get(i), ingested.get(i)) &&
+                        DocumentsContract.deleteDocument(context.getContentResolver(),
+                                ingested.get(i).uri)) {
+                    deleted++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the original document can be deleted
+     *
+     * @param file     the encrypted file
+     * @param expected the hash of the ciphertext produced by the cipher
+     * @param document the original document
+     * @return true, if the stored ciphertext matches the expected hash and the document has not
+     * changed since it was read
+     */
+    private boolean verify(final File file, final byte[] expected,
+                           final WatchedFolder.Document document) {
+        try (Cursor c = context.getContentResolver().query(document.uri,
+                new String[]{DocumentsContract.Document.COLUMN_SIZE,
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null)) {
+            if (c == null || !c.moveToFirst() || c.getLong(1) != document.modified ||
+                    (document.size >= 0 && c.getLong(0) != document.size)) {
+                return false;
+            }
+        }
+        try {
+            if (!file.isInline() && Durability.getPolicy(context) == GroupCommit.Policy.NONE) {
+                // make sure the ciphertext is on the storage before the original is gone
+                GroupCommit.sync(new java.io.File(file.uri.getPath()));
+            }
+            MessageDigest digest = WatchedFolder.newDigest();
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = EncryptedStorage.open(context, file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return Arrays.equals(digest.digest(), expected);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Removes the encrypted files after the task has failed or been cancelled. Once the files
+     * are in the database, they are kept.
+     */
+    private void cleanup() {
+        if (stored) {
+            return;
+        }
+        for (java.io.File f : written) {
+            if (f.exists() && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+        files.clear();
+    }
+}
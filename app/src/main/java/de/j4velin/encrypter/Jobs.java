@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * The {@link Scheduler} all encryption and decryption tasks run on. The limits of each priority
+ * class are stored in the settings and apply to the jobs started after the next app start.
+ * While jobs are running, {@link Throttling} lowers the limits if the device is under pressure.
+ */
+class Jobs {
+
+    private final static String PREFS = "settings";
+    private final static String KEY_CONCURRENCY = "concurrency_";
+    private final static String KEY_BANDWIDTH = "bandwidth_";
+
+    private static Scheduler scheduler;
+
+    private Jobs() {
+    }
+
+    /**
+     * @param context the context
+     * @return the scheduler, never null
+     */
+    static synchronized Scheduler get(final Context context) {
+        if (scheduler == null) {
+            Map<Scheduler.Priority, Scheduler.Limits> limits =
+                    new EnumMap<>(Scheduler.Priority.class);
+            for (Scheduler.Priority priority : Scheduler.Priority.values()) {
+                limits.put(priority, getLimits(context, priority));
+            }
+            scheduler = new Scheduler(limits);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Runs the task in the given priority class. If the task passes its progress to
+     * {@link #attach(Context, Progress, Scheduler.Priority)}, it yields to higher classes.
+     *
+     * @param context  the context
+     * @param task     the task to run
+     * @param priority the class to run the task in
+     * @param params   the parameters of the task
+     */
+    @SafeVarargs
+    static <P> void execute(final Context context, final AsyncTask<P, ?, ?> task,
+                            final Scheduler.Priority priority, final P... params) {
+        Executor executor = get(context).getExecutor(priority);
+        task.executeOnExecutor(executor, params);
+        Throttling.watch(context);
+    }
+
+    /**
+     * @param context  the context
+     * @param progress the progress of a task
+     * @param priority the class the task runs in
+     * @see Scheduler#attach(Progress, Scheduler.Priority)
+     */
+    static void attach(final Context context, final Progress progress,
+                       final Scheduler.Priority priority) {
+        get(context).attach(progress, priority);
+        Throttling.watch(context);
+    }
+
+    /**
+     * @param context  the context
+     * @param priority the priority class
+     * @return the configured limits of the class
+     */
+    static Scheduler.Limits getLimits(final Context context, final Scheduler.Priority priority) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        String name = priority.name().toLowerCase(Locale.US);
+        return new Scheduler.Limits(
+                prefs.getInt(KEY_CONCURRENCY + name, defaultConcurrency(priority)),
+                prefs.getLong(KEY_BANDWIDTH + name, 0));
+    }
+
+    /**
+     * @param context  the context
+     * @param priority the priority class
+     * @param limits   the new limits of the class
+     */
+    static void setLimits(final Context context, final Scheduler.Priority priority,
+                          final Scheduler.Limits limits) {
+        String name = priority.name().toLowerCase(Locale.US);
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_CONCURRENCY + name, limits.concurrency)
+                .putLong(KEY_BANDWIDTH + name, limits.bytesPerSecond).apply();
+    }
+
+    private static int defaultConcurrency(final Scheduler.Priority priority) {
+        switch (priority) {
+            case INTERACTIVE:
+                return 2;
+            case USER:
+                return 2;
+            default:
+                // bulk jobs are limited by the storage, more of them only compete for it
+                return 1;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.hardware.fingerprint.FingerprintManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.OpenableColumns;
 import android.provider.Settings;
@@ -32,22 +33,42 @@ import android.support.design.widget.CoordinatorLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import de.j4velin.encrypter.core.GroupCommit;
 
 public class MainActivity extends AppCompatActivity {
 
     private final static int REQUEST_INPUT = 1;
     private final static int REQUEST_PERMISSION = 2;
+    private final static int REQUEST_WATCHED_FOLDER = 3;
 
     private MainActivityFragment fragment;
     private CoordinatorLayout coordinatorLayout;
+    private WatchedFolder watchedFolder;
+    private Snackbar newFilesSnackbar;
+    private boolean ingesting;
+    /**
+     * True, once the key has been loaded
+     */
+    private boolean ready;
+    /**
+     * A share intent received before the key has been loaded
+     */
+    private Intent pendingShare;
 
     private enum Requirement {
         FINGERPRINT_PERMISSION,
@@ -77,28 +98,72 @@ public class MainActivity extends AppCompatActivity {
 
     private void init() {
         Requirement error = getMissingRequirement();
-        String exception = null;
         if (error == null) {
-            try {
-                if (CipherUtil.init()) {
-                    new AlertDialog.Builder(this).setTitle(R.string.key_generated)
-                            .setMessage(R.string.new_key_warning)
-                            .setPositiveButton(android.R.string.ok,
-                                    new DialogInterface.OnClickListener() {
-                                        @Override
-                                        public void onClick(final DialogInterface dialogInterface,
-                                                            int i) {
-                                            dialogInterface.dismiss();
-                                        }
-                                    }).create().show();
+            final Future<Boolean> initialization = CipherUtil.init();
+            // wait for the keystore in the background, the list is already shown meanwhile
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean keyGenerated = false;
+                    String exception = null;
+                    try {
+                        keyGenerated = initialization.get();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                        exception = e.getCause().getMessage();
+                    }
+                    final boolean showKeyGenerated = keyGenerated;
+                    final String initException = exception;
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Tracing.milestone("Crypto ready");
+                            if (!isFinishing() && !isDestroyed()) {
+                                initComplete(showKeyGenerated, null, initException);
+                            }
+                        }
+                    });
                 }
-            } catch (GeneralSecurityException | IOException e) {
-                e.printStackTrace();
-                exception = e.getMessage();
+            });
+        } else if (!error.equals(Requirement.FINGERPRINT_PERMISSION)) {
+            initComplete(false, error, null);
+        }
+    }
+
+    /**
+     * Shows the outcome of the initialization, if necessary
+     *
+     * @param keyGenerated true, if a new key has been generated
+     * @param error        the missing requirement or null
+     * @param exception    the message of the exception while loading the key or null
+     */
+    private void initComplete(boolean keyGenerated, final Requirement error,
+                              final String exception) {
+        if (keyGenerated) {
+            new AlertDialog.Builder(this).setTitle(R.string.key_generated)
+                    .setMessage(R.string.new_key_warning)
+                    .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(final DialogInterface dialogInterface, int i) {
+                            dialogInterface.dismiss();
+                        }
+                    }).create().show();
+        }
+        if (error == null && exception == null) {
+            ready = true;
+            // whatever was left in the trash when the app was stopped
+            Trash.purge(this);
+            if (pendingShare != null) {
+                encryptShared(pendingShare);
+                pendingShare = null;
             }
-        } else if (error.equals(Requirement.FINGERPRINT_PERMISSION)) {
-            // ignore
-            return;
+        }
+        if (error == null && exception == null && !Tuning.get(this).isCalibrated()) {
+            // one-time calibration, in parallel to any job the user starts meanwhile
+            new CalibrationTask(this, null, false)
+                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
         if (error != null || exception != null) {
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -159,6 +224,8 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
+        Tracing.markStart();
+        long start = Tracing.begin("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         coordinatorLayout = (CoordinatorLayout) findViewById(R.id.coordinatorLayout);
@@ -175,9 +242,191 @@ public class MainActivity extends AppCompatActivity {
         });
         fragment =
                 (MainActivityFragment) getSupportFragmentManager().findFragmentById(R.id.fragment);
+        watchedFolder = new WatchedFolder(this, new WatchedFolder.Listener() {
+            @Override
+            public void onNewFiles(final List<WatchedFolder.Document> documents) {
+                offerIngest(documents);
+            }
+        });
+        if (savedInstanceState == null && ShareIntake.isShare(getIntent())) {
+            pendingShare = getIntent();
+        }
         init();
+        Tracing.end("MainActivity.onCreate", start);
+    }
+
+
+    @Override
+    protected void onNewIntent(final Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        if (!ShareIntake.isShare(intent)) {
+            return;
+        }
+        if (ready) {
+            encryptShared(intent);
+        } else {
+            pendingShare = intent;
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        watchedFolder.start();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        watchedFolder.stop();
+    }
+
+    /**
+     * Offers to encrypt the new files found in the watched folder
+     *
+     * @param documents the new files
+     */
+    private void offerIngest(final List<WatchedFolder.Document> documents) {
+        if (ingesting) {
+            return;
+        }
+        if (newFilesSnackbar != null) {
+            newFilesSnackbar.dismiss();
+        }
+        newFilesSnackbar = Snackbar.make(coordinatorLayout, getResources()
+                .getQuantityString(R.plurals.watched_folder_new_files, documents.size(),
+                        documents.size()), Snackbar.LENGTH_INDEFINITE)
+                .setAction(R.string.encrypt, new View.OnClickListener() {
+                    @Override
+                    public void onClick(final View view) {
+                        newFilesSnackbar = null;
+                        ingest(documents, true);
+                    }
+                });
+        newFilesSnackbar.show();
+    }
+
+    /**
+     * Encrypts the files shared with us by another app
+     *
+     * @param intent the share intent
+     */
+    private void encryptShared(final Intent intent) {
+        List<WatchedFolder.Document> documents = ShareIntake.getDocuments(this, intent);
+        if (documents.isEmpty()) {
+            Snackbar.make(coordinatorLayout, R.string.share_empty, Snackbar.LENGTH_LONG).show();
+        } else {
+            ingest(documents, false);
+        }
+    }
+
+    /**
+     * Encrypts the given files with a single authentication
+     *
+     * @param documents the files
+     * @param watched   true, if the files are from the watched folder
+     */
+    private void ingest(final List<WatchedFolder.Document> documents, final boolean watched) {
+        CipherUtil.getCipher(this, new CipherUtil.CipherResultCallback() {
+            @Override
+            public void cipherAvailable(final Cipher c) {
+                if (watched) {
+                    ingesting = true;
+                }
+                new IngestTask(MainActivity.this, new IngestTask.Callback() {
+                    @Override
+                    public void ingestComplete(int encrypted, int deleted,
+                                               final String error) {
+                        String message;
+                        if (error != null) {
+                            message = getString(watched ? R.string.watched_folder_failed :
+                                    R.string.share_failed, error);
+                        } else if (watched) {
+                            message = getString(R.string.watched_folder_ingested, encrypted,
+                                    deleted);
+                        } else {
+                            message = getResources().getQuantityString(
+                                    R.plurals.share_encrypted, encrypted, encrypted);
+                        }
+                        Snackbar.make(coordinatorLayout, message, Snackbar.LENGTH_LONG)
+                                .show();
+                        if (watched) {
+                            ingesting = false;
+                            // files might have been added meanwhile
+                            watchedFolder.scheduleScan();
+                        }
+                    }
+                }, documents, c, watched, WatchedFolder.isDeleteAfterIngest(MainActivity.this))
+                        .start();
+            }
+
+            @Override
+            void cipherFailed(final Exception e) {
+                showError(e);
+            }
+        });
     }
 
+    /**
+     * Shows the settings of the watched folder or lets the user choose one
+     */
+    private void showWatchedFolder() {
+        if (WatchedFolder.getTree(this) == null) {
+            startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE),
+                    REQUEST_WATCHED_FOLDER);
+            return;
+        }
+        new AlertDialog.Builder(this).setTitle(R.string.watched_folder)
+                .setMultiChoiceItems(new CharSequence[]{getString(R.string.delete_originals)},
+                        new boolean[]{WatchedFolder.isDeleteAfterIngest(this)},
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialogInterface, int which,
+                                                boolean isChecked) {
+                                WatchedFolder.setDeleteAfterIngest(MainActivity.this,
+                                        isChecked);
+                            }
+                        })
+                .setPositiveButton(R.string.change_folder, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE),
+                                REQUEST_WATCHED_FOLDER);
+                    }
+                })
+                .setNeutralButton(R.string.stop_watching, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        watchedFolder.stop();
+                        WatchedFolder.clearTree(MainActivity.this);
+                    }
+                })
+                .setNegativeButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        dialogInterface.dismiss();
+                    }
+                }).create().show();
+    }
+
+    /**
+     * Lets the user choose the {@link Durability} policy
+     */
+    private void showDurability() {
+        final GroupCommit.Policy[] policies = GroupCommit.Policy.values();
+        new AlertDialog.Builder(this).setTitle(R.string.durability)
+                .setSingleChoiceItems(R.array.durability_policies,
+                        Durability.getPolicy(this).ordinal(),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialogInterface,
+                                                int which) {
+                                Durability.setPolicy(MainActivity.this, policies[which]);
+                                dialogInterface.dismiss();
+                            }
+                        }).create().show();
+    }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull final String[] permissions,
@@ -190,33 +439,34 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, final Intent data) {
         if (requestCode == REQUEST_INPUT && resultCode == RESULT_OK && data != null) {
-            Uri uri = data.getData();
-            String inputName = null;
-            int inputSize = -1;
-            String inputType = getContentResolver().getType(uri);
-            try (Cursor cursor = getContentResolver().query(uri, null, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    inputName =
-                            cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
-                    int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-                    if (!cursor.isNull(sizeIndex)) {
-                        inputSize = cursor.getInt(sizeIndex);
+            final Uri uri = data.getData();
+            // the name is looked up in the blind index, which needs the key store
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final File input = describe(uri);
+                    Database db = new Database(MainActivity.this);
+                    final File existing;
+                    try {
+                        existing = input.getName() != null ? db.findFile(input.getName()) : null;
+                    } finally {
+                        db.close();
                     }
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing() && !isDestroyed()) {
+                                encryptOrUpdate(input, existing);
+                            }
+                        }
+                    });
                 }
-            }
-            File input = new File(-1, inputName, inputType, uri, inputSize, false);
-            try {
-                CryptoUtil.encrypt(MainActivity.this, fragment, input);
-            } catch (GeneralSecurityException e) {
-                Snackbar.make(coordinatorLayout, getString(R.string.error_security, e.getMessage()),
-                        Snackbar.LENGTH_LONG).show();
-            } catch (FileNotFoundException e) {
-                Snackbar.make(coordinatorLayout, R.string.error_file_not_found,
-                        Snackbar.LENGTH_LONG).show();
-            } catch (IOException e) {
-                Snackbar.make(coordinatorLayout, getString(R.string.error_io, e.getMessage()),
-                        Snackbar.LENGTH_LONG).show();
-            }
+            });
+        } else if (requestCode == REQUEST_WATCHED_FOLDER && resultCode == RESULT_OK &&
+                data != null) {
+            watchedFolder.stop();
+            WatchedFolder.setTree(this, data.getData());
+            watchedFolder.start();
         } else
 
         {
@@ -225,10 +475,106 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    /**
+     * Looks up the name, type and size of a file chosen by the user
+     *
+     * @param uri the uri of the file
+     * @return the plaintext file
+     */
+    private File describe(final Uri uri) {
+        String inputName = null;
+        long inputSize = -1;
+        String inputType = getContentResolver().getType(uri);
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                inputName = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (!cursor.isNull(sizeIndex)) {
+                    inputSize = cursor.getLong(sizeIndex);
+                }
+            }
+        }
+        return new File(-1, inputName, inputType, uri, inputSize, false);
+    }
+
+    /**
+     * Encrypts the given file, asking the user first whether to update the existing entry with
+     * the same name, if there is one
+     *
+     * @param input    the plaintext file
+     * @param existing the entry with the same name or null
+     */
+    private void encryptOrUpdate(final File input, final File existing) {
+        if (existing != null) {
+            new AlertDialog.Builder(this)
+                    .setMessage(getString(R.string.update_existing, input.getName()))
+                    .setPositiveButton(R.string.update, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(final DialogInterface dialog, int which) {
+                            encrypt(input, existing);
+                        }
+                    })
+                    .setNegativeButton(R.string.keep_both, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(final DialogInterface dialog, int which) {
+                            encrypt(input, null);
+                        }
+                    }).show();
+        } else {
+            encrypt(input, null);
+        }
+    }
+
+    /**
+     * Encrypts the given file into a new entry or into an existing one
+     *
+     * @param input    the plaintext file
+     * @param existing the existing entry to update or null, to create a new one
+     */
+    private void encrypt(final File input, final File existing) {
+        if (existing != null) {
+            CryptoUtil.update(MainActivity.this, fragment, input, existing);
+        } else {
+            CryptoUtil.encrypt(MainActivity.this, fragment, input);
+        }
+    }
+
+    /**
+     * Shows why an operation could not be started
+     *
+     * @param e the error
+     */
+    void showError(final Exception e) {
+        String message;
+        if (e instanceof GeneralSecurityException) {
+            message = getString(R.string.error_security, e.getMessage());
+        } else if (e instanceof FileNotFoundException) {
+            message = getString(R.string.error_file_not_found);
+        } else {
+            message = getString(R.string.error_io, e.getMessage());
+        }
+        Snackbar.make(coordinatorLayout, message, Snackbar.LENGTH_LONG).show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(final Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        SearchView search =
+                (SearchView) MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        search.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(final String query) {
+                fragment.search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(final String query) {
+                fragment.search(query);
+                return true;
+            }
+        });
         return true;
     }
 
@@ -241,6 +587,22 @@ public class MainActivity extends AppCompatActivity {
 
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
+            showDurability();
+            return true;
+        } else if (id == R.id.action_export) {
+            fragment.exportFiles();
+            return true;
+        } else if (id == R.id.action_export_archive) {
+            fragment.exportArchive();
+            return true;
+        } else if (id == R.id.action_import_archive) {
+            fragment.importArchive();
+            return true;
+        } else if (id == R.id.action_watched_folder) {
+            showWatchedFolder();
+            return true;
+        } else if (id == R.id.action_diagnostics) {
+            Diagnostics.show(this);
             return true;
         }
 
@@ -19,59 +19,128 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * Fragment showing the list of isEncrypted files
  */
-public class MainActivityFragment extends Fragment implements CryptoCallback {
+public class MainActivityFragment extends Fragment
+        implements CryptoCallback, ExportTask.Callback, ArchiveTask.Callback, Trash.Callback {
 
     private FileAdapter adapter;
+    private FileIndex index;
     private final static int REQUEST_OUTPUT = 1;
+    private final static int REQUEST_EXPORT = 2;
+    private final static int REQUEST_EXPORT_ARCHIVE = 3;
+    private final static int REQUEST_IMPORT_ARCHIVE = 4;
+
+    private final static int FILTER_ALL = 0;
+    private final static int FILTER_IMAGES = 1;
+    private final static int FILTER_VIDEOS = 2;
+    private final static int FILTER_AUDIO = 3;
+    private final static int FILTER_OTHER = 4;
+
     private File selectedFile;
+    private int selectedFilter;
+    /**
+     * The current search or null, if all files are shown
+     */
+    private String query;
+    /**
+     * The action mode while files are selected or null
+     */
+    private ActionMode selection;
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(final ActionMode mode, final Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(final ActionMode mode, final Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(final ActionMode mode, final MenuItem item) {
+            if (item.getItemId() == R.id.action_select_all) {
+                for (File f : adapter.files) {
+                    adapter.selected.add(f.id);
+                }
+                selectionChanged();
+                return true;
+            } else if (item.getItemId() == R.id.action_delete) {
+                deleteSelected();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(final ActionMode mode) {
+            selection = null;
+            adapter.selected.clear();
+            adapter.notifyDataSetChanged();
+        }
+    };
 
     @Override
     public View onCreateView(final LayoutInflater inflater, final ViewGroup container,
                              final Bundle savedInstanceState) {
         RecyclerView recyclerView =
                 (RecyclerView) inflater.inflate(R.layout.fragment_main, container, false);
-        Database db = new Database(getContext());
-        adapter = new FileAdapter(db.getFiles());
-        db.close();
+        index = FileIndex.get(getContext());
+        adapter = new FileAdapter();
+        adapter.setHasStableIds(true);
         recyclerView.setHasFixedSize(true);
         recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
         recyclerView.setAdapter(adapter);
+        adapter.snapshot = adapter.files = index.addListener(adapter);
         return recyclerView;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        index.removeListener(adapter);
+    }
+
     @Override
     public void operationComplete(final File resultFile) {
-        if (resultFile.isEncrypted) {
-            adapter.files.add(resultFile);
-            adapter.notifyItemInserted(adapter.files.size());
-        } else {
+        // new and updated encrypted files reach the list through the index
+        if (!resultFile.isEncrypted) {
             Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
-                    getString(R.string.file_decrypted, resultFile.name), Snackbar.LENGTH_LONG)
+                    getString(R.string.file_decrypted, resultFile.getName()),
+                    Snackbar.LENGTH_LONG)
                     .setActionTextColor(getResources().getColor(R.color.colorPrimary, null))
                     .setAction(R.string.open_file, new View.OnClickListener() {
                         @Override
                         public void onClick(final View view) {
                             Intent intent = new Intent(Intent.ACTION_VIEW);
-                            intent.setDataAndType(resultFile.uri, resultFile.mime);
+                            intent.setDataAndType(resultFile.uri, resultFile.getMime());
                             intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                             startActivity(intent);
                         }
@@ -79,38 +148,255 @@ public class MainActivityFragment extends Fragment implements CryptoCallback {
         }
     }
 
+    @Override
+    public void operationFailed(final Exception e) {
+        if (getActivity() != null) {
+            ((MainActivity) getActivity()).showError(e);
+        }
+    }
+
+    @Override
+    public void deleteComplete(int deleted, final String error) {
+        if (getActivity() == null) {
+            return;
+        }
+        Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(), error != null ?
+                getString(R.string.delete_failed, error) : getResources()
+                .getQuantityString(R.plurals.files_deleted, deleted, deleted),
+                Snackbar.LENGTH_LONG).show();
+    }
+
+    /**
+     * Adds the file to the selection or removes it, and starts or ends the selection mode
+     * accordingly
+     *
+     * @param id the id of the file
+     */
+    private void toggleSelection(long id) {
+        if (!adapter.selected.remove(id)) {
+            adapter.selected.add(id);
+        }
+        if (selection == null && !adapter.selected.isEmpty()) {
+            selection = getActivity().startActionMode(selectionCallback);
+        }
+        selectionChanged();
+    }
+
+    private void selectionChanged() {
+        if (selection != null) {
+            if (adapter.selected.isEmpty()) {
+                selection.finish();
+                return;
+            }
+            selection.setTitle(getString(R.string.selected_files, adapter.selected.size()));
+        }
+        adapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Asks to delete the selected files. They are removed from the list immediately and the
+     * storage is freed in the background, see {@link Trash}.
+     */
+    private void deleteSelected() {
+        final List<File> files = new ArrayList<>(adapter.selected.size());
+        for (long id : adapter.selected) {
+            File f = index.getFile(id);
+            if (f != null) {
+                files.add(f);
+            }
+        }
+        new AlertDialog.Builder(getContext())
+                .setMessage(getResources().getQuantityString(R.plurals.ask_delete_files,
+                        files.size(), files.size()))
+                .setNegativeButton(android.R.string.no, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int i) {
+                        dialogInterface.dismiss();
+                    }
+                }).setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int i) {
+                        Trash.delete(getContext(), files, MainActivityFragment.this);
+                        if (selection != null) {
+                            selection.finish();
+                        }
+                        dialogInterface.dismiss();
+                    }
+                }).create().show();
+    }
+
+    @Override
+    public void exportComplete(final List<ExportTask.Result> results) {
+        int exported = 0;
+        StringBuilder failures = new StringBuilder();
+        for (ExportTask.Result result : results) {
+            if (result.isSuccess()) {
+                exported++;
+            } else {
+                failures.append('\n').append(getString(R.string.export_failure,
+                        result.file.getName(), result.error));
+            }
+        }
+        new AlertDialog.Builder(getContext()).setTitle(R.string.export_files)
+                .setMessage(getString(R.string.export_result, exported, results.size()) + failures)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int i) {
+                        dialogInterface.dismiss();
+                    }
+                }).create().show();
+    }
+
+    @Override
+    public void exportFailed(final Exception e) {
+        if (getActivity() != null) {
+            ((MainActivity) getActivity()).showError(e);
+        }
+    }
+
+    /**
+     * Asks the user which files to export and into which directory
+     */
+    void exportFiles() {
+        new AlertDialog.Builder(getContext()).setTitle(R.string.export_files)
+                .setItems(R.array.export_filters, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        selectedFilter = which;
+                        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+                        MainActivityFragment.this.startActivityForResult(intent, REQUEST_EXPORT);
+                    }
+                }).create().show();
+    }
+
+    /**
+     * Asks the user where to save the vault archive
+     */
+    void exportArchive() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("application/octet-stream");
+        intent.putExtra(Intent.EXTRA_TITLE, "vault.encv");
+        startActivityForResult(intent, REQUEST_EXPORT_ARCHIVE);
+    }
+
+    /**
+     * Asks the user for a vault archive to import
+     */
+    void importArchive() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        startActivityForResult(intent, REQUEST_IMPORT_ARCHIVE);
+    }
+
+    @Override
+    public void archiveComplete(final ArchiveTask task, final String error) {
+        String message;
+        if (error != null) {
+            message = getString(R.string.archive_failed, error);
+        } else if (task.isImport()) {
+            message = getString(R.string.archive_imported, task.getFiles().size());
+        } else {
+            message = getString(R.string.archive_exported, task.getFiles().size());
+        }
+        Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(), message,
+                Snackbar.LENGTH_LONG).show();
+    }
+
+    /**
+     * Looks up the files matching the given filter
+     *
+     * @param filter the filter
+     * @return the ids of the matching files or null, if all files match
+     */
+    private Set<Long> findFileIds(int filter) {
+        if (filter == FILTER_ALL) {
+            return null;
+        }
+        Database db = new Database(getContext());
+        try {
+            switch (filter) {
+                case FILTER_IMAGES:
+                    return db.findFileIdsByType(new String[]{"image"}, false);
+                case FILTER_VIDEOS:
+                    return db.findFileIdsByType(new String[]{"video"}, false);
+                case FILTER_AUDIO:
+                    return db.findFileIdsByType(new String[]{"audio"}, false);
+                case FILTER_OTHER:
+                default:
+                    return db.findFileIdsByType(new String[]{"image", "video", "audio"}, true);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Shows only the files whose name starts with the given text
+     *
+     * @param text the text, empty to show all files
+     */
+    void search(final String text) {
+        query = text.isEmpty() ? null : text;
+        if (query == null) {
+            adapter.setFilter(null);
+        } else {
+            new SearchTask().execute(query);
+        }
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, final Intent data) {
         if (resultCode == Activity.RESULT_OK) {
             if (requestCode == REQUEST_OUTPUT) {
-                try {
-                    CryptoUtil.decrypt(getContext(), this, selectedFile, data.getData());
-                } catch (GeneralSecurityException e) {
-                    Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
-                            getString(R.string.error_security, e.getMessage()),
-                            Snackbar.LENGTH_LONG).show();
-                } catch (FileNotFoundException e) {
-                    Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
-                            R.string.error_file_not_found, Snackbar.LENGTH_LONG).show();
-                } catch (IOException e) {
-                    Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
-                            getString(R.string.error_io, e.getMessage()), Snackbar.LENGTH_LONG)
-                            .show();
-                }
+                CryptoUtil.decrypt(getContext(), this, selectedFile, data.getData());
+            } else if (requestCode == REQUEST_EXPORT) {
+                new ExportFilesTask(selectedFilter).execute(data.getData());
+            } else if (requestCode == REQUEST_EXPORT_ARCHIVE) {
+                new ArchiveTask.Pack(getContext(), this, index.getFiles(), data.getData())
+                        .start();
+            } else if (requestCode == REQUEST_IMPORT_ARCHIVE) {
+                new ArchiveTask.Unpack(getContext(), this, data.getData()).start();
             }
         }
     }
 
-    private class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
+    private class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder>
+            implements FileIndex.Listener {
 
-        private final List<File> files;
+        /**
+         * The last snapshot of the {@link FileIndex}
+         */
+        private List<File> snapshot;
+        /**
+         * The files currently shown, which is the snapshot unless a search is active
+         */
+        private List<File> files;
+        /**
+         * The ids of the files found by the current search or null, if all files are shown
+         */
+        private Set<Long> filter;
+        /**
+         * The ids of the selected files
+         */
+        private final Set<Long> selected = new HashSet<>();
+        private final View.OnLongClickListener selectListener = new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(final View view) {
+                toggleSelection((long) view.getTag());
+                return true;
+            }
+        };
         private final View.OnClickListener deleteListener = new View.OnClickListener() {
             @Override
             public void onClick(final View view) {
-                final int position = (int) view.getTag();
-                final File file = files.get(position);
+                final File file = index.getFile((long) view.getTag());
+                if (file == null) {
+                    return;
+                }
                 new AlertDialog.Builder(getContext())
-                        .setMessage(getString(R.string.ask_delete, file.name))
+                        .setMessage(getString(R.string.ask_delete, file.getName()))
                         .setNegativeButton(android.R.string.no,
                                 new DialogInterface.OnClickListener() {
                                     @Override
@@ -122,14 +408,8 @@ public class MainActivityFragment extends Fragment implements CryptoCallback {
                         new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(final DialogInterface dialogInterface, int i) {
-                                java.io.File f = new java.io.File(file.uri.getPath());
-                                if (!f.exists() || f.delete()) {
-                                    Database db = new Database(getContext());
-                                    db.deleteFile(file.id);
-                                    db.close();
-                                    files.remove(position);
-                                    notifyItemRemoved(position);
-                                }
+                                Trash.delete(getContext(), Collections.singletonList(file),
+                                        MainActivityFragment.this);
                                 dialogInterface.dismiss();
                             }
                         }).create().show();
@@ -138,18 +418,58 @@ public class MainActivityFragment extends Fragment implements CryptoCallback {
         private final View.OnClickListener decryptListener = new View.OnClickListener() {
             @Override
             public void onClick(final View view) {
-                int position = (int) view.getTag();
-                selectedFile = files.get(position);
+                if (selection != null) {
+                    toggleSelection((long) view.getTag());
+                    return;
+                }
+                selectedFile = index.getFile((long) view.getTag());
+                if (selectedFile == null) {
+                    return;
+                }
                 Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
-                intent.setType(selectedFile.mime);
-                intent.putExtra(Intent.EXTRA_TITLE, selectedFile.name);
+                intent.setType(selectedFile.getMime());
+                intent.putExtra(Intent.EXTRA_TITLE, selectedFile.getName());
                 MainActivityFragment.this.startActivityForResult(intent, REQUEST_OUTPUT);
             }
         };
 
-        private FileAdapter(final List<File> files) {
-            this.files = files;
+        @Override
+        public void onFilesChanged(final List<File> snapshot, final FileIndex.ChangeSet changes) {
+            this.snapshot = snapshot;
+            if (filter == null) {
+                files = snapshot;
+                changes.dispatchTo(this);
+            } else {
+                // the changes do not apply to the search result, so search again
+                setFilter(filter);
+                new SearchTask().execute(query);
+            }
+        }
+
+        /**
+         * Shows only the files with the given ids
+         *
+         * @param ids the ids or null, to show all files
+         */
+        private void setFilter(final Set<Long> ids) {
+            filter = ids;
+            if (ids == null) {
+                files = snapshot;
+            } else {
+                files = new ArrayList<>(ids.size());
+                for (File f : snapshot) {
+                    if (ids.contains(f.id)) {
+                        files.add(f);
+                    }
+                }
+            }
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return files.get(position).id;
         }
 
         @Override
@@ -158,32 +478,39 @@ public class MainActivityFragment extends Fragment implements CryptoCallback {
                     .inflate(R.layout.listitem, parent, false);
             v.findViewById(R.id.delete).setOnClickListener(deleteListener);
             v.setOnClickListener(decryptListener);
+            v.setOnLongClickListener(selectListener);
             return new ViewHolder(v);
         }
 
         @Override
         public void onBindViewHolder(final ViewHolder holder, int position) {
             File f = files.get(position);
-            holder.name.setText(f.name);
+            // revealed by the FileIndex in the background, so no decryption happens here
+            String mime = f.getMime() != null ? f.getMime() : "";
+            holder.name.setText(f.getName());
             holder.size.setText(File.formatSize(f.size));
-            if (f.mime.contains("/")) {
-                holder.mime.setContentDescription(f.mime.substring(0, f.mime.indexOf("/")));
+            if (mime.contains("/")) {
+                holder.mime.setContentDescription(mime.substring(0, mime.indexOf("/")));
             } else {
                 holder.mime.setContentDescription(getString(R.string.unknown_file));
             }
+            boolean isSelected = selected.contains(f.id);
             int icon;
-            if (f.mime.startsWith("image")) {
+            if (isSelected) {
+                icon = R.drawable.ic_check;
+            } else if (mime.startsWith("image")) {
                 icon = R.drawable.ic_photo;
-            } else if (f.mime.startsWith("video")) {
+            } else if (mime.startsWith("video")) {
                 icon = R.drawable.ic_movie;
-            } else if (f.mime.startsWith("audio")) {
+            } else if (mime.startsWith("audio")) {
                 icon = R.drawable.ic_sound;
             } else {
                 icon = R.drawable.ic_file;
             }
             holder.mime.setImageResource(icon);
-            holder.delete.setTag(position);
-            holder.card.setTag(position);
+            holder.delete.setTag(f.id);
+            holder.card.setTag(f.id);
+            holder.card.setActivated(isSelected);
         }
 
         @Override
@@ -208,4 +535,83 @@ public class MainActivityFragment extends Fragment implements CryptoCallback {
         }
     }
 
+    /**
+     * Looks up the files whose name starts with the given text in the blind index. Text longer
+     * than the indexed prefixes is matched by decrypting the names of the candidates.
+     */
+    private class SearchTask extends AsyncTask<String, Void, Set<Long>> {
+
+        private String text;
+
+        @Override
+        protected Set<Long> doInBackground(final String... texts) {
+            text = texts[0];
+            Database db = new Database(getContext());
+            Set<Long> ids;
+            try {
+                ids = db.findFileIds(text);
+            } finally {
+                db.close();
+            }
+            if (text.length() > Metadata.MAX_PREFIX_LENGTH) {
+                String prefix = text.toLowerCase(Locale.ROOT);
+                Iterator<Long> it = ids.iterator();
+                while (it.hasNext()) {
+                    File f = index.getFile(it.next());
+                    if (f == null || f.getName() == null ||
+                            !f.getName().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                        it.remove();
+                    }
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        protected void onPostExecute(final Set<Long> ids) {
+            // ignore the result if the search has changed meanwhile
+            if (text.equals(query)) {
+                adapter.setFilter(ids);
+            }
+        }
+    }
+
+    /**
+     * Looks up the files of a filter in the blind index and exports them
+     */
+    private class ExportFilesTask extends AsyncTask<Uri, Void, List<File>> {
+
+        private final int filter;
+        private Uri tree;
+
+        private ExportFilesTask(int filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<File> doInBackground(final Uri... trees) {
+            tree = trees[0];
+            Set<Long> ids = findFileIds(filter);
+            List<File> files = new ArrayList<>();
+            for (File f : index.getFiles()) {
+                if (ids == null || ids.contains(f.id)) {
+                    files.add(f);
+                }
+            }
+            return files;
+        }
+
+        @Override
+        protected void onPostExecute(final List<File> files) {
+            if (getActivity() == null) {
+                return;
+            }
+            if (files.isEmpty()) {
+                Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
+                        R.string.no_files_to_export, Snackbar.LENGTH_LONG).show();
+            } else {
+                CryptoUtil.export(getContext(), MainActivityFragment.this, files, tree);
+            }
+        }
+    }
 }
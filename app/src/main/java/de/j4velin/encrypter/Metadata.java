@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import de.j4velin.encrypter.core.Governor;
+
+/**
+ * Encryption of the file names and mime types stored in the {@link Database}.
+ * <p>
+ * Values are sealed with AES/GCM and stored together with a blind index: tokens computed with
+ * a keyed HMAC, so that equal values result in equal tokens, but the tokens reveal nothing
+ * without the key. The database can still look up files by exact name, name prefix or mime type
+ * with an indexed query, and only the rows which are actually shown have to be decrypted.
+ * <p>
+ * Both keys live in the key store, but unlike the key for the file contents, they can be used
+ * without authentication. Otherwise every start of the app would require a fingerprint just to
+ * show the list.
+ */
+class Metadata {
+
+    /**
+     * Name prefixes up to this length are indexed, longer prefixes are matched by decrypting the
+     * candidates
+     */
+    final static int MAX_PREFIX_LENGTH = 8;
+    /**
+     * Number of decrypted entries to keep, which covers the visible part of the list
+     */
+    private final static int CACHE_SIZE = 64;
+    private final static int TOKEN_LENGTH = 16;
+    private final static int GCM_IV_LENGTH = 12;
+    private final static int GCM_TAG_LENGTH = 128;
+    private final static String TRANSFORMATION = "AES/GCM/NoPadding";
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static String FIELD_NAME = "name";
+    private final static String FIELD_PREFIX = "prefix";
+    private final static String FIELD_TYPE = "type";
+
+    private static Metadata instance;
+
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final Mac mac;
+    private final LruCache<File, String[]> cache = new LruCache<>(CACHE_SIZE);
+
+    private Metadata() throws GeneralSecurityException, IOException {
+        this(CipherUtil.getMetadataKey(), CipherUtil.getBlindIndexKey());
+    }
+
+    /**
+     * @param key      the AES key to seal the values with
+     * @param indexKey the {@link CipherUtil#BLIND_INDEX_ALGORITHM} key of the blind index
+     */
+    Metadata(final SecretKey key, final SecretKey indexKey) throws GeneralSecurityException {
+        this.key = key;
+        cipher = Cipher.getInstance(TRANSFORMATION);
+        mac = Mac.getInstance(CipherUtil.BLIND_INDEX_ALGORITHM);
+        mac.init(indexKey);
+    }
+
+    /**
+     * Gets the instance, creating the keys if necessary. Waits for the key store to be
+     * initialized.
+     *
+     * @return the instance
+     * @throws IllegalStateException if the keys are not available
+     */
+    static synchronized Metadata get() {
+        if (instance == null) {
+            try {
+                instance = new Metadata();
+            } catch (GeneralSecurityException | IOException e) {
+                throw new IllegalStateException("Metadata keys not available", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the instance, so that tests can use keys which do not live in the key store
+     *
+     * @param metadata the new instance or null, to create it from the key store again
+     */
+    static synchronized void set(final Metadata metadata) {
+        instance = metadata;
+    }
+
+    /**
+     * Encrypts a value
+     *
+     * @param value the value, may be null
+     * @return the IV followed by the ciphertext or null, if the value is null
+     */
+    synchronized byte[] seal(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            byte[] iv = cipher.getIV();
+            byte[] ciphertext = cipher.doFinal(value.getBytes(UTF8));
+            byte[] sealed = Arrays.copyOf(iv, iv.length + ciphertext.length);
+            System.arraycopy(ciphertext, 0, sealed, iv.length, ciphertext.length);
+            return sealed;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts a value sealed with {@link #seal(String)}
+     *
+     * @param sealed the sealed value, may be null
+     * @return the value or null, if the sealed value is null
+     */
+    synchronized String open(final byte[] sealed) {
+        if (sealed == null) {
+            return null;
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(GCM_TAG_LENGTH, sealed, 0, GCM_IV_LENGTH));
+            return new String(cipher.doFinal(sealed, GCM_IV_LENGTH, sealed.length - GCM_IV_LENGTH),
+                    UTF8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Shrinks the cache of the instance, if there is one, to the given memory pressure
+     *
+     * @param pressure the memory pressure
+     */
+    static void trim(final Governor.Pressure pressure) {
+        Metadata metadata;
+        synchronized (Metadata.class) {
+            metadata = instance;
+        }
+        if (metadata != null) {
+            // names are decrypted again when needed, which is cheap compared to the files
+            metadata.cache.resize(Math.max(1, CACHE_SIZE >> pressure.ordinal()));
+        }
+    }
+
+    /**
+     * Gets the original name and mime type of a file loaded from the database, decrypting them
+     * if they are not cached
+     *
+     * @param file the file
+     * @return the name and the mime type
+     */
+    String[] reveal(final File file) {
+        String[] values = cache.get(file);
+        if (values == null) {
+            values = new String[]{open(file.sealedName), open(file.sealedMime)};
+            cache.put(file, values);
+        }
+        return values;
+    }
+
+    /**
+     * @param name the file name, may be null
+     * @return the token to look up the exact name or null, if the name is null
+     */
+    String nameToken(final String name) {
+        return name != null ? token(FIELD_NAME, name) : null;
+    }
+
+    /**
+     * @param mime the mime type, may be null
+     * @return the token to look up the top-level type of the mime type, e.g. "image", or null,
+     * if the mime type is null
+     */
+    String typeToken(final String mime) {
+        if (mime == null) {
+            return null;
+        }
+        int slash = mime.indexOf('/');
+        return typeTokenOf(slash >= 0 ? mime.substring(0, slash) : mime);
+    }
+
+    /**
+     * @param type the top-level type, e.g. "image"
+     * @return the token for the given type
+     */
+    String typeTokenOf(final String type) {
+        return token(FIELD_TYPE, type.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param prefix the prefix, only its first {@link #MAX_PREFIX_LENGTH} characters are used
+     * @return the token to look up names starting with the given prefix, ignoring case
+     */
+    String prefixToken(final String prefix) {
+        String p = prefix.toLowerCase(Locale.ROOT);
+        return token(FIELD_PREFIX, p.substring(0, Math.min(p.length(), MAX_PREFIX_LENGTH)));
+    }
+
+    /**
+     * @param name the file name, may be null
+     * @return the tokens of all prefixes of the name, up to {@link #MAX_PREFIX_LENGTH}
+     */
+    List<String> prefixTokens(final String name) {
+        if (name == null) {
+            return new ArrayList<>(0);
+        }
+        String n = name.toLowerCase(Locale.ROOT);
+        int count = Math.min(n.length(), MAX_PREFIX_LENGTH);
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            tokens.add(token(FIELD_PREFIX, n.substring(0, i)));
+        }
+        return tokens;
+    }
+
+    /**
+     * Computes a token. The field is part of the input, so that equal values of different
+     * fields result in different tokens.
+     */
+    private synchronized String token(final String field, final String value) {
+        mac.update(field.getBytes(UTF8));
+        mac.update((byte) 0);
+        byte[] hash = mac.doFinal(value.getBytes(UTF8));
+        StringBuilder hex = new StringBuilder(TOKEN_LENGTH * 2);
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+}
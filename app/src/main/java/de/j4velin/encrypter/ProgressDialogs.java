@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.text.format.DateUtils;
+
+import de.j4velin.encrypter.core.Progress;
+
+/**
+ * Utility class to show the progress of a job in a cancelable {@link ProgressDialog}
+ */
+class ProgressDialogs {
+
+    private ProgressDialogs() {
+    }
+
+    /**
+     * Creates a progress dialog, which cancels the given progress when the dialog is canceled
+     *
+     * @param context  the context
+     * @param progress the progress to show
+     * @return the dialog, not yet shown
+     */
+    static ProgressDialog create(final Context context, final Progress progress) {
+        ProgressDialog dialog = new ProgressDialog(context);
+        dialog.setCancelable(true);
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(final DialogInterface dialogInterface) {
+                progress.cancel();
+            }
+        });
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                context.getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int which) {
+                        dialogInterface.cancel();
+                    }
+                });
+        boolean sizeKnown = progress.getTotal() > 0;
+        dialog.setProgressStyle(
+                sizeKnown ? ProgressDialog.STYLE_HORIZONTAL : ProgressDialog.STYLE_SPINNER);
+        dialog.setMax(sizeKnown ? (int) (progress.getTotal() >> unitShift(progress)) : 0);
+        dialog.setProgressNumberFormat(unitShift(progress) == 0 ? "%1$,d / %2$,d Bytes" :
+                "%1$,d / %2$,d KiB");
+        dialog.setMessage(context.getString(R.string.progress_starting));
+        return dialog;
+    }
+
+    /**
+     * Updates the dialog with the current state of the progress. Must be called on the UI thread.
+     *
+     * @param dialog   the dialog created by {@link #create(Context, Progress)}
+     * @param progress the progress
+     */
+    static void update(final ProgressDialog dialog, final Progress progress) {
+        Context context = dialog.getContext();
+        dialog.setProgress((int) Math.min(Integer.MAX_VALUE,
+                progress.getBytes() >> unitShift(progress)));
+        long remaining = progress.getSecondsRemaining();
+        String rate = File.formatSize(progress.getBytesPerSecond());
+        if (remaining >= 0) {
+            dialog.setMessage(context.getString(R.string.progress_rate_eta, rate,
+                    DateUtils.formatElapsedTime(remaining)));
+        } else {
+            dialog.setMessage(context.getString(R.string.progress_rate, rate));
+        }
+    }
+
+    /**
+     * @return the number of bits to shift the byte counts by, so they fit into the int range of
+     * the dialog
+     */
+    private static int unitShift(final Progress progress) {
+        return progress.getTotal() > Integer.MAX_VALUE ? 10 : 0;
+    }
+}
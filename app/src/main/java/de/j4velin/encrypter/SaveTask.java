@@ -18,34 +18,67 @@ package de.j4velin.encrypter;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.os.AsyncTask;
+import android.provider.DocumentsContract;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
 
 /**
- * Background task to save the isEncrypted/decrypted file to the file system
+ * Background task to save the isEncrypted/decrypted file to the file system. An encrypted file is
+ * added to the database by the task as well, see {@link Durability}.
  */
-class SaveTask extends AsyncTask<SaveTask.Streams, Integer, Void> {
+class SaveTask extends AsyncTask<SaveTask.Operation, Long, Boolean> {
 
     private final ProgressDialog dialog;
-    private final static int UPDATE_PERCENT = 5;
-    private final static int BUFFER_SIZE = 8192;
 
     private final Context context;
+    /**
+     * The file the operation is expected to write
+     */
     private final File resultFile;
+    /**
+     * The file the operation has written, once it is complete
+     */
+    private File result;
     private final CryptoCallback callback;
+    private final Progress progress;
+    private final Scheduler.Priority priority;
 
     SaveTask(final Context context, final CryptoCallback callback, final File resultFile) {
         this.context = context;
         this.resultFile = resultFile;
         this.callback = callback;
-        dialog = new ProgressDialog(context);
-        dialog.setCancelable(false);
-        dialog.setProgressStyle(resultFile.size > 0 ? ProgressDialog.STYLE_HORIZONTAL :
-                ProgressDialog.STYLE_SPINNER);
-        dialog.setMax(resultFile.size);
-        dialog.setProgressNumberFormat("%1$,d / %2$,d Bytes");
+        progress = new Progress(resultFile.size);
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                publishProgress(p.getBytes());
+            }
+        });
+        dialog = ProgressDialogs.create(context, progress);
+        // the user waits for a decrypted file, while a new one is only added to the list
+        priority = resultFile.isEncrypted ? Scheduler.Priority.USER :
+                Scheduler.Priority.INTERACTIVE;
+        Jobs.attach(context, progress, priority);
+    }
+
+    /**
+     * Starts the task on the {@link Jobs} scheduler
+     *
+     * @param operation the operation to run
+     */
+    void start(final Operation operation) {
+        Jobs.execute(context, this, priority, operation);
+    }
+
+    /**
+     * @return the progress of this task, which can also be used to cancel it
+     */
+    Progress getProgress() {
+        return progress;
     }
 
     @Override
@@ -55,65 +88,77 @@ class SaveTask extends AsyncTask<SaveTask.Streams, Integer, Void> {
     }
 
     @Override
-    protected void onPostExecute(Void aVoid) {
-        super.onPostExecute(aVoid);
+    protected void onPostExecute(final Boolean success) {
+        super.onPostExecute(success);
         dialog.dismiss();
-        Database db = new Database(context);
-        resultFile.id = db.addFile(resultFile);
-        db.close();
+        if (!success) {
+            return;
+        }
         if (callback != null) {
-            callback.operationComplete(resultFile);
+            callback.operationComplete(result);
         }
     }
 
     @Override
-    protected void onProgressUpdate(Integer... values) {
-        dialog.setProgress(values[0]);
+    protected void onProgressUpdate(final Long... values) {
+        ProgressDialogs.update(dialog, progress);
     }
 
     @Override
-    protected Void doInBackground(final Streams... parameters) {
-        int bytesRead = 0;
-        int percentage = (int) (resultFile.size * (UPDATE_PERCENT / 100f));
-        InputStream in = parameters[0].input;
-        OutputStream out = parameters[0].output;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
-        int nextUpdate = percentage;
+    protected Boolean doInBackground(final Operation... operations) {
+        boolean success = false;
         try {
-            while ((read = in.read(buffer)) > 0) {
-                out.write(buffer, 0, read);
-                bytesRead += read;
-                if (bytesRead > nextUpdate) {
-                    publishProgress(bytesRead);
-                    nextUpdate = bytesRead + percentage;
-                }
+            result = operations[0].run(progress);
+            if (result.isEncrypted) {
+                // only add the entry once the data is durable, see Durability
+                Durability.addFile(context, result);
             }
-            out.flush();
-        } catch (IOException e) {
+            success = true;
+        } catch (Progress.CancelledException e) {
+            // partial output is removed below
+        } catch (IOException | GeneralSecurityException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                out.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            try {
-                in.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
-        return null;
+        if (success) {
+            progress.finish();
+        } else {
+            deletePartialOutput();
+        }
+        return success;
     }
 
-    static class Streams {
-        private final InputStream input;
-        private final OutputStream output;
-
-        Streams(final InputStream input, final OutputStream output) {
-            this.input = input;
-            this.output = output;
+    /**
+     * Removes the incomplete result file after the task has been cancelled or failed
+     */
+    private void deletePartialOutput() {
+        try {
+            if (resultFile.isInline()) {
+                // nothing has been stored yet
+                resultFile.data = null;
+            } else if ("file".equals(resultFile.uri.getScheme())) {
+                java.io.File f = new java.io.File(resultFile.uri.getPath());
+                if (f.exists() && !f.delete()) {
+                    f.deleteOnExit();
+                }
+            } else {
+                DocumentsContract.deleteDocument(context.getContentResolver(), resultFile.uri);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
+
+    /**
+     * The actual encryption or decryption, executed in the background
+     */
+    interface Operation {
+        /**
+         * Processes the file and closes all streams
+         *
+         * @param progress the progress to report to
+         * @return the resulting file, usually the one the task has been created with. An
+         * encrypted file might end up inline instead.
+         */
+        File run(final Progress progress) throws IOException, GeneralSecurityException;
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.ClipData;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the files shared with us by other apps through {@link Intent#ACTION_SEND} or
+ * {@link Intent#ACTION_SEND_MULTIPLE}. The files are encrypted as one batch by an
+ * {@link IngestTask}, which streams them directly from the sending app, so no plaintext copy is
+ * ever stored.
+ */
+class ShareIntake {
+
+    private ShareIntake() {
+    }
+
+    /**
+     * @param intent the intent
+     * @return true, if the intent shares files with us
+     */
+    static boolean isShare(final Intent intent) {
+        return intent != null && (Intent.ACTION_SEND.equals(intent.getAction()) ||
+                Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction()));
+    }
+
+    /**
+     * Gets the shared files. Providers which do not report the size of a file are asked for the
+     * size of its descriptor instead, which is still unknown for streams like pipes.
+     *
+     * @param context the context
+     * @param intent  the share intent
+     * @return the shared files, in the order of the intent
+     */
+    static List<WatchedFolder.Document> getDocuments(final Context context, final Intent intent) {
+        // the uris are usually in the extra and the clip data, which carries the grants
+        Set<Uri> uris = new LinkedHashSet<>();
+        if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+            List<Uri> stream = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (stream != null) {
+                uris.addAll(stream);
+            }
+        } else {
+            Uri stream = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            if (stream != null) {
+                uris.add(stream);
+            }
+        }
+        ClipData clip = intent.getClipData();
+        for (int i = 0; clip != null && i < clip.getItemCount(); i++) {
+            if (clip.getItemAt(i).getUri() != null) {
+                uris.add(clip.getItemAt(i).getUri());
+            }
+        }
+        uris.remove(null);
+
+        List<WatchedFolder.Document> documents = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            String name = null;
+            long size = -1;
+            try (Cursor c = context.getContentResolver().query(uri,
+                    new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null,
+                    null)) {
+                if (c != null && c.moveToFirst()) {
+                    name = c.getString(0);
+                    size = c.isNull(1) ? -1 : c.getLong(1);
+                }
+            } catch (SecurityException | IllegalArgumentException e) {
+                // some senders only grant access to the content, not to its metadata
+                e.printStackTrace();
+            }
+            if (size < 0) {
+                size = statSize(context, uri);
+            }
+            if (name == null) {
+                name = uri.getLastPathSegment() != null ? uri.getLastPathSegment() : "shared";
+            }
+            String mime = context.getContentResolver().getType(uri);
+            documents.add(new WatchedFolder.Document(uri, name,
+                    mime != null ? mime : intent.getType(), size, 0));
+        }
+        return documents;
+    }
+
+    /**
+     * @return the size of the descriptor of the given uri or -1, if unknown
+     */
+    private static long statSize(final Context context, final Uri uri) {
+        try (ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(uri,
+                "r")) {
+            return fd != null ? fd.getStatSize() : -1;
+        } catch (IOException | SecurityException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects the encrypted data of a file in memory as long as the file can be stored inline, see
+ * {@link EncryptedStorage}, and moves it into a file as soon as it grows beyond that.
+ * <p>
+ * The decision is based on the bytes actually written, as the size reported for the plaintext is
+ * only a hint and might be missing or wrong. The file is only created if the data spills over.
+ */
+class SpillOutputStream extends OutputStream {
+
+    private final java.io.File file;
+    private final long limit;
+    private final long expectedLength;
+    private final int bufferSize;
+    private ByteArrayOutputStream memory;
+    private OutputStream out;
+
+    /**
+     * @param file           the file to move the data to, if it exceeds the limit
+     * @param limit          the maximum number of bytes kept in memory
+     * @param expectedLength the expected length of the data, to preallocate the file with, or
+     *                       -1 if not known
+     * @param bufferSize     the buffer size for writing the file
+     */
+    SpillOutputStream(final java.io.File file, long limit, long expectedLength, int bufferSize) {
+        this.file = file;
+        this.limit = limit;
+        this.expectedLength = expectedLength;
+        this.bufferSize = bufferSize;
+        memory = new ByteArrayOutputStream(
+                (int) Math.max(0, Math.min(limit, expectedLength >= 0 ? expectedLength : 0)));
+    }
+
+    /**
+     * @return true, if the data has been moved into the file
+     */
+    boolean isSpilled() {
+        return out != null;
+    }
+
+    /**
+     * @return the data, if it has not been moved into the file, otherwise null
+     */
+    byte[] toByteArray() {
+        return memory != null ? memory.toByteArray() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        if (out == null && memory.size() + (long) len > limit) {
+            spill();
+        }
+        if (out != null) {
+            out.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+    }
+
+    private void spill() throws IOException {
+        out = new BufferedOutputStream(Durability.newOutputStream(file, expectedLength),
+                bufferSize);
+        memory.writeTo(out);
+        memory = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
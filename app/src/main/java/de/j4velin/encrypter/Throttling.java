@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+import de.j4velin.encrypter.core.Governor;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * Runs the {@link Governor} of the {@link Jobs}, fed by the battery temperature, the memory
+ * callbacks of the system and the throughput of the jobs. The signals are sampled on the main
+ * thread while jobs are running or the pressure has not gone yet.
+ */
+class Throttling {
+
+    private final static long SAMPLE_INTERVAL_MS = 5000;
+
+    private static Governor governor;
+    private static Handler handler;
+    private static boolean sampling;
+
+    private Throttling() {
+    }
+
+    /**
+     * @param context the context
+     * @return the governor, never null
+     */
+    static synchronized Governor get(final Context context) {
+        if (governor == null) {
+            Context appContext = context.getApplicationContext();
+            MemorySignal memory = new MemorySignal(appContext);
+            governor = new Governor(Jobs.get(appContext),
+                    Arrays.asList(new BatterySignal(appContext), memory));
+            governor.addListener(new Governor.Listener() {
+                @Override
+                public void pressureChanged(final Governor.Pressure pressure) {
+                    Tracing.milestone("Pressure " + pressure);
+                    Metadata.trim(pressure);
+                }
+            });
+            appContext.registerComponentCallbacks(memory);
+            handler = new Handler(Looper.getMainLooper());
+        }
+        return governor;
+    }
+
+    /**
+     * Starts sampling the signals, unless that is already running. May be called from any
+     * thread.
+     *
+     * @param context the context
+     */
+    static void watch(final Context context) {
+        final Governor g = get(context);
+        final Scheduler scheduler = Jobs.get(context);
+        synchronized (Throttling.class) {
+            if (sampling) {
+                return;
+            }
+            sampling = true;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                g.update(SystemClock.elapsedRealtime());
+                synchronized (Throttling.class) {
+                    sampling = scheduler.getRunning() > 0 ||
+                            g.getPressure() != Governor.Pressure.NONE;
+                }
+                if (sampling) {
+                    handler.postDelayed(this, SAMPLE_INTERVAL_MS);
+                }
+            }
+        });
+    }
+
+    /**
+     * The temperature of the battery, the only temperature available on all devices. It rises
+     * with the load long before the CPU is throttled.
+     */
+    private static class BatterySignal implements Governor.Signal {
+        /**
+         * Temperatures in tenths of a degree Celsius from which on each pressure is reported
+         */
+        private final static int[] THRESHOLDS = {400, 430, 460};
+
+        private final Context context;
+        private final IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+        private BatterySignal(final Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public Governor.Pressure sample(long now) {
+            // sticky, so no receiver is needed to read the last value
+            Intent battery = context.registerReceiver(null, filter);
+            int temperature = battery != null ?
+                    battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) : 0;
+            int level = 0;
+            while (level < THRESHOLDS.length && temperature >= THRESHOLDS[level]) {
+                level++;
+            }
+            return Governor.Pressure.values()[level];
+        }
+    }
+
+    /**
+     * The memory callbacks of the system. As there is no callback once the memory is available
+     * again, a level is reported until {@link #HOLD_MS} after the last callback.
+     */
+    private static class MemorySignal implements Governor.Signal, ComponentCallbacks2 {
+        private final static long HOLD_MS = 60 * 1000;
+
+        private final Context context;
+        private Governor.Pressure pressure = Governor.Pressure.NONE;
+        private long time;
+
+        private MemorySignal(final Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public synchronized Governor.Pressure sample(long now) {
+            return now - time < HOLD_MS ? pressure : Governor.Pressure.NONE;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            Governor.Pressure p;
+            if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                p = Governor.Pressure.SEVERE;
+            } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+                p = Governor.Pressure.MODERATE;
+            } else if (level >= TRIM_MEMORY_BACKGROUND ||
+                    level == TRIM_MEMORY_RUNNING_MODERATE) {
+                p = Governor.Pressure.LIGHT;
+            } else {
+                // only the UI has been hidden
+                return;
+            }
+            report(p);
+        }
+
+        @Override
+        public void onLowMemory() {
+            report(Governor.Pressure.SEVERE);
+        }
+
+        @Override
+        public void onConfigurationChanged(final Configuration configuration) {
+        }
+
+        private void report(final Governor.Pressure p) {
+            synchronized (this) {
+                long now = SystemClock.elapsedRealtime();
+                if (now - time >= HOLD_MS || p.compareTo(pressure) > 0) {
+                    pressure = p;
+                }
+                time = now;
+            }
+            // applied right away, the memory is needed now
+            get(context).update(SystemClock.elapsedRealtime());
+            watch(context);
+        }
+    }
+}
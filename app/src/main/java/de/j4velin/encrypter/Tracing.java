@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Records the phases of the app startup as systrace sections and logs their durations
+ */
+class Tracing {
+
+    private final static String TAG = "Encrypter";
+
+    private static long startTime = SystemClock.elapsedRealtime();
+
+    private Tracing() {
+    }
+
+    /**
+     * Marks the start of the app, all milestones are relative to it
+     */
+    static void markStart() {
+        startTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Begins a trace section. Must be ended with {@link #end(String, long)} on the same thread.
+     *
+     * @param section the name of the section
+     * @return the start time to pass to {@link #end(String, long)}
+     */
+    static long begin(final String section) {
+        Trace.beginSection(section);
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Ends the current trace section and logs its duration
+     *
+     * @param section the name of the section
+     * @param start   the value returned by {@link #begin(String)}
+     */
+    static void end(final String section, long start) {
+        Trace.endSection();
+        Log.d(TAG, section + ": " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Logs the time since the start of the app
+     *
+     * @param milestone the name of the milestone
+     */
+    static void milestone(final String milestone) {
+        Log.d(TAG, milestone + " after " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * Deletes encrypted files without making the user wait, no matter how many or how large.
+ * <p>
+ * The files disappear from the {@link FileIndex} right away. Their entries are deleted in a
+ * single transaction, which also records the encrypted data in the trash, and the data is moved
+ * into a trash directory next to it, which is only a rename. A background job purges the trash
+ * later, paced to {@link #getPurgeRate(Context)} and yielding to all other jobs, see
+ * {@link Scheduler}. If an entry of the trash has not been moved yet, e.g. because the app was
+ * killed, its data is purged from its original location.
+ */
+class Trash {
+
+    private final static String PREFS = "settings";
+    private final static String KEY_OVERWRITE = "trash_overwrite";
+    private final static String KEY_PURGE_RATE = "trash_purge_rate";
+    private final static String TRASH_DIR = ".trash";
+    /**
+     * Bytes purged per second, unless configured otherwise
+     */
+    final static long DEFAULT_PURGE_RATE = 32 * 1024 * 1024;
+    /**
+     * Number of trash entries read from the database at once
+     */
+    private final static int PURGE_BATCH = 64;
+    private final static int OVERWRITE_BUFFER_SIZE = 64 * 1024;
+
+    interface Callback {
+        /**
+         * Called once the files have been deleted from the database
+         *
+         * @param deleted the number of deleted files
+         * @param error   the error message or null, if the files have been deleted
+         */
+        void deleteComplete(int deleted, final String error);
+    }
+
+    /**
+     * An entry of the trash
+     */
+    static class Item {
+        final long id;
+        /**
+         * The path of the encrypted file before it was moved to the trash
+         */
+        final String path;
+
+        Item(long id, final String path) {
+            this.id = id;
+            this.path = path;
+        }
+
+        /**
+         * @return the location of the file in the trash
+         */
+        java.io.File getTrashFile() {
+            java.io.File original = new java.io.File(path);
+            return new java.io.File(new java.io.File(original.getParentFile(), TRASH_DIR),
+                    String.valueOf(id));
+        }
+    }
+
+    private static boolean purging;
+    private static boolean purgeRequested;
+
+    private Trash() {
+    }
+
+    /**
+     * @param context the context
+     * @return true, if the data is overwritten before it is deleted
+     */
+    static boolean isOverwrite(final Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getBoolean(KEY_OVERWRITE, false);
+    }
+
+    /**
+     * @param context   the context
+     * @param overwrite true to overwrite the data before it is deleted. As the data is
+     *                  encrypted, this only matters if the key might be compromised and the
+     *                  storage does not remap overwritten blocks, which flash storage usually does.
+     */
+    static void setOverwrite(final Context context, boolean overwrite) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEY_OVERWRITE, overwrite).apply();
+    }
+
+    /**
+     * @param context the context
+     * @return the maximum number of bytes purged per second
+     */
+    static long getPurgeRate(final Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getLong(KEY_PURGE_RATE, DEFAULT_PURGE_RATE);
+    }
+
+    /**
+     * @param context        the context
+     * @param bytesPerSecond the maximum number of bytes purged per second
+     */
+    static void setPurgeRate(final Context context, long bytesPerSecond) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_PURGE_RATE, Math.max(1, bytesPerSecond)).apply();
+    }
+
+    /**
+     * Deletes the given files. Must be called on the main thread.
+     *
+     * @param context  the context
+     * @param files    the files to delete
+     * @param callback the callback to notify once the files have been deleted or null
+     */
+    static void delete(final Context context, final Collection<File> files,
+                       final Callback callback) {
+        List<Long> ids = new ArrayList<>(files.size());
+        for (File file : files) {
+            ids.add(file.id);
+        }
+        // shown as deleted right away, restored if the transaction fails
+        FileIndex.get(context).remove(ids);
+        Jobs.execute(context, new DeleteTask(context.getApplicationContext(),
+                new ArrayList<>(files), callback), Scheduler.Priority.USER);
+    }
+
+    /**
+     * Starts purging the trash in the background, unless that is already running
+     *
+     * @param context the context
+     */
+    static void purge(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (Trash.class) {
+            if (purging) {
+                purgeRequested = true;
+                return;
+            }
+            purging = true;
+        }
+        Jobs.get(appContext).getExecutor(Scheduler.Priority.BACKGROUND).execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = Tracing.begin("Trash.purge");
+                try {
+                    do {
+                        purgeAll(appContext);
+                    } while (isPurgeRequested());
+                } finally {
+                    Tracing.end("Trash.purge", start);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true, if files have been deleted during the last run, otherwise the purge ends
+     */
+    private static synchronized boolean isPurgeRequested() {
+        if (purgeRequested) {
+            purgeRequested = false;
+            return true;
+        }
+        purging = false;
+        return false;
+    }
+
+    private static void purgeAll(final Context context) {
+        boolean overwrite = isOverwrite(context);
+        Pacer pacer = new Pacer(getPurgeRate(context));
+        Progress progress = new Progress(0);
+        Jobs.attach(context, progress, Scheduler.Priority.BACKGROUND);
+        Database db = new Database(context);
+        try {
+            List<Item> items;
+            while (!(items = db.getTrash(PURGE_BATCH)).isEmpty()) {
+                for (Item item : items) {
+                    java.io.File f = locate(db, item);
+                    if (f != null) {
+                        long length = f.length();
+                        if (overwrite) {
+                            overwrite(f, pacer, progress);
+                        }
+                        if (!f.delete() && f.exists()) {
+                            // not retried, which would block the rest of the trash
+                            Tracing.milestone("Trash: can not delete " + f.getName());
+                        }
+                        if (!overwrite) {
+                            // freeing the blocks of a large file takes the file system a while
+                            pacer.pace(length);
+                        }
+                    }
+                    db.removeFromTrash(item.id);
+                    // yields to all other jobs
+                    progress.advance(0);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @return the file to purge for the given entry or null, if there is nothing left to purge
+     */
+    private static java.io.File locate(final Database db, final Item item) {
+        java.io.File trashed = item.getTrashFile();
+        if (trashed.exists()) {
+            return trashed;
+        }
+        // not moved to the trash, but make sure its name has not been reused meanwhile
+        java.io.File original = new java.io.File(item.path);
+        return original.exists() && !db.isReferenced(item.path) ? original : null;
+    }
+
+    /**
+     * Overwrites the content of the file with zeros and syncs it
+     */
+    private static void overwrite(final java.io.File file, final Pacer pacer,
+                                  final Progress progress) throws IOException {
+        byte[] zeros = new byte[OVERWRITE_BUFFER_SIZE];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long remaining = out.length();
+            while (remaining > 0) {
+                int n = (int) Math.min(zeros.length, remaining);
+                out.write(zeros, 0, n);
+                remaining -= n;
+                pacer.pace(n);
+                progress.advance(n);
+            }
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Moves the data of deleted files into the trash directory
+     */
+    private static void moveToTrash(final List<Item> items) {
+        for (Item item : items) {
+            java.io.File target = item.getTrashFile();
+            java.io.File dir = target.getParentFile();
+            if ((dir.isDirectory() || dir.mkdirs()) &&
+                    !new java.io.File(item.path).renameTo(target)) {
+                // purged from its original location instead
+                Tracing.milestone("Trash: can not move " + target.getName());
+            }
+        }
+    }
+
+    /**
+     * Limits the purged bytes per second, so the purge does not saturate the storage
+     */
+    private static class Pacer {
+        private final long bytesPerSecond;
+        private long next = System.nanoTime();
+
+        private Pacer(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        private void pace(long bytes) {
+            long now = System.nanoTime();
+            next = Math.max(now, next) + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            while (System.nanoTime() < next) {
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        }
+    }
+
+    private static class DeleteTask extends AsyncTask<Void, Void, String> {
+        private final Context context;
+        private final List<File> files;
+        private final Callback callback;
+
+        private DeleteTask(final Context context, final List<File> files,
+                           final Callback callback) {
+            this.context = context;
+            this.files = files;
+            this.callback = callback;
+        }
+
+        @Override
+        protected String doInBackground(final Void... voids) {
+            long start = Tracing.begin("Trash.delete");
+            Database db = new Database(context);
+            List<Item> trash;
+            try {
+                trash = db.deleteFiles(files);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                return e.getMessage() != null ? e.getMessage() : e.toString();
+            } finally {
+                db.close();
+            }
+            moveToTrash(trash);
+            Tracing.end("Trash.delete", start);
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(final String error) {
+            if (error != null) {
+                FileIndex.get(context).put(files);
+            } else {
+                purge(context);
+            }
+            if (callback != null) {
+                callback.deleteComplete(error == null ? files.size() : 0, error);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.j4velin.encrypter.core.Calibrator;
+import de.j4velin.encrypter.core.CryptoEngine;
+import de.j4velin.encrypter.core.Governor;
+import de.j4velin.encrypter.core.PipelinedInputStream;
+
+/**
+ * The buffer sizes and thread counts used by the jobs, as chosen by the last {@link Calibrator}
+ * run. Until the device has been calibrated, the defaults of the core classes are used. Under
+ * pressure, see {@link Throttling}, jobs get smaller buffers and fewer writers.
+ */
+class Tuning {
+
+    private final static String PREFS = "tuning";
+    private final static String KEY_CIPHER = "cipher";
+    private final static String KEY_BUFFER_SIZE = "buffer_size";
+    private final static String KEY_IO_BUFFER_SIZE = "io_buffer_size";
+    private final static String KEY_WRITERS = "writers";
+    private final static String KEY_MEASUREMENTS = "measurements";
+    private final static String KEY_TIMESTAMP = "timestamp";
+    private final static int MIN_BUFFER_SIZE = 16 * 1024;
+
+    final String cipher;
+    /**
+     * Size of the buffers passed to the cipher
+     */
+    final int bufferSize;
+    /**
+     * Size of the buffers used to read and write the files
+     */
+    final int ioBufferSize;
+    /**
+     * Number of files written concurrently
+     */
+    final int writers;
+    final List<Calibrator.Measurement> measurements;
+    /**
+     * Time of the calibration or 0, if the device has not been calibrated yet
+     */
+    final long timestamp;
+
+    private Tuning(final String cipher, int bufferSize, int ioBufferSize, int writers,
+                   final List<Calibrator.Measurement> measurements, long timestamp) {
+        this.cipher = cipher;
+        this.bufferSize = bufferSize;
+        this.ioBufferSize = ioBufferSize;
+        this.writers = writers;
+        this.measurements = measurements;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return true, if the values are the result of a calibration
+     */
+    boolean isCalibrated() {
+        return timestamp > 0;
+    }
+
+    /**
+     * Loads the current tuning
+     *
+     * @param context the context
+     * @return the tuning, never null
+     */
+    static Tuning get(final Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        Governor governor = Throttling.get(context);
+        return new Tuning(prefs.getString(KEY_CIPHER, null),
+                governor.scale(prefs.getInt(KEY_BUFFER_SIZE, CryptoEngine.BUFFER_SIZE),
+                        MIN_BUFFER_SIZE),
+                governor.scale(prefs.getInt(KEY_IO_BUFFER_SIZE,
+                        PipelinedInputStream.DEFAULT_BUFFER_SIZE), MIN_BUFFER_SIZE),
+                Math.max(1, governor.scale(prefs.getInt(KEY_WRITERS,
+                        ExportTask.DEFAULT_WRITERS), 1)),
+                parse(prefs.getString(KEY_MEASUREMENTS, "")), prefs.getLong(KEY_TIMESTAMP, 0));
+    }
+
+    /**
+     * Stores the result of a calibration, which is used by all jobs started afterwards
+     *
+     * @param context the context
+     * @param result  the result of the calibration
+     */
+    static void save(final Context context, final Calibrator.Result result) {
+        StringBuilder measurements = new StringBuilder();
+        for (Calibrator.Measurement m : result.measurements) {
+            measurements.append(m.category).append('\t').append(m.candidate).append('\t')
+                    .append(m.parameter).append('\t').append(m.bytesPerSecond).append('\n');
+        }
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putString(KEY_CIPHER, result.cipher).putInt(KEY_BUFFER_SIZE, result.bufferSize)
+                .putInt(KEY_IO_BUFFER_SIZE, result.ioBufferSize)
+                .putInt(KEY_WRITERS, result.writers)
+                .putString(KEY_MEASUREMENTS, measurements.toString())
+                .putLong(KEY_TIMESTAMP, System.currentTimeMillis()).apply();
+    }
+
+    private static List<Calibrator.Measurement> parse(final String measurements) {
+        if (measurements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Calibrator.Measurement> result = new ArrayList<>();
+        for (String line : measurements.split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 4) {
+                try {
+                    result.add(new Calibrator.Measurement(fields[0], fields[1],
+                            Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return result;
+    }
+}
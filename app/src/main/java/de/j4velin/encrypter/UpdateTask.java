@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+
+import javax.crypto.Cipher;
+
+import de.j4velin.encrypter.core.DeltaEncoder;
+import de.j4velin.encrypter.core.FileFormat;
+import de.j4velin.encrypter.core.Fingerprints;
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * Background task to encrypt a new version of an already encrypted file into its existing entry.
+ * Only the chunks which have changed since the last version are re-encrypted, see
+ * {@link DeltaEncoder}.
+ * <p>
+ * The delta is never applied to the existing file itself, but to a copy, which replaces the file
+ * once it is complete, see {@link Durability#replaceFile}. So an interrupted update leaves the old
+ * version and its fingerprints intact.
+ */
+class UpdateTask extends AsyncTask<Void, Long, Boolean> {
+
+    private final Context context;
+    private final CryptoCallback callback;
+    private final File plaintextFile;
+    private final File existing;
+    private final Fingerprints fingerprints;
+    private final Cipher cipher;
+    private final Progress progress;
+    private final ProgressDialog dialog;
+    private File resultFile;
+
+    /**
+     * @param context       the context
+     * @param callback      callback to be called once the update is complete
+     * @param plaintextFile the new version of the file
+     * @param existing      the existing encrypted file
+     * @param fingerprints  the fingerprints of the existing file or null, if it has none. In that
+     *                      case, the whole file is encrypted again.
+     * @param cipher        the cipher, initialized for encryption
+     */
+    UpdateTask(final Context context, final CryptoCallback callback, final File plaintextFile,
+               final File existing, final Fingerprints fingerprints, final Cipher cipher) {
+        this.context = context;
+        this.callback = callback;
+        this.plaintextFile = plaintextFile;
+        this.existing = existing;
+        this.fingerprints = fingerprints;
+        this.cipher = cipher;
+        progress = new Progress(plaintextFile.size);
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                publishProgress(p.getBytes());
+            }
+        });
+        dialog = ProgressDialogs.create(context, progress);
+        Jobs.attach(context, progress, Scheduler.Priority.USER);
+    }
+
+    /**
+     * Starts the task on the {@link Jobs} scheduler
+     */
+    void start() {
+        Jobs.execute(context, this, Scheduler.Priority.USER);
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        dialog.show();
+    }
+
+    @Override
+    protected void onProgressUpdate(final Long... values) {
+        ProgressDialogs.update(dialog, progress);
+    }
+
+    @Override
+    protected Boolean doInBackground(final Void... voids) {
+        java.io.File target = existing.isInline() ? null : new java.io.File(existing.uri.getPath());
+        java.io.File staging = null;
+        java.io.File replacement = null;
+        try {
+            Tuning tuning = Tuning.get(context);
+            staging = java.io.File.createTempFile("update", null, context.getCacheDir());
+            Fingerprints old = fingerprints != null ? fingerprints :
+                    new Fingerprints(Fingerprints.newSalt(), FileFormat.DEFAULT_CHUNK_SIZE,
+                            new ArrayList<byte[]>(0));
+            DeltaEncoder.Delta delta;
+            try (InputStream in = new BufferedInputStream(context.getContentResolver()
+                    .openInputStream(plaintextFile.uri), tuning.ioBufferSize);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(staging),
+                         tuning.ioBufferSize)) {
+                delta = DeltaEncoder.encode(in, old, CipherUtil.getFingerprintKey(), cipher, out,
+                        progress);
+            }
+            boolean inline = false;
+            if (target == null) {
+                // the delta is applied to a copy of the inline data, which either goes back into
+                // the database or becomes a file of its own, if the file has grown too large
+                inline = EncryptedStorage.shouldInline(context, delta.size);
+                replacement = inline ?
+                        java.io.File.createTempFile("inline", null, context.getCacheDir()) :
+                        CryptoUtil.newEncryptedFile(context);
+                if (fingerprints != null) {
+                    try (OutputStream out = new FileOutputStream(replacement)) {
+                        out.write(EncryptedStorage.getBlob(context, existing));
+                    }
+                }
+            } else {
+                // the existing file is only replaced once the new version is complete
+                replacement = new java.io.File(target.getPath() + ".tmp");
+                if (fingerprints != null) {
+                    copy(target, replacement);
+                } else {
+                    // the existing file has a different layout, so it is replaced as a whole
+                    delete(replacement);
+                }
+            }
+            try (RandomAccessFile stagingFile = new RandomAccessFile(staging, "r");
+                 RandomAccessFile replacementFile = new RandomAccessFile(replacement, "rw")) {
+                DeltaEncoder.apply(delta, stagingFile, replacementFile);
+            }
+            Uri uri = existing.uri;
+            byte[] data = null;
+            if (inline) {
+                data = new byte[(int) replacement.length()];
+                try (DataInputStream in = new DataInputStream(new FileInputStream(replacement))) {
+                    in.readFully(data);
+                }
+                delete(replacement);
+                replacement = null;
+                uri = EncryptedStorage.newInlineUri();
+            } else if (target == null) {
+                uri = Uri.fromFile(replacement);
+            }
+            File result = new File(existing.id, existing.getName(), plaintextFile.getMime(), uri,
+                    delta.size, true);
+            result.fingerprints = delta.fingerprints;
+            result.data = data;
+            if (target != null) {
+                Durability.replaceFile(context, replacement, target, result);
+            } else {
+                Durability.updateFile(context, result);
+            }
+            replacement = null;
+            resultFile = result;
+            progress.finish();
+            return true;
+        } catch (Progress.CancelledException e) {
+            return false;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            delete(staging);
+            delete(replacement);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(final Boolean success) {
+        super.onPostExecute(success);
+        dialog.dismiss();
+        if (success && callback != null) {
+            callback.operationComplete(resultFile);
+        }
+    }
+
+    /**
+     * Copies the existing encrypted file, to apply the delta to
+     */
+    private static void copy(final java.io.File source, final java.io.File target)
+            throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long size = in.size();
+            long copied = 0;
+            while (copied < size) {
+                copied += in.transferTo(copied, size - copied, out);
+            }
+        }
+    }
+
+    private static void delete(final java.io.File f) {
+        if (f != null && f.exists() && !f.delete()) {
+            f.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.UriPermission;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A folder, e.g. the camera folder, whose new files are offered for encryption.
+ * <p>
+ * The folder is chosen once and accessed through a persisted grant of the storage access
+ * framework. While started, changes in the folder are observed and debounced: a burst of new
+ * files, like a series of photos, only results in a single scan once the folder has been quiet
+ * for {@link #DEBOUNCE_MS}. Files which have been ingested before are recognized by their size
+ * and modification time and, if a different document has the same size and time, by the hash of
+ * their content.
+ * <p>
+ * Our key requires a fingerprint for every use, so the new files can not be encrypted
+ * unattended. Instead, the listener is notified and can let the user encrypt all of them with a
+ * single authentication, see {@link IngestTask}.
+ */
+class WatchedFolder {
+
+    private final static String PREFS = "settings";
+    private final static String KEY_TREE = "watched_folder";
+    private final static String KEY_DELETE = "watched_folder_delete";
+    /**
+     * Quiet time after the last change before the folder is scanned
+     */
+    final static long DEBOUNCE_MS = 3000;
+    /**
+     * Maximum time continuous changes can delay the scan
+     */
+    private final static long MAX_DELAY_MS = 15000;
+    /**
+     * Files modified more recently than this might still be written and are left for the next
+     * scan
+     */
+    private final static long SETTLE_MS = 2000;
+
+    interface Listener {
+        /**
+         * Called on the main thread after a scan found files which have not been ingested yet
+         *
+         * @param documents all such files in the folder
+         */
+        void onNewFiles(final List<Document> documents);
+    }
+
+    /**
+     * A file in the watched folder or another file to encrypt as part of a batch, see
+     * {@link IngestTask}
+     */
+    static class Document {
+        final Uri uri;
+        final String name;
+        final String mime;
+        /**
+         * The size in bytes or -1, if unknown
+         */
+        final long size;
+        /**
+         * The time of the last modification or 0, if unknown
+         */
+        final long modified;
+        /**
+         * The SHA-256 hash of the content, once it has been read
+         */
+        byte[] hash;
+
+        Document(final Uri uri, final String name, final String mime, long size,
+                 long modified) {
+            this.uri = uri;
+            this.name = name;
+            this.mime = mime;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ContentObserver observer = new ContentObserver(handler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            scheduleScan();
+        }
+    };
+    private final Runnable scan = new Runnable() {
+        @Override
+        public void run() {
+            firstChange = 0;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<Document> documents = scan();
+                    if (!documents.isEmpty()) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (started) {
+                                    listener.onNewFiles(documents);
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    };
+    private boolean started;
+    /**
+     * Time of the first change since the last scan, 0 if there was none
+     */
+    private long firstChange;
+    /**
+     * The result of the last scan, only accessed by the executor. Some providers only watch a
+     * directory while a cursor on it is open, so it is kept open until the next scan.
+     */
+    private Cursor children;
+
+    /**
+     * @param context  the context
+     * @param listener the listener to notify about new files
+     */
+    WatchedFolder(final Context context, final Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    /**
+     * @param context the context
+     * @return the uri of the watched folder or null, if none has been chosen or the grant has
+     * been revoked
+     */
+    static Uri getTree(final Context context) {
+        String tree = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getString(KEY_TREE, null);
+        if (tree == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(tree);
+        for (UriPermission permission : context.getContentResolver()
+                .getPersistedUriPermissions()) {
+            if (permission.getUri().equals(uri) && permission.isReadPermission()) {
+                return uri;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the folder to watch, replacing the previous one
+     *
+     * @param context the context
+     * @param tree    the tree uri returned by {@link Intent#ACTION_OPEN_DOCUMENT_TREE}
+     */
+    static void setTree(final Context context, final Uri tree) {
+        clearTree(context);
+        context.getContentResolver().takePersistableUriPermission(tree,
+                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putString(KEY_TREE, tree.toString()).apply();
+    }
+
+    /**
+     * Stops watching any folder and releases the grant
+     *
+     * @param context the context
+     */
+    static void clearTree(final Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        String tree = prefs.getString(KEY_TREE, null);
+        if (tree != null) {
+            try {
+                context.getContentResolver().releasePersistableUriPermission(Uri.parse(tree),
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                                Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // already revoked
+            }
+            prefs.edit().remove(KEY_TREE).apply();
+        }
+    }
+
+    /**
+     * @param context the context
+     * @return true, if the original files should be deleted once they have been encrypted
+     */
+    static boolean isDeleteAfterIngest(final Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                .getBoolean(KEY_DELETE, false);
+    }
+
+    /**
+     * @param context the context
+     * @param delete  true to delete the original files once they have been encrypted
+     */
+    static void setDeleteAfterIngest(final Context context, boolean delete) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEY_DELETE, delete).apply();
+    }
+
+    /**
+     * Starts observing the folder and scans it once. Must be called on the main thread.
+     */
+    void start() {
+        Uri tree = getTree(context);
+        if (started || tree == null) {
+            return;
+        }
+        started = true;
+        context.getContentResolver().registerContentObserver(
+                DocumentsContract.buildChildDocumentsUriUsingTree(tree,
+                        DocumentsContract.getTreeDocumentId(tree)), true, observer);
+        handler.post(scan);
+    }
+
+    /**
+     * Stops observing the folder. Must be called on the main thread.
+     */
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        context.getContentResolver().unregisterContentObserver(observer);
+        handler.removeCallbacks(scan);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChildren();
+            }
+        });
+    }
+
+    /**
+     * Scans the folder again after the debounce time, e.g. after files have been ingested. Must
+     * be called on the main thread.
+     */
+    void scheduleScan() {
+        if (!started) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (firstChange == 0) {
+            firstChange = now;
+        }
+        handler.removeCallbacks(scan);
+        handler.postDelayed(scan, Math.max(0, Math.min(DEBOUNCE_MS,
+                firstChange + MAX_DELAY_MS - now)));
+    }
+
+    private void closeChildren() {
+        if (children != null) {
+            children.close();
+            children = null;
+        }
+    }
+
+    /**
+     * Lists the files in the folder which have not been ingested yet
+     */
+    private List<Document> scan() {
+        List<Document> documents = new ArrayList<>();
+        Uri tree = getTree(context);
+        closeChildren();
+        if (tree == null) {
+            return documents;
+        }
+        long start = Tracing.begin("WatchedFolder.scan");
+        long settled = System.currentTimeMillis() - SETTLE_MS;
+        boolean unsettled = false;
+        Database db = new Database(context);
+        try {
+            children = context.getContentResolver().query(
+                    DocumentsContract.buildChildDocumentsUriUsingTree(tree,
+                            DocumentsContract.getTreeDocumentId(tree)),
+                    new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                            DocumentsContract.Document.COLUMN_MIME_TYPE,
+                            DocumentsContract.Document.COLUMN_SIZE,
+                            DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null);
+            while (children != null && children.moveToNext()) {
+                String mime = children.getString(2);
+                long modified = children.getLong(4);
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mime)) {
+                    continue;
+                } else if (modified > settled) {
+                    unsettled = true;
+                    continue;
+                }
+                Document document = new Document(
+                        DocumentsContract.buildDocumentUriUsingTree(tree, children.getString(0)),
+                        children.getString(1), mime,
+                        children.isNull(3) ? -1 : children.getLong(3), modified);
+                if (!isIngested(db, document)) {
+                    documents.add(document);
+                }
+            }
+        } catch (SecurityException e) {
+            // the grant has been revoked meanwhile
+            e.printStackTrace();
+        } finally {
+            db.close();
+            Tracing.end("WatchedFolder.scan", start);
+        }
+        if (unsettled) {
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleScan();
+                }
+            }, SETTLE_MS);
+        }
+        return documents;
+    }
+
+    /**
+     * Checks if the document, or a copy of it, has already been ingested. The content is only
+     * hashed if a different document with the same size and modification time has been.
+     */
+    private boolean isIngested(final Database db, final Document document) {
+        String uri = document.uri.toString();
+        if (db.isIngested(uri, document.size, document.modified)) {
+            return true;
+        }
+        List<byte[]> hashes = db.getIngestedHashes(document.size, document.modified);
+        if (hashes.isEmpty()) {
+            return false;
+        }
+        try {
+            document.hash = hash(context, document.uri);
+        } catch (IOException e) {
+            return false;
+        }
+        for (byte[] hash : hashes) {
+            if (Arrays.equals(hash, document.hash)) {
+                // remember the copy, so it does not have to be hashed again
+                db.addIngested(document);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a new digest to hash the content of documents with
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hash(final Context context, final Uri uri) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+}
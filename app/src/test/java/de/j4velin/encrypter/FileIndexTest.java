@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileIndexTest {
+
+    private static File file(long id) {
+        return new File(id, "file" + id, "text/plain", null, id, true);
+    }
+
+    private static List<File> files(long... ids) {
+        List<File> files = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            files.add(file(id));
+        }
+        return files;
+    }
+
+    @Test
+    public void sameSnapshotHasNoChanges() {
+        List<File> snapshot = files(1, 2, 3);
+        FileIndex.ChangeSet changes =
+                FileIndex.ChangeSet.compute(snapshot, new ArrayList<>(snapshot));
+        assertTrue(changes.isEmpty());
+        assertEquals("[]", changes.toString());
+    }
+
+    @Test
+    public void loadAndClear() {
+        List<File> snapshot = files(1, 2, 3);
+        assertEquals("[insert(0, 3)]", FileIndex.ChangeSet
+                .compute(Collections.<File>emptyList(), snapshot).toString());
+        assertEquals("[remove(0, 3)]", FileIndex.ChangeSet
+                .compute(snapshot, Collections.<File>emptyList()).toString());
+    }
+
+    @Test
+    public void mergesAdjacentOperations() {
+        List<File> before = files(1, 2, 3, 4);
+        List<File> after = new ArrayList<>(before);
+        after.add(file(5));
+        after.add(file(6));
+        assertEquals("[insert(4, 2)]", FileIndex.ChangeSet.compute(before, after).toString());
+
+        after = Arrays.asList(before.get(0), before.get(3));
+        assertEquals("[remove(1, 2)]", FileIndex.ChangeSet.compute(before, after).toString());
+
+        // updated entries have the same id, but are new objects
+        after = Arrays.asList(before.get(0), file(2), file(3), before.get(3));
+        assertEquals("[change(1, 2)]", FileIndex.ChangeSet.compute(before, after).toString());
+    }
+
+    @Test
+    public void mixedChanges() {
+        List<File> before = files(1, 2, 3, 5);
+        List<File> after = Arrays.asList(file(2), before.get(2), file(4), before.get(3),
+                file(6));
+        // positions refer to the list after the preceding operations have been applied
+        assertEquals("[remove(0, 1), change(0, 1), insert(2, 1), insert(4, 1)]",
+                FileIndex.ChangeSet.compute(before, after).toString());
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.KeyGenerator;
+
+import de.j4velin.encrypter.core.CryptoEngine;
+import de.j4velin.encrypter.core.FileFormat;
+import de.j4velin.encrypter.core.Fingerprints;
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.SecretKeyProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test against a synthetic vault, to find scaling problems with large vaults before a
+ * release.
+ * <p>
+ * Files are added, found, listed and deleted through the real {@link Database},
+ * {@link Durability} and {@link FileIndex}, on the SQLite of Robolectric. Only the Android parts
+ * which are not available there are replaced by stand-ins: a software key instead of the key
+ * store and plain file streams instead of the content resolver.
+ * <p>
+ * First, a vault with the given number of files is generated. Then a number of worker threads
+ * run a random mix of operations for the given time. For each operation, the latency
+ * percentiles and the throughput are reported, together with the peak heap usage. Afterwards,
+ * the index must match the database.
+ * <p>
+ * The test only runs on request, e.g. with
+ * <code>gradlew testDebugUnitTest -PloadTest="files=20000 threads=8 maxP99=500"</code>.
+ * Options, all optional, as key=value:
+ * <ul>
+ * <li>files: number of files in the generated vault (2000)</li>
+ * <li>median: median plaintext size in KiB (32), sizes are log-normally distributed</li>
+ * <li>sigma: spread of the size distribution (1.5)</li>
+ * <li>max: maximum plaintext size in MiB (64)</li>
+ * <li>types: weighted top-level mime types (image:40,video:10,audio:10,application:40)</li>
+ * <li>threads: number of concurrent workers (4)</li>
+ * <li>seconds: duration of the workload (30)</li>
+ * <li>mix: weighted operations (encrypt:20,decrypt:40,delete:10,list:20,search:10)</li>
+ * <li>maxP99: maximum p99 latency of any operation in ms, 0 to disable (0)</li>
+ * </ul>
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class LoadTest {
+
+    private final static String ENCRYPT = "encrypt";
+    private final static String DECRYPT = "decrypt";
+    private final static String DELETE = "delete";
+    private final static String LIST = "list";
+    private final static String SEARCH = "search";
+
+    private final Map<String, String> options = new HashMap<>();
+    private final Map<String, Latencies> latencies = new LinkedHashMap<>();
+    private final Set<Long> deleted = Collections.synchronizedSet(new HashSet<Long>());
+    private final byte[] pattern = new byte[64 * 1024];
+    private Context context;
+    private Database db;
+    private CryptoEngine engine;
+    private int medianKiB;
+    private double sigma;
+    private long maxSize;
+    private String[] types;
+
+    @Before
+    public void setUp() throws Exception {
+        String spec = System.getProperty("loadTest", "").trim();
+        for (String arg : spec.isEmpty() ? new String[0] : spec.split("\\s+")) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        medianKiB = Integer.parseInt(option("median", "32"));
+        sigma = Double.parseDouble(option("sigma", "1.5"));
+        maxSize = Long.parseLong(option("max", "64")) * 1024 * 1024;
+        types = weighted(option("types", "image:40,video:10,audio:10,application:40"));
+
+        context = RuntimeEnvironment.application;
+        Metadata.set(MetadataTest.newMetadata());
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        engine = new CryptoEngine(new SecretKeyProvider(generator.generateKey(),
+                KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey()));
+        db = new Database(context);
+        // loads the still empty vault, so that files added afterwards are only put
+        FileIndex.get(context);
+        new Random(42).nextBytes(pattern);
+        for (String op : new String[]{ENCRYPT, DECRYPT, DELETE, LIST, SEARCH}) {
+            latencies.put(op, new Latencies());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : db.getFiles()) {
+            EncryptedStorage.delete(f);
+        }
+        db.close();
+        Metadata.set(null);
+    }
+
+    private String option(final String key, final String defaultValue) {
+        String value = options.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Test
+    public void workload() throws Exception {
+        int files = Integer.parseInt(option("files", "2000"));
+        int threads = Integer.parseInt(option("threads", "4"));
+        int seconds = Integer.parseInt(option("seconds", "30"));
+        double maxP99 = Double.parseDouble(option("maxP99", "0"));
+        String[] mix =
+                weighted(option("mix", "encrypt:20,decrypt:40,delete:10,list:20,search:10"));
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+        try {
+            long start = System.nanoTime();
+            generate(files, threads);
+            List<File> vault = db.getFiles();
+            long bytes = 0;
+            for (File f : vault) {
+                bytes += f.size;
+            }
+            System.out.printf("vault: %d files, %.1f MiB, generated in %.1f s%n", vault.size(),
+                    bytes / 1048576.0, (System.nanoTime() - start) / 1e9);
+            assertEquals(files, vault.size());
+            for (Latencies l : latencies.values()) {
+                l.clear();
+            }
+
+            start = System.nanoTime();
+            workload(threads, seconds, mix);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            report(elapsed, threads);
+        } finally {
+            heap.interrupt();
+            heap.join();
+        }
+        System.out.printf("peak heap: %.1f MiB%n", heap.peak / 1048576.0);
+
+        assertEquals(ids(db.getFiles()), ids(FileIndex.get(context).getFiles()));
+        if (maxP99 > 0) {
+            for (Map.Entry<String, Latencies> e : latencies.entrySet()) {
+                assertTrue("p99 latency of " + e.getKey() + " above " + maxP99 + " ms",
+                        e.getValue().count() == 0 ||
+                                e.getValue().percentile(99) / 1e6 <= maxP99);
+            }
+        }
+    }
+
+    /**
+     * Fills the vault with the given number of files, using all worker threads
+     */
+    private void generate(final int files, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(threads);
+            final AtomicLong remaining = new AtomicLong(files);
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(t);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        while (remaining.getAndDecrement() > 0) {
+                            encrypt(random);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the operation mix on all worker threads for the given time
+     */
+    private void workload(int threads, int seconds, final String[] mix) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(1000 + t);
+                futures.add(executor.submit(new Callable<Void>() {
+                    /**
+                     * The snapshot of the index this worker has seen last, like the adapter
+                     */
+                    private List<File> snapshot = Collections.emptyList();
+
+                    @Override
+                    public Void call() throws Exception {
+                        while (System.nanoTime() < deadline) {
+                            String op = mix[random.nextInt(mix.length)];
+                            long start = System.nanoTime();
+                            long bytes;
+                            switch (op) {
+                                case ENCRYPT:
+                                    bytes = encrypt(random);
+                                    break;
+                                case DECRYPT:
+                                    bytes = decrypt(random);
+                                    break;
+                                case DELETE:
+                                    bytes = delete(random);
+                                    break;
+                                case SEARCH:
+                                    bytes = search(random);
+                                    break;
+                                default:
+                                    snapshot = list(random, snapshot);
+                                    bytes = 0;
+                                    break;
+                            }
+                            if (bytes >= 0) {
+                                latencies.get(op).add(System.nanoTime() - start, bytes);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void report(double elapsed, int threads) {
+        System.out.printf("workload: %.1f s, %d threads%n", elapsed, threads);
+        System.out.printf("%-8s %8s %9s %9s %9s %9s %9s%n", "op", "count", "ops/s", "MiB/s",
+                "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Latencies> e : latencies.entrySet()) {
+            Latencies l = e.getValue();
+            if (l.count() == 0) {
+                continue;
+            }
+            System.out.printf("%-8s %8d %9.1f %9.1f %9.2f %9.2f %9.2f%n", e.getKey(), l.count(),
+                    l.count() / elapsed, l.bytes() / 1048576.0 / elapsed,
+                    l.percentile(50) / 1e6, l.percentile(99) / 1e6, l.percentile(100) / 1e6);
+        }
+    }
+
+    /**
+     * Encrypts a new synthetic file into the vault like {@link CryptoUtil} does and adds it
+     * through {@link Durability}
+     *
+     * @return the size of the plaintext
+     */
+    private long encrypt(final Random random) throws Exception {
+        long size = nextSize(random);
+        String type = types[random.nextInt(types.length)];
+        String name = Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + ".bin";
+        java.io.File target = new java.io.File(context.getFilesDir(), EncryptedStorage.newName());
+        Tuning tuning = Tuning.get(context);
+        SpillOutputStream output = new SpillOutputStream(target,
+                EncryptedStorage.getInlineLimit(context),
+                FileFormat.chunkedLength(size, FileFormat.DEFAULT_CHUNK_SIZE),
+                tuning.ioBufferSize);
+        Fingerprints fingerprints;
+        try (OutputStream out = output) {
+            fingerprints = engine.encrypt(new SyntheticInputStream(pattern, size), out,
+                    new Progress(size));
+        }
+        File file = new File(-1, name, type + "/x-load",
+                output.isSpilled() ? Uri.fromFile(target) : EncryptedStorage.newInlineUri(),
+                size, true);
+        file.fingerprints = fingerprints;
+        file.data = output.toByteArray();
+        Durability.addFile(context, file);
+        return size;
+    }
+
+    /**
+     * Decrypts a random file of the vault
+     *
+     * @return the size of the plaintext or -1, if the file has been deleted meanwhile
+     */
+    private long decrypt(final Random random) throws Exception {
+        File file = pick(random);
+        if (file == null) {
+            return -1;
+        }
+        InputStream in;
+        long length;
+        try {
+            if (file.isInline()) {
+                byte[] data = EncryptedStorage.getBlob(context, file);
+                in = new ByteArrayInputStream(data);
+                length = data.length;
+            } else {
+                // a file stream instead of the content resolver
+                java.io.File f = new java.io.File(file.uri.getPath());
+                in = new BufferedInputStream(new FileInputStream(f));
+                length = f.length();
+            }
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            engine.decrypt(in, length, out, new Progress(file.size));
+        } finally {
+            in.close();
+        }
+        assertEquals(file.size, out.count);
+        return file.size;
+    }
+
+    /**
+     * Deletes a random file from the vault and purges its data, like {@link Trash} does
+     *
+     * @return 0 or -1, if the vault is empty
+     */
+    private long delete(final Random random) {
+        File file = pick(random);
+        if (file == null || !deleted.add(file.id)) {
+            return -1;
+        }
+        for (Trash.Item item : db.deleteFiles(Collections.singletonList(file))) {
+            EncryptedStorage.delete(file);
+            db.removeFromTrash(item.id);
+        }
+        return 0;
+    }
+
+    /**
+     * Lists the vault like the adapter and the type filter do: computes the changes since the
+     * last snapshot and looks up the files of a type
+     *
+     * @param snapshot the last snapshot of the worker
+     * @return the new snapshot
+     */
+    private List<File> list(final Random random, final List<File> snapshot) {
+        List<File> files = FileIndex.get(context).getFiles();
+        FileIndex.ChangeSet.compute(snapshot, files);
+        db.findFileIdsByType(new String[]{types[random.nextInt(types.length)]}, false);
+        return files;
+    }
+
+    /**
+     * Searches the vault by the prefix of a random name
+     *
+     * @return 0 or -1, if the vault is empty
+     */
+    private long search(final Random random) {
+        File file = pick(random);
+        if (file == null) {
+            return -1;
+        }
+        String name = file.getName();
+        db.findFileIds(name.substring(0, Math.min(name.length(), 1 + random.nextInt(3))));
+        return 0;
+    }
+
+    /**
+     * @return a random file of the index or null, if the vault is empty
+     */
+    private File pick(final Random random) {
+        List<File> files = FileIndex.get(context).getFiles();
+        return files.isEmpty() ? null : files.get(random.nextInt(files.size()));
+    }
+
+    private long nextSize(final Random random) {
+        double size = medianKiB * 1024.0 * Math.exp(sigma * random.nextGaussian());
+        return Math.max(0, Math.min(maxSize, (long) size));
+    }
+
+    private static Set<Long> ids(final List<File> files) {
+        Set<Long> ids = new HashSet<>(files.size());
+        for (File f : files) {
+            ids.add(f.id);
+        }
+        return ids;
+    }
+
+    /**
+     * Expands "a:3,b:1" into {a, a, a, b}, from which a random element is picked
+     */
+    private static String[] weighted(final String spec) {
+        List<String> result = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                result.add(kv[0].trim());
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Empty weights: " + spec);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * The latencies and processed bytes of one kind of operation
+     */
+    private static class Latencies {
+        private long[] nanos = new long[1024];
+        private int count;
+        private long bytes;
+
+        synchronized void add(long latency, long processed) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latency;
+            bytes += processed;
+        }
+
+        synchronized void clear() {
+            count = 0;
+            bytes = 0;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the latency in ns below which the given percentage of the operations completed
+         */
+        synchronized long percentile(double p) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+    /**
+     * Samples the used heap, as the peak usage of the memory pools also counts garbage
+     */
+    private static class HeapSampler extends Thread {
+        private volatile long peak;
+
+        private HeapSampler() {
+            super("HeapSampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                peak = Math.max(peak,
+                        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Produces the given number of bytes by repeating a pattern, so that no memory is needed for
+     * large plaintexts
+     */
+    private static class SyntheticInputStream extends InputStream {
+        private final byte[] pattern;
+        private long remaining;
+
+        private SyntheticInputStream(final byte[] pattern, long length) {
+            this.pattern = pattern;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            return pattern[(int) (remaining-- % pattern.length)] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, int offset, int length) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(length, remaining), pattern.length);
+            System.arraycopy(pattern, 0, b, offset, n);
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Discards the plaintext, but counts its length
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, int offset, int length) {
+            count += length;
+        }
+    }
+}
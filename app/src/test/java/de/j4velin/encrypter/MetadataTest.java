@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class MetadataTest {
+
+    private Metadata metadata;
+
+    @Before
+    public void setUp() throws Exception {
+        metadata = newMetadata();
+    }
+
+    @After
+    public void tearDown() {
+        Metadata.set(null);
+    }
+
+    /**
+     * @return an instance with new keys, as the key store is not available in tests
+     */
+    static Metadata newMetadata() throws Exception {
+        KeyGenerator aes = KeyGenerator.getInstance("AES");
+        aes.init(128);
+        SecretKey indexKey =
+                KeyGenerator.getInstance(CipherUtil.BLIND_INDEX_ALGORITHM).generateKey();
+        return new Metadata(aes.generateKey(), indexKey);
+    }
+
+    @Test
+    public void sealedValuesOpen() {
+        byte[] sealed = metadata.seal("holiday.jpg");
+        assertEquals("holiday.jpg", metadata.open(sealed));
+        // a new IV each time, so equal names can not be recognized from the sealed values
+        assertFalse(Arrays.equals(sealed, metadata.seal("holiday.jpg")));
+        assertNull(metadata.seal(null));
+        assertNull(metadata.open(null));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tamperedValueIsRejected() {
+        byte[] sealed = metadata.seal("holiday.jpg");
+        sealed[sealed.length - 1] ^= 1;
+        metadata.open(sealed);
+    }
+
+    @Test
+    public void revealsSealedFile() {
+        File file = new File(1, metadata.seal("notes.txt"), metadata.seal("text/plain"), null, 10);
+        assertArrayEquals(new String[]{"notes.txt", "text/plain"}, metadata.reveal(file));
+    }
+
+    @Test
+    public void nameTokensAreStableAndDistinct() {
+        String token = metadata.nameToken("holiday.jpg");
+        assertEquals(32, token.length());
+        assertEquals(token, metadata.nameToken("holiday.jpg"));
+        assertNotEquals(token, metadata.nameToken("holiday.png"));
+        // exact names are case sensitive, unlike prefixes
+        assertNotEquals(token, metadata.nameToken("Holiday.jpg"));
+        assertNull(metadata.nameToken(null));
+    }
+
+    @Test
+    public void tokensDependOnKey() throws Exception {
+        assertNotEquals(metadata.nameToken("holiday.jpg"),
+                newMetadata().nameToken("holiday.jpg"));
+    }
+
+    @Test
+    public void fieldsHaveSeparateTokens() {
+        // the same value must not match across fields
+        assertNotEquals(metadata.nameToken("image"), metadata.typeTokenOf("image"));
+        assertNotEquals(metadata.typeTokenOf("image"), metadata.prefixToken("image"));
+        assertNotEquals(metadata.nameToken("image"), metadata.prefixToken("image"));
+    }
+
+    @Test
+    public void typeTokensUseTopLevelType() {
+        String image = metadata.typeTokenOf("image");
+        assertEquals(image, metadata.typeToken("image/jpeg"));
+        assertEquals(image, metadata.typeToken("IMAGE/PNG"));
+        assertEquals(image, metadata.typeToken("image"));
+        assertNotEquals(image, metadata.typeToken("video/mp4"));
+        assertNull(metadata.typeToken(null));
+    }
+
+    @Test
+    public void prefixTokensMatchSearches() {
+        List<String> tokens = metadata.prefixTokens("Holiday Photos.jpg");
+        assertEquals(Metadata.MAX_PREFIX_LENGTH, tokens.size());
+        assertEquals(Metadata.MAX_PREFIX_LENGTH, new HashSet<>(tokens).size());
+        // searches ignore case
+        assertEquals(tokens.get(0), metadata.prefixToken("h"));
+        assertEquals(tokens.get(2), metadata.prefixToken("HOL"));
+        // longer searches are looked up by the longest indexed prefix
+        assertEquals(tokens.get(Metadata.MAX_PREFIX_LENGTH - 1),
+                metadata.prefixToken("holiday photos"));
+        assertEquals(2, metadata.prefixTokens("ab").size());
+        assertEquals(0, metadata.prefixTokens(null).size());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.j4velin.encrypter.core.GroupCommit;
+
+/**
+ * Measures the cost of each {@link GroupCommit.Policy}: concurrent jobs write files and commit an
+ * entry for each of them. The entries are appended to a journal file which is synced on every
+ * commit, standing in for the database transaction.
+ * <p>
+ * The results depend entirely on the storage, so the benchmark should be run on the kind of
+ * file system the app writes to. A tmpfs makes every sync free.
+ * <p>
+ * Arguments: number of files, size of each file in KiB, number of concurrent jobs and the
+ * directory to write to (default: the temp directory)
+ */
+public class DurabilityBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int sizeKiB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int jobs = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        File dir = new File(args.length > 3 ? args[3] : System.getProperty("java.io.tmpdir"),
+                "durability-bench");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create " + dir);
+        }
+        byte[] data = new byte[sizeKiB * 1024];
+        new Random(42).nextBytes(data);
+
+        System.out.printf("%d files of %d KiB, %d concurrent jobs, in %s%n", files, sizeKiB, jobs,
+                dir);
+        for (GroupCommit.Policy policy : GroupCommit.Policy.values()) {
+            run(policy, dir, data, files, jobs);
+        }
+    }
+
+    private static void run(final GroupCommit.Policy policy, final File dir, final byte[] data,
+                            int files, int jobs) throws Exception {
+        final RandomAccessFile journal = new RandomAccessFile(new File(dir, "journal"), "rw");
+        journal.setLength(0);
+        final AtomicInteger transactions = new AtomicInteger();
+        final GroupCommit<String> groupCommit = new GroupCommit<>(policy,
+                new GroupCommit.Committer<String>() {
+                    @Override
+                    public void commit(final List<String> entries) throws IOException {
+                        synchronized (journal) {
+                            for (String entry : entries) {
+                                journal.write((entry + "\n").getBytes(StandardCharsets.UTF_8));
+                            }
+                            journal.getChannel().force(false);
+                        }
+                        transactions.incrementAndGet();
+                    }
+                });
+        final AtomicInteger next = new AtomicInteger();
+        final int total = files;
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    int n;
+                    while ((n = next.getAndIncrement()) < total) {
+                        File f = new File(dir, "file" + n);
+                        try (OutputStream out = new FileOutputStream(f)) {
+                            out.write(data);
+                        }
+                        groupCommit.commit(f, f.getName());
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        journal.close();
+        for (int i = 0; i < files; i++) {
+            new File(dir, "file" + i).delete();
+        }
+        double seconds = Math.max(millis, 1) / 1000.0;
+        System.out.printf("%-8s %6d ms, %8.1f files/s, %7.1f MiB/s, %5d transactions, " +
+                        "%.1f files per transaction%n", policy, millis, files / seconds,
+                (double) files * data.length / (1024 * 1024) / seconds, transactions.get(),
+                groupCommit.getAverageGroupSize());
+    }
+}
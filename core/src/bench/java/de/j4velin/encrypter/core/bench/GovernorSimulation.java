@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core.bench;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import de.j4velin.encrypter.core.Governor;
+import de.j4velin.encrypter.core.Scheduler;
+
+/**
+ * Replays a long bulk job on a simulated device, once with fixed limits and once controlled by a
+ * {@link Governor}, and reports how much work was done and how long the device was throttled.
+ * <p>
+ * The device heats up with every busy worker and cools down towards the ambient temperature.
+ * Above {@link #THROTTLE_AT}, the system halves the speed of all workers. The governor sees the
+ * temperature through a {@link Governor.Signal} with the same thresholds as the app. No job
+ * actually runs, the simulation only asks the scheduler for its limits.
+ * <p>
+ * Arguments: simulated duration in minutes, ambient temperature in degrees Celsius and the
+ * number of workers of the bulk class without pressure
+ */
+public class GovernorSimulation {
+
+    private final static double THROTTLE_AT = 47;
+    /**
+     * Degrees per second a busy worker heats the device
+     */
+    private final static double HEAT_PER_WORKER = 0.03;
+    /**
+     * Share of the difference to the ambient temperature lost per second
+     */
+    private final static double COOLING = 0.01;
+    private final static double[] THRESHOLDS = {40, 43, 46};
+
+    public static void main(final String[] args) {
+        int minutes = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        double ambient = args.length > 1 ? Double.parseDouble(args[1]) : 30;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        System.out.printf("%d min at %.0f C, %d bulk workers%n", minutes, ambient, workers);
+        run("fixed", false, minutes, ambient, workers);
+        run("governed", true, minutes, ambient, workers);
+    }
+
+    private static void run(final String name, boolean governed, int minutes, double ambient,
+                            int workers) {
+        Map<Scheduler.Priority, Scheduler.Limits> limits =
+                new EnumMap<>(Scheduler.Priority.class);
+        limits.put(Scheduler.Priority.INTERACTIVE, new Scheduler.Limits(2, 0));
+        limits.put(Scheduler.Priority.USER, new Scheduler.Limits(2, 0));
+        limits.put(Scheduler.Priority.BACKGROUND, new Scheduler.Limits(workers, 0));
+        Scheduler scheduler = new Scheduler(limits);
+        final double[] temperature = {ambient};
+        Governor governor = new Governor(scheduler,
+                Collections.singletonList(new Governor.Signal() {
+                    @Override
+                    public Governor.Pressure sample(long now) {
+                        int level = 0;
+                        while (level < THRESHOLDS.length && temperature[0] >= THRESHOLDS[level]) {
+                            level++;
+                        }
+                        return Governor.Pressure.values()[level];
+                    }
+                }));
+
+        double work = 0;
+        int throttled = 0;
+        double maxTemperature = ambient;
+        System.out.printf("%n%s%n  min     C  pressure  user  bulk%n", name);
+        for (int second = 0; second < minutes * 60; second++) {
+            if (governed && second % 5 == 0) {
+                governor.update(second * 1000L);
+            }
+            // one file for the user and a large import, both always waiting for workers
+            int busy = scheduler.getLimits(Scheduler.Priority.USER).concurrency +
+                    scheduler.getLimits(Scheduler.Priority.BACKGROUND).concurrency;
+            double speed = temperature[0] >= THROTTLE_AT ? 0.5 : 1;
+            if (speed < 1) {
+                throttled++;
+            }
+            work += busy * speed;
+            temperature[0] += busy * speed * HEAT_PER_WORKER -
+                    (temperature[0] - ambient) * COOLING;
+            maxTemperature = Math.max(maxTemperature, temperature[0]);
+            if (second % 120 == 0) {
+                System.out.printf("%5d %5.1f %-8s  %4d  %4d%n", second / 60, temperature[0],
+                        governor.getPressure(),
+                        scheduler.getLimits(Scheduler.Priority.USER).concurrency,
+                        scheduler.getLimits(Scheduler.Priority.BACKGROUND).concurrency);
+            }
+        }
+        System.out.printf("work: %.0f worker seconds, throttled: %d s, max: %.1f C%n", work,
+                throttled, maxTemperature);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.KeyGenerator;
+
+import de.j4velin.encrypter.core.CryptoEngine;
+import de.j4velin.encrypter.core.Fingerprints;
+import de.j4velin.encrypter.core.PipelinedInputStream;
+import de.j4velin.encrypter.core.PipelinedOutputStream;
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.SecretKeyProvider;
+
+/**
+ * Compares the sequential and the pipelined encryption of a file on throttled streams, which
+ * stand in for slow storage like SD cards or document providers.
+ * <p>
+ * Arguments: size in MiB, throttled bandwidth in MiB/s, latency per call in microseconds
+ */
+public class PipelineBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        int sizeMiB = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        double bandwidth = args.length > 1 ? Double.parseDouble(args[1]) : 40;
+        long latencyMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        CryptoEngine engine = new CryptoEngine(new SecretKeyProvider(generator.generateKey(),
+                KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey()));
+        byte[] plaintext = new byte[sizeMiB * 1024 * 1024];
+        new Random(42).nextBytes(plaintext);
+
+        // warm up the cipher
+        run(engine, plaintext, 1000, 0, false);
+        run(engine, plaintext, 1000, 0, true);
+
+        long sequential = run(engine, plaintext, bandwidth, latencyMicros, false);
+        long pipelined = run(engine, plaintext, bandwidth, latencyMicros, true);
+        System.out.printf("throttled to %.1f MiB/s, %d us latency per call (%d MiB)%n",
+                bandwidth, latencyMicros, sizeMiB);
+        System.out.printf("sequential: %d ms, %.1f MiB/s%n", sequential,
+                sizeMiB / (sequential / 1000.0));
+        System.out.printf("pipelined:  %d ms, %.1f MiB/s%n", pipelined,
+                sizeMiB / (pipelined / 1000.0));
+    }
+
+    private static long run(final CryptoEngine engine, final byte[] plaintext, double bandwidth,
+                            long latencyMicros, boolean pipelined) throws Exception {
+        InputStream in = new ThrottledInputStream(new ByteArrayInputStream(plaintext), bandwidth,
+                latencyMicros);
+        OutputStream out = new ThrottledOutputStream(new NullOutputStream(), bandwidth,
+                latencyMicros);
+        if (pipelined) {
+            in = new PipelinedInputStream(in);
+            out = new PipelinedOutputStream(out);
+        } else {
+            // same buffer size as the pipeline, so only the overlap is measured
+            in = new BufferedInputStream(in, PipelinedInputStream.DEFAULT_BUFFER_SIZE);
+            out = new BufferedOutputStream(out, PipelinedInputStream.DEFAULT_BUFFER_SIZE);
+        }
+        long start = System.nanoTime();
+        try {
+            engine.encrypt(in, out, new Progress(plaintext.length));
+        } finally {
+            in.close();
+            out.close();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Blocks the calling thread as long as the transfer of the given number of bytes would take
+     */
+    private static void throttle(int bytes, double bandwidth, long latencyMicros) {
+        long nanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros) +
+                (long) (bytes / (bandwidth * 1024 * 1024) * 1e9);
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            LockSupport.parkNanos(deadline - System.nanoTime());
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final double bandwidth;
+        private final long latencyMicros;
+
+        private ThrottledInputStream(final InputStream in, double bandwidth, long latencyMicros) {
+            super(in);
+            this.bandwidth = bandwidth;
+            this.latencyMicros = latencyMicros;
+        }
+
+        @Override
+        public int read(final byte[] b, int offset, int length) throws IOException {
+            int read = super.read(b, offset, length);
+            throttle(Math.max(read, 0), bandwidth, latencyMicros);
+            return read;
+        }
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        private final double bandwidth;
+        private final long latencyMicros;
+
+        private ThrottledOutputStream(final OutputStream out, double bandwidth,
+                                      long latencyMicros) {
+            super(out);
+            this.bandwidth = bandwidth;
+            this.latencyMicros = latencyMicros;
+        }
+
+        @Override
+        public void write(final byte[] b, int offset, int length) throws IOException {
+            out.write(b, offset, length);
+            throttle(length, bandwidth, latencyMicros);
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, int offset, int length) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+
+import de.j4velin.encrypter.core.CryptoEngine;
+import de.j4velin.encrypter.core.Fingerprints;
+import de.j4velin.encrypter.core.Progress;
+import de.j4velin.encrypter.core.SecretKeyProvider;
+
+/**
+ * Measures the in-memory encryption and decryption throughput of the {@link CryptoEngine} with a
+ * software key, so regressions of the hot path can be detected without a device.
+ * <p>
+ * Arguments: size in MiB, number of iterations, minimum throughput in MiB/s (0 to disable). The
+ * process exits with status 1, if the median throughput of either direction is below the minimum.
+ */
+public class ThroughputBenchmark {
+
+    private final static int WARMUP_ITERATIONS = 2;
+
+    public static void main(final String[] args) throws Exception {
+        int sizeMiB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double minThroughput = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        CryptoEngine engine = new CryptoEngine(new SecretKeyProvider(generator.generateKey(),
+                KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey()));
+
+        byte[] plaintext = new byte[sizeMiB * 1024 * 1024];
+        new Random(42).nextBytes(plaintext);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(plaintext.length + 4096);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream(plaintext.length);
+
+        double[] encryptRates = new double[iterations];
+        double[] decryptRates = new double[iterations];
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            encrypted.reset();
+            long start = System.nanoTime();
+            engine.encrypt(new ByteArrayInputStream(plaintext), encrypted,
+                    new Progress(plaintext.length));
+            long encryptTime = System.nanoTime() - start;
+
+            decrypted.reset();
+            byte[] ciphertext = encrypted.toByteArray();
+            start = System.nanoTime();
+            engine.decrypt(new ByteArrayInputStream(ciphertext), ciphertext.length, decrypted,
+                    new Progress(plaintext.length));
+            long decryptTime = System.nanoTime() - start;
+
+            if (decrypted.size() != plaintext.length) {
+                throw new IllegalStateException("Decrypted size does not match");
+            }
+            if (i >= 0) {
+                encryptRates[i] = rate(sizeMiB, encryptTime);
+                decryptRates[i] = rate(sizeMiB, decryptTime);
+            }
+        }
+
+        double encrypt = median(encryptRates);
+        double decrypt = median(decryptRates);
+        System.out.printf("encrypt: %.1f MiB/s, decrypt: %.1f MiB/s (%d MiB, %d iterations)%n",
+                encrypt, decrypt, sizeMiB, iterations);
+        if (minThroughput > 0 && (encrypt < minThroughput || decrypt < minThroughput)) {
+            System.err.printf("Throughput below the minimum of %.1f MiB/s%n", minThroughput);
+            System.exit(1);
+        }
+    }
+
+    private static double rate(int sizeMiB, long nanos) {
+        return sizeMiB / (nanos / 1e9);
+    }
+
+    private static double median(final double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+/**
+ * Measures the throughput of the cipher and the storage on synthetic data to find the buffer
+ * sizes and the number of concurrent writers which work best on the current device.
+ * <p>
+ * The first cipher is the one used for the actual jobs, the buffer size is chosen from its
+ * measurements. Further ciphers are only measured for comparison. Of several candidates, the
+ * smallest one which comes within {@link #TOLERANCE} of the fastest is chosen, as larger buffers
+ * and more threads only cost memory without a measurable gain.
+ */
+public class Calibrator {
+
+    public final static int[] CIPHER_BUFFER_SIZES = {4096, 8192, 16384, 65536, 262144};
+    public final static int[] IO_BUFFER_SIZES = {16384, 65536, 262144};
+    public final static int MAX_WRITERS = 4;
+    public final static int DEFAULT_SAMPLE_SIZE = 4 * 1024 * 1024;
+    public final static double TOLERANCE = 0.05;
+
+    public final static String CATEGORY_CIPHER = "cipher";
+    public final static String CATEGORY_STORAGE = "storage";
+    public final static String CATEGORY_WRITERS = "writers";
+
+    /**
+     * A cipher to measure
+     */
+    public interface CipherFactory {
+        /**
+         * @return the name shown in the measurements, for example the transformation
+         */
+        String getName();
+
+        /**
+         * @return a new cipher, initialized for encryption
+         */
+        Cipher newCipher() throws GeneralSecurityException;
+    }
+
+    /**
+     * The throughput of one candidate configuration
+     */
+    public static class Measurement {
+        public final String category;
+        public final String candidate;
+        public final int parameter;
+        public final long bytesPerSecond;
+
+        /**
+         * @param category       the measured aspect, one of the CATEGORY constants
+         * @param candidate      the name of the measured cipher or the storage
+         * @param parameter      the buffer size or the number of threads
+         * @param bytesPerSecond the measured throughput
+         */
+        public Measurement(final String category, final String candidate, int parameter,
+                           long bytesPerSecond) {
+            this.category = category;
+            this.candidate = candidate;
+            this.parameter = parameter;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * The chosen configuration together with all measurements it is based on
+     */
+    public static class Result {
+        public final String cipher;
+        public final int bufferSize;
+        public final int ioBufferSize;
+        public final int writers;
+        public final List<Measurement> measurements;
+
+        public Result(final String cipher, int bufferSize, int ioBufferSize, int writers,
+                      final List<Measurement> measurements) {
+            this.cipher = cipher;
+            this.bufferSize = bufferSize;
+            this.ioBufferSize = ioBufferSize;
+            this.writers = writers;
+            this.measurements = Collections.unmodifiableList(measurements);
+        }
+    }
+
+    private final List<CipherFactory> ciphers;
+    private final File directory;
+    private final int sampleSize;
+
+    /**
+     * @param ciphers    the ciphers to measure, the first one is the one used for the actual jobs
+     * @param directory  the directory on the storage to measure, temporary files are written to it
+     * @param sampleSize the number of bytes processed per measurement
+     */
+    public Calibrator(final List<CipherFactory> ciphers, final File directory, int sampleSize) {
+        if (ciphers.isEmpty()) {
+            throw new IllegalArgumentException("No cipher to measure");
+        }
+        this.ciphers = ciphers;
+        this.directory = directory;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @return the total number of bytes processed by {@link #run(Progress)}
+     */
+    public long getTotal() {
+        long total = (long) sampleSize *
+                (ciphers.size() * CIPHER_BUFFER_SIZES.length + 2 * IO_BUFFER_SIZES.length);
+        for (int threads = 1; threads <= MAX_WRITERS; threads++) {
+            // the writers share the sample evenly, the remainder is not written
+            total += (long) (sampleSize / threads) * threads;
+        }
+        return total;
+    }
+
+    /**
+     * Runs all measurements
+     *
+     * @param progress the progress to report the processed bytes to, its total should be
+     *                 {@link #getTotal()}. Canceling it aborts the calibration.
+     * @return the chosen configuration
+     */
+    public Result run(final Progress progress) throws IOException, GeneralSecurityException {
+        byte[] sample = new byte[CIPHER_BUFFER_SIZES[CIPHER_BUFFER_SIZES.length - 1]];
+        new Random().nextBytes(sample);
+        List<Measurement> measurements = new ArrayList<>();
+
+        List<Measurement> primary = new ArrayList<>(CIPHER_BUFFER_SIZES.length);
+        for (int i = 0; i < ciphers.size(); i++) {
+            // the first run only warms up the code paths, it would distort the smallest size
+            measureCipher(ciphers.get(i), CIPHER_BUFFER_SIZES[0], sample, null);
+            for (int size : CIPHER_BUFFER_SIZES) {
+                Measurement m = measureCipher(ciphers.get(i), size, sample, progress);
+                measurements.add(m);
+                if (i == 0) {
+                    primary.add(m);
+                }
+            }
+        }
+
+        List<Measurement> storage = new ArrayList<>(IO_BUFFER_SIZES.length);
+        for (int size : IO_BUFFER_SIZES) {
+            storage.add(measureStorage(size, sample, progress));
+        }
+        measurements.addAll(storage);
+        int ioBufferSize = choose(storage);
+
+        List<Measurement> writers = new ArrayList<>(MAX_WRITERS);
+        for (int threads = 1; threads <= MAX_WRITERS; threads++) {
+            writers.add(measureWriters(threads, ioBufferSize, sample, progress));
+        }
+        measurements.addAll(writers);
+
+        return new Result(ciphers.get(0).getName(), choose(primary), ioBufferSize,
+                choose(writers), measurements);
+    }
+
+    /**
+     * @return the smallest parameter within the tolerance of the best measurement
+     */
+    private static int choose(final List<Measurement> candidates) {
+        long best = 0;
+        for (Measurement m : candidates) {
+            best = Math.max(best, m.bytesPerSecond);
+        }
+        Measurement chosen = null;
+        for (Measurement m : candidates) {
+            if (m.bytesPerSecond >= best * (1 - TOLERANCE) &&
+                    (chosen == null || m.parameter < chosen.parameter)) {
+                chosen = m;
+            }
+        }
+        return chosen.parameter;
+    }
+
+    private Measurement measureCipher(final CipherFactory factory, int bufferSize,
+                                      final byte[] sample, final Progress progress)
+            throws GeneralSecurityException, IOException {
+        byte[] ciphertext = new byte[bufferSize + 2 * FileFormat.BLOCK_SIZE];
+        long start = System.nanoTime();
+        // initializing the cipher is part of every job, so it is part of the measurement too
+        Cipher cipher = factory.newCipher();
+        long done = 0;
+        while (done < sampleSize) {
+            int length = (int) Math.min(bufferSize, sampleSize - done);
+            cipher.update(sample, 0, length, ciphertext, 0);
+            done += length;
+            if (progress != null) {
+                progress.advance(length);
+            }
+        }
+        cipher.doFinal(ciphertext, 0);
+        return new Measurement(CATEGORY_CIPHER, factory.getName(), bufferSize,
+                rate(sampleSize, start));
+    }
+
+    private Measurement measureStorage(int bufferSize, final byte[] sample,
+                                       final Progress progress) throws IOException {
+        File file = File.createTempFile("calibration", null, directory);
+        try {
+            long start = System.nanoTime();
+            write(file, sampleSize, bufferSize, sample, progress);
+            byte[] buffer = new byte[bufferSize];
+            try (FileInputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    progress.advance(read);
+                }
+            }
+            return new Measurement(CATEGORY_STORAGE, directory.getPath(), bufferSize,
+                    rate(2L * sampleSize, start));
+        } finally {
+            delete(file);
+        }
+    }
+
+    private Measurement measureWriters(int threads, final int bufferSize, final byte[] sample,
+                                       final Progress progress) throws IOException {
+        final int share = sampleSize / threads;
+        List<File> files = new ArrayList<>(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(threads);
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                final File file = File.createTempFile("calibration", null, directory);
+                files.add(file);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // Progress is not thread safe, so the bytes are reported afterwards
+                        write(file, share, bufferSize, sample, null);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            progress.advance((long) share * threads);
+            return new Measurement(CATEGORY_WRITERS, directory.getPath(), threads,
+                    rate((long) share * threads, start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (File file : files) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Writes the given number of bytes and waits until they have reached the storage, as
+     * otherwise only the speed of the page cache would be measured
+     *
+     * @param progress the progress to report the written bytes to or null
+     */
+    private static void write(final File file, int length, int bufferSize, final byte[] sample,
+                              final Progress progress) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            int done = 0;
+            while (done < length) {
+                int chunk = Math.min(Math.min(bufferSize, sample.length), length - done);
+                out.write(sample, 0, chunk);
+                done += chunk;
+                if (progress != null) {
+                    progress.advance(chunk);
+                }
+            }
+            out.getFD().sync();
+        }
+    }
+
+    private static long rate(long bytes, long start) {
+        long nanos = Math.max(1, System.nanoTime() - start);
+        return (long) (bytes * 1e9 / nanos);
+    }
+
+    private static void delete(final File f) {
+        if (f.exists() && !f.delete()) {
+            f.deleteOnExit();
+        }
+    }
+}
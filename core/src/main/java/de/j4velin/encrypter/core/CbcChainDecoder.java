@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Decrypts several independent AES/CBC ciphertexts ("segments", each with its own IV) within a
+ * single cipher operation.
+ * <p>
+ * Our key requires a fingerprint authentication for every cipher operation, so decrypting n files
+ * the usual way would require n authentications. In CBC mode, every plaintext block only depends
+ * on the current and the previous ciphertext block. If the ciphertexts are fed into one cipher
+ * back to back, only the first block of each segment is decrypted with the wrong "previous block"
+ * (the last block of the preceding segment instead of the segment's IV), which is corrected by
+ * XORing it with both. The PKCS7 padding of each segment is removed manually.
+ * <p>
+ * To let the cipher's own padding check succeed at the end, a trailer of two blocks is fed before
+ * calling {@link Cipher#doFinal()}: the last ciphertext block of a segment with valid padding and
+ * its true predecessor. The trailer's plaintext is discarded.
+ * <p>
+ * This class is not thread safe, all methods must be called from the same thread.
+ */
+public class CbcChainDecoder {
+
+    public final static int BLOCK_SIZE = 16;
+
+    /**
+     * Receives the plaintext of a single segment
+     */
+    public interface Sink {
+        /**
+         * Called with the next part of the plaintext. The given buffer must not be retained.
+         */
+        void write(final byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Called once all plaintext of the segment has been written
+         *
+         * @param valid false, if the segment was malformed (wrong length or padding) or the
+         *              decoding has been aborted
+         */
+        void end(boolean valid) throws IOException;
+    }
+
+    /**
+     * State of a single segment. Segment objects are reused once their sink has been ended, so
+     * decoding does not allocate per segment.
+     */
+    private static class Segment {
+        private Sink sink;
+        private boolean padded;
+        /**
+         * The segment's IV
+         */
+        private final byte[] iv = new byte[BLOCK_SIZE];
+        /**
+         * True, once the first block has been fed
+         */
+        private boolean started;
+        /**
+         * XOR mask to correct the first plaintext block, only used if {@link #masked}
+         */
+        private final byte[] mask = new byte[BLOCK_SIZE];
+        private boolean masked;
+        private final byte[] partial = new byte[BLOCK_SIZE];
+        private int partialLength;
+        /**
+         * The last and second to last ciphertext block fed, used as trailer candidate
+         */
+        private final byte[] lastBlock = new byte[BLOCK_SIZE];
+        private final byte[] beforeLastBlock = new byte[BLOCK_SIZE];
+        private boolean aligned;
+        private long fed;
+
+        /**
+         * The total number of plaintext bytes (including padding) or -1, while still open
+         */
+        private long length;
+        private long received;
+        private final byte[] tail = new byte[BLOCK_SIZE];
+        private int tailLength;
+
+        private void reset(final Sink sink, final byte[] iv, boolean padded) {
+            this.sink = sink;
+            this.padded = padded;
+            System.arraycopy(iv, 0, this.iv, 0, BLOCK_SIZE);
+            started = false;
+            masked = false;
+            partialLength = 0;
+            aligned = true;
+            fed = 0;
+            length = -1;
+            received = 0;
+            tailLength = 0;
+        }
+    }
+
+    private final Cipher cipher;
+    private final byte[] previousBlock;
+    private final Queue<Segment> pending = new ArrayDeque<>();
+    private final Queue<Segment> recycled = new ArrayDeque<>();
+    private Segment current;
+    private byte[] trailer;
+    private byte[] output = new byte[0];
+    private boolean finished;
+
+    /**
+     * @param cipher    the cipher, initialized for decryption in CBC mode with PKCS7 padding
+     * @param initialIv the IV the cipher has been initialized with
+     */
+    public CbcChainDecoder(final Cipher cipher, final byte[] initialIv) {
+        this.cipher = cipher;
+        this.previousBlock = Arrays.copyOf(initialIv, BLOCK_SIZE);
+    }
+
+    /**
+     * Starts a new segment. The previous segment must have been ended.
+     *
+     * @param iv     the segment's IV
+     * @param sink   the sink to receive the segment's plaintext
+     * @param padded true, if the segment is PKCS7 padded
+     */
+    public void beginSegment(final byte[] iv, final Sink sink, boolean padded) {
+        if (current != null || finished) {
+            throw new IllegalStateException("Previous segment not ended");
+        }
+        if (iv.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid IV length: " + iv.length);
+        }
+        Segment segment = recycled.poll();
+        if (segment == null) {
+            segment = new Segment();
+        }
+        segment.reset(sink, iv, padded);
+        current = segment;
+        pending.add(segment);
+    }
+
+    /**
+     * Decrypts the next part of the current segment's ciphertext
+     */
+    public void update(final byte[] input, int offset, int length) throws IOException {
+        Segment s = current;
+        if (s.partialLength > 0) {
+            int n = Math.min(length, BLOCK_SIZE - s.partialLength);
+            System.arraycopy(input, offset, s.partial, s.partialLength, n);
+            s.partialLength += n;
+            offset += n;
+            length -= n;
+            if (s.partialLength < BLOCK_SIZE) {
+                return;
+            }
+            feed(s, s.partial, 0, BLOCK_SIZE);
+            s.partialLength = 0;
+        }
+        int whole = length - length % BLOCK_SIZE;
+        if (whole > 0) {
+            feed(s, input, offset, whole);
+        }
+        if (whole < length) {
+            System.arraycopy(input, offset + whole, s.partial, 0, length - whole);
+            s.partialLength = length - whole;
+        }
+    }
+
+    /**
+     * Ends the current segment
+     *
+     * @param valid false, if the caller could not read the segment completely. The segment's sink
+     *              will eventually be ended as invalid in that case.
+     */
+    public void endSegment(boolean valid) throws IOException {
+        Segment s = current;
+        current = null;
+        // an incomplete last block can not be fed without breaking the following segments
+        s.aligned = valid && s.partialLength == 0;
+        s.length = s.fed;
+        if (s.received >= s.length) {
+            complete(s);
+        }
+    }
+
+    /**
+     * Finishes the cipher operation and flushes all remaining plaintext to the sinks
+     */
+    public void finish() throws IOException, GeneralSecurityException {
+        if (current != null) {
+            throw new IllegalStateException("Segment not ended");
+        }
+        finished = true;
+        if (trailer == null) {
+            // no segment validated so far, use the most recent padded one as candidate
+            for (Segment s : pending) {
+                if (s.padded && s.aligned && s.started) {
+                    trailer = trailerOf(s);
+                }
+            }
+        }
+        try {
+            int length = 0;
+            if (trailer != null) {
+                ensureOutputCapacity(trailer.length);
+                length = cipher.update(trailer, 0, trailer.length, output, 0);
+            }
+            route(output, 0, length);
+            ensureOutputCapacity(0);
+            route(output, 0, cipher.doFinal(output, 0));
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Ends all segments which have not been completed yet as invalid
+     */
+    public void abort() throws IOException {
+        finished = true;
+        current = null;
+        Segment s;
+        while ((s = pending.poll()) != null) {
+            s.sink.end(false);
+            recycle(s);
+        }
+    }
+
+    private void feed(final Segment s, final byte[] input, int offset, int length)
+            throws IOException {
+        if (!s.started) {
+            if (!Arrays.equals(s.iv, previousBlock)) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    s.mask[i] = (byte) (s.iv[i] ^ previousBlock[i]);
+                }
+                s.masked = true;
+            }
+            System.arraycopy(s.iv, 0, s.lastBlock, 0, BLOCK_SIZE);
+            s.started = true;
+        }
+        if (length >= 2 * BLOCK_SIZE) {
+            System.arraycopy(input, offset + length - 2 * BLOCK_SIZE, s.beforeLastBlock, 0,
+                    BLOCK_SIZE);
+        } else {
+            System.arraycopy(s.lastBlock, 0, s.beforeLastBlock, 0, BLOCK_SIZE);
+        }
+        System.arraycopy(input, offset + length - BLOCK_SIZE, s.lastBlock, 0, BLOCK_SIZE);
+        System.arraycopy(s.lastBlock, 0, previousBlock, 0, BLOCK_SIZE);
+        s.fed += length;
+        ensureOutputCapacity(length);
+        try {
+            route(output, 0, cipher.update(input, offset, length, output, 0));
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Makes sure the output buffer can take the output of feeding the given number of bytes
+     */
+    private void ensureOutputCapacity(int inputLength) {
+        int required = cipher.getOutputSize(inputLength);
+        if (output.length < required) {
+            output = new byte[Math.max(required, 2 * output.length)];
+        }
+    }
+
+    private void route(final byte[] plaintext, int offset, int length) throws IOException {
+        while (length > 0) {
+            Segment s = pending.peek();
+            if (s == null) {
+                // trailer
+                return;
+            }
+            int n = s.length < 0 ? length : (int) Math.min(length, s.length - s.received);
+            accept(s, plaintext, offset, n);
+            offset += n;
+            length -= n;
+            if (s.length >= 0 && s.received >= s.length) {
+                complete(s);
+            }
+        }
+    }
+
+    private void accept(final Segment s, final byte[] buffer, int offset, int length)
+            throws IOException {
+        if (s.masked && s.received < BLOCK_SIZE) {
+            int n = (int) Math.min(length, BLOCK_SIZE - s.received);
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] ^= s.mask[(int) s.received + i];
+            }
+        }
+        s.received += length;
+        if (!s.padded) {
+            s.sink.write(buffer, offset, length);
+            return;
+        }
+        // hold back the last block, which contains the padding
+        int total = s.tailLength + length;
+        if (total <= BLOCK_SIZE) {
+            System.arraycopy(buffer, offset, s.tail, s.tailLength, length);
+            s.tailLength = total;
+            return;
+        }
+        int emit = total - BLOCK_SIZE;
+        int fromTail = Math.min(emit, s.tailLength);
+        if (fromTail > 0) {
+            s.sink.write(s.tail, 0, fromTail);
+        }
+        int fromBuffer = emit - fromTail;
+        if (fromBuffer > 0) {
+            s.sink.write(buffer, offset, fromBuffer);
+        }
+        int kept = s.tailLength - fromTail;
+        System.arraycopy(s.tail, fromTail, s.tail, 0, kept);
+        System.arraycopy(buffer, offset + fromBuffer, s.tail, kept, length - fromBuffer);
+        s.tailLength = BLOCK_SIZE;
+    }
+
+    private void complete(final Segment s) throws IOException {
+        pending.remove(s);
+        boolean valid = s.aligned;
+        if (s.padded) {
+            int pad = s.tailLength == BLOCK_SIZE ? s.tail[BLOCK_SIZE - 1] & 0xff : 0;
+            valid &= pad > 0 && pad <= BLOCK_SIZE;
+            for (int i = BLOCK_SIZE - pad; valid && i < BLOCK_SIZE; i++) {
+                valid = s.tail[i] == pad;
+            }
+            if (valid) {
+                s.sink.write(s.tail, 0, BLOCK_SIZE - pad);
+                if (trailer == null) {
+                    trailer = trailerOf(s);
+                }
+            }
+        } else if (s.tailLength > 0) {
+            s.sink.write(s.tail, 0, s.tailLength);
+        }
+        s.sink.end(valid);
+        recycle(s);
+    }
+
+    private void recycle(final Segment s) {
+        s.sink = null;
+        recycled.add(s);
+    }
+
+    private static byte[] trailerOf(final Segment s) {
+        byte[] t = new byte[2 * BLOCK_SIZE];
+        System.arraycopy(s.beforeLastBlock, 0, t, 0, BLOCK_SIZE);
+        System.arraycopy(s.lastBlock, 0, t, BLOCK_SIZE, BLOCK_SIZE);
+        return t;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encrypts several files within a single cipher operation, the counterpart of
+ * {@link CbcChainDecoder}.
+ * <p>
+ * The plaintexts are fed into one AES/CBC cipher back to back, each padded manually with PKCS7.
+ * As every CBC ciphertext block only depends on the previous one, the ciphertext of each file is
+ * a valid CBC ciphertext on its own, with the last ciphertext block of the preceding file as its
+ * IV. Each file is written in the chunked {@link FileFormat} with that IV, so it can be decrypted
+ * independently of the others.
+ * <p>
+ * The cipher may hold back ciphertext, so the output of a file is only complete after later
+ * files have been fed or after {@link #finish()}. Each output stream is closed as soon as all of
+ * its ciphertext has been written.
+ * <p>
+ * This class is not thread safe, all methods must be called from the same thread.
+ */
+public class CbcChainEncoder {
+
+    private final static int BLOCK_SIZE = FileFormat.BLOCK_SIZE;
+
+    /**
+     * A file whose ciphertext has not been written completely yet
+     */
+    private static class Segment {
+        private final OutputStream output;
+        private OutputStream chunked;
+        /**
+         * The length of the ciphertext or -1, while the plaintext is still being fed
+         */
+        private long length = -1;
+        private long written;
+
+        private Segment(final OutputStream output) {
+            this.output = output;
+        }
+    }
+
+    private final Cipher cipher;
+    private final Key fingerprintKey;
+    private final int chunkSize;
+    private final byte[] buffer;
+    private final byte[] ciphertext;
+    /**
+     * The last ciphertext block written, which is the IV of the next file
+     */
+    private final byte[] lastBlock;
+    private final Queue<Segment> segments = new ArrayDeque<>();
+
+    /**
+     * @param cipher         the cipher, initialized for encryption with PKCS7 padding
+     * @param fingerprintKey the key to compute the fingerprints with
+     * @param chunkSize      the chunk size of the written files, a multiple of the block size
+     * @param bufferSize     the size of the buffers passed to the cipher, see {@link Calibrator}
+     */
+    public CbcChainEncoder(final Cipher cipher, final Key fingerprintKey, int chunkSize,
+                           int bufferSize) {
+        this.cipher = cipher;
+        this.fingerprintKey = fingerprintKey;
+        this.chunkSize = chunkSize;
+        buffer = new byte[Math.max(bufferSize, BLOCK_SIZE)];
+        // room for the blocks buffered by the cipher
+        ciphertext = new byte[buffer.length + 2 * BLOCK_SIZE];
+        lastBlock = Arrays.copyOf(cipher.getIV(), BLOCK_SIZE);
+    }
+
+    /**
+     * Encrypts the next file
+     *
+     * @param plaintext the plaintext, which is not closed
+     * @param output    the stream to write the encrypted file to, which is closed once the file
+     *                  is complete
+     * @param progress  the progress to report the read bytes to
+     * @return the fingerprints of the plaintext
+     */
+    public Fingerprints encrypt(final InputStream plaintext, final OutputStream output,
+                                final Progress progress)
+            throws IOException, GeneralSecurityException {
+        Segment segment = new Segment(output);
+        segments.add(segment);
+        Fingerprints.FingerprintingInputStream in =
+                new Fingerprints.FingerprintingInputStream(plaintext, fingerprintKey, chunkSize);
+        long length = 0;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            write(cipher.update(buffer, 0, read, ciphertext, 0));
+            length += read;
+            progress.advance(read);
+        }
+        int padding = BLOCK_SIZE - (int) (length % BLOCK_SIZE);
+        Arrays.fill(buffer, 0, padding, (byte) padding);
+        segment.length = length + padding;
+        write(cipher.update(buffer, 0, padding, ciphertext, 0));
+        return in.getFingerprints();
+    }
+
+    /**
+     * Completes the cipher operation and the remaining files. The cipher adds a block of padding
+     * of its own, which belongs to no file and is discarded.
+     */
+    public void finish() throws IOException, GeneralSecurityException {
+        write(cipher.doFinal(ciphertext, 0));
+        if (!segments.isEmpty()) {
+            throw new IOException("Ciphertext incomplete");
+        }
+    }
+
+    /**
+     * Distributes the given amount of ciphertext from {@link #ciphertext} to the files
+     */
+    private void write(int length) throws IOException {
+        int offset = 0;
+        while (offset < length && !segments.isEmpty()) {
+            Segment segment = segments.peek();
+            if (segment.chunked == null) {
+                FileFormat.writeChunkedHeader(segment.output, chunkSize);
+                segment.output.write(lastBlock);
+                segment.chunked = new FileFormat.ChunkedOutputStream(segment.output, chunkSize);
+            }
+            int n = segment.length < 0 ? length - offset :
+                    (int) Math.min(length - offset, segment.length - segment.written);
+            segment.chunked.write(ciphertext, offset, n);
+            rememberLastBlock(offset, n);
+            segment.written += n;
+            offset += n;
+            if (segment.written == segment.length) {
+                segment.chunked.flush();
+                segment.output.close();
+                segments.remove();
+            }
+        }
+    }
+
+    private void rememberLastBlock(int offset, int length) {
+        if (length >= BLOCK_SIZE) {
+            System.arraycopy(ciphertext, offset + length - BLOCK_SIZE, lastBlock, 0, BLOCK_SIZE);
+        } else {
+            System.arraycopy(lastBlock, length, lastBlock, 0, BLOCK_SIZE - length);
+            System.arraycopy(ciphertext, offset, lastBlock, BLOCK_SIZE - length, length);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+
+/**
+ * Streaming encryption and decryption of single files in the {@link FileFormat}.
+ * <p>
+ * The static methods work with an already initialized cipher, which is how the Android app uses
+ * them after the user has authenticated the cipher. The instance methods obtain their ciphers
+ * from a {@link KeyProvider}. None of the methods close the given streams.
+ * <p>
+ * The cipher always works on preallocated buffers, so the steady state of the encryption and
+ * decryption loops does not allocate any memory.
+ */
+public class CryptoEngine {
+
+    public final static int BUFFER_SIZE = 8192;
+
+    private final KeyProvider keys;
+
+    public CryptoEngine(final KeyProvider keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Encrypts a file using a new cipher from the key provider
+     *
+     * @param plaintext the plaintext
+     * @param output    the stream to write the encrypted file to
+     * @param progress  the progress to report the read bytes to
+     * @return the fingerprints of the plaintext
+     */
+    public Fingerprints encrypt(final InputStream plaintext, final OutputStream output,
+                                final Progress progress)
+            throws IOException, GeneralSecurityException {
+        return encrypt(keys.getCipher(null), keys.getFingerprintKey(), plaintext, output,
+                FileFormat.DEFAULT_CHUNK_SIZE, progress);
+    }
+
+    /**
+     * @see #encrypt(InputStream, OutputStream, Progress)
+     */
+    public Fingerprints encrypt(final ReadableByteChannel plaintext,
+                                final WritableByteChannel output, final Progress progress)
+            throws IOException, GeneralSecurityException {
+        OutputStream out = Channels.newOutputStream(output);
+        Fingerprints fingerprints = encrypt(Channels.newInputStream(plaintext), out, progress);
+        out.flush();
+        return fingerprints;
+    }
+
+    /**
+     * Decrypts a file using a new cipher from the key provider
+     *
+     * @param input    the encrypted file
+     * @param length   the total length of the encrypted file
+     * @param output   the stream to write the plaintext to
+     * @param progress the progress to report the written bytes to
+     */
+    public void decrypt(final InputStream input, long length, final OutputStream output,
+                        final Progress progress) throws IOException, GeneralSecurityException {
+        FileFormat.Header header = FileFormat.readHeader(input);
+        decrypt(header, keys.getCipher(header.iv), input, length, output, progress);
+    }
+
+    /**
+     * @see #decrypt(InputStream, long, OutputStream, Progress)
+     */
+    public void decrypt(final ReadableByteChannel input, long length,
+                        final WritableByteChannel output, final Progress progress)
+            throws IOException, GeneralSecurityException {
+        OutputStream out = Channels.newOutputStream(output);
+        decrypt(Channels.newInputStream(input), length, out, progress);
+        out.flush();
+    }
+
+    /**
+     * Encrypts a file into the chunked format
+     *
+     * @param cipher         the cipher, initialized for encryption
+     * @param fingerprintKey the key to compute the fingerprints with
+     * @param plaintext      the plaintext
+     * @param output         the stream to write the encrypted file to
+     * @param chunkSize      the chunk size, a multiple of the block size
+     * @param progress       the progress to report the read bytes to
+     * @return the fingerprints of the plaintext
+     */
+    public static Fingerprints encrypt(final Cipher cipher, final Key fingerprintKey,
+                                       final InputStream plaintext, final OutputStream output,
+                                       int chunkSize, final Progress progress)
+            throws IOException, GeneralSecurityException {
+        return encrypt(cipher, fingerprintKey, plaintext, output, chunkSize, BUFFER_SIZE,
+                progress);
+    }
+
+    /**
+     * Encrypts a file into the chunked format, passing the given amount of plaintext to the
+     * cipher at once
+     *
+     * @param cipher         the cipher, initialized for encryption
+     * @param fingerprintKey the key to compute the fingerprints with
+     * @param plaintext      the plaintext
+     * @param output         the stream to write the encrypted file to
+     * @param chunkSize      the chunk size, a multiple of the block size
+     * @param bufferSize     the size of the buffers passed to the cipher, see {@link Calibrator}
+     * @param progress       the progress to report the read bytes to
+     * @return the fingerprints of the plaintext
+     */
+    public static Fingerprints encrypt(final Cipher cipher, final Key fingerprintKey,
+                                       final InputStream plaintext, final OutputStream output,
+                                       int chunkSize, int bufferSize, final Progress progress)
+            throws IOException, GeneralSecurityException {
+        Fingerprints.FingerprintingInputStream in =
+                new Fingerprints.FingerprintingInputStream(plaintext, fingerprintKey, chunkSize);
+        FileFormat.writeChunkedHeader(output, chunkSize);
+        output.write(cipher.getIV());
+        OutputStream out = new FileFormat.ChunkedOutputStream(output, chunkSize);
+        byte[] buffer = new byte[bufferSize];
+        // room for the block buffered by the cipher and the padding
+        byte[] ciphertext = new byte[bufferSize + 2 * FileFormat.BLOCK_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(ciphertext, 0, cipher.update(buffer, 0, read, ciphertext, 0));
+            progress.advance(read);
+        }
+        out.write(ciphertext, 0, cipher.doFinal(ciphertext, 0));
+        out.flush();
+        return in.getFingerprints();
+    }
+
+    /**
+     * Decrypts a file in the chunked or the legacy format
+     *
+     * @param header   the header, already read from the input
+     * @param cipher   the cipher, initialized for decryption with the header's IV
+     * @param input    the encrypted file, positioned after the header
+     * @param length   the total length of the encrypted file, including the header
+     * @param output   the stream to write the plaintext to
+     * @param progress the progress to report the written bytes to
+     * @throws IOException if the file can not be read or is corrupt
+     */
+    public static void decrypt(final FileFormat.Header header, final Cipher cipher,
+                               final InputStream input, long length, final OutputStream output,
+                               final Progress progress) throws IOException {
+        decrypt(header, cipher, input, length, output, BUFFER_SIZE, progress);
+    }
+
+    /**
+     * Decrypts a file in the chunked or the legacy format, passing the given amount of ciphertext
+     * to the cipher at once
+     *
+     * @param header     the header, already read from the input
+     * @param cipher     the cipher, initialized for decryption with the header's IV
+     * @param input      the encrypted file, positioned after the header
+     * @param length     the total length of the encrypted file, including the header
+     * @param output     the stream to write the plaintext to
+     * @param bufferSize the size of the buffers passed to the cipher, see {@link Calibrator}
+     * @param progress   the progress to report the written bytes to
+     * @throws IOException if the file can not be read or is corrupt
+     */
+    public static void decrypt(final FileFormat.Header header, final Cipher cipher,
+                               final InputStream input, long length, final OutputStream output,
+                               int bufferSize, final Progress progress) throws IOException {
+        InputStream in = new FileFormat.DecryptingInputStream(header, input, length,
+                new CbcChainDecoder(cipher, header.iv), new byte[bufferSize]);
+        byte[] buffer = new byte[bufferSize];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+            progress.advance(read);
+        }
+        output.flush();
+    }
+}
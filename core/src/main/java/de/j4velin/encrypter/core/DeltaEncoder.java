@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encrypts a new version of a chunked file (see {@link FileFormat}), re-encrypting only the
+ * chunks whose fingerprint has changed.
+ * <p>
+ * All changed chunks are encrypted within one cipher operation, so their ciphertexts form a
+ * single CBC stream, which is written to a staging file first. The IV of each changed slot is the
+ * ciphertext block preceding it in that stream. Only after the whole new version has been
+ * processed, the changed slots are copied from the staging file into the encrypted file, so an
+ * aborted {@link #encode} leaves the existing file untouched.
+ * <p>
+ * {@link #apply} overwrites the changed slots in place and is not atomic: if it is interrupted,
+ * the file contains slots of both versions and can not be decrypted. Callers which need the old
+ * version to survive have to apply the delta to a copy and rename it over the file afterwards.
+ */
+public class DeltaEncoder {
+
+    private final static int BLOCK_SIZE = FileFormat.BLOCK_SIZE;
+
+    private DeltaEncoder() {
+    }
+
+    /**
+     * A slot which has to be rewritten
+     */
+    public static class ChangedSlot {
+        public final int index;
+        /**
+         * The position of the slot's ciphertext within the staging file
+         */
+        public final long offset;
+        public final int length;
+
+        private ChangedSlot(int index, long offset, int length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The outcome of {@link #encode}
+     */
+    public static class Delta {
+        /**
+         * The IV of the first changed slot
+         */
+        public final byte[] iv;
+        public final List<ChangedSlot> slots;
+        public final Fingerprints fingerprints;
+        /**
+         * The plaintext size of the new version
+         */
+        public final long size;
+
+        private Delta(final byte[] iv, final List<ChangedSlot> slots,
+                      final Fingerprints fingerprints, long size) {
+            this.iv = iv;
+            this.slots = slots;
+            this.fingerprints = fingerprints;
+            this.size = size;
+        }
+
+        /**
+         * @return the number of slots of the new version
+         */
+        public int slotCount() {
+            return fingerprints.size();
+        }
+
+        /**
+         * @return the total length of the encrypted file of the new version
+         */
+        public long encryptedLength() {
+            int chunkSize = fingerprints.chunkSize;
+            long lastChunk = size - (long) (slotCount() - 1) * chunkSize;
+            return FileFormat.CHUNKED_HEADER_LENGTH +
+                    (long) (slotCount() - 1) * (BLOCK_SIZE + chunkSize) + BLOCK_SIZE +
+                    paddedLength(lastChunk);
+        }
+    }
+
+    /**
+     * Compares the new version of a file with the fingerprints of the old version and encrypts
+     * all changed chunks
+     *
+     * @param plaintext      the new version
+     * @param old            the fingerprints of the old version, empty to encrypt everything
+     * @param fingerprintKey the key the old fingerprints have been computed with
+     * @param cipher         the authenticated cipher, initialized for encryption
+     * @param staging        the stream to write the ciphertext of the changed chunks to
+     * @param progress       the progress to report the read bytes to
+     * @return the changed slots and the fingerprints of the new version
+     */
+    public static Delta encode(final InputStream plaintext, final Fingerprints old,
+                               final Key fingerprintKey, final Cipher cipher,
+                               final OutputStream staging, final Progress progress)
+            throws IOException, GeneralSecurityException {
+        int chunkSize = old.chunkSize;
+        Fingerprints.Hasher hasher = new Fingerprints.Hasher(fingerprintKey, old.salt);
+        byte[] chunk = new byte[chunkSize];
+        byte[] ciphertext = new byte[chunkSize + 2 * BLOCK_SIZE];
+        List<byte[]> hashes = new ArrayList<>(old.size());
+        List<ChangedSlot> changed = new ArrayList<>();
+        long fed = 0;
+        long size = 0;
+        boolean last = false;
+        for (int index = 0; !last; index++) {
+            int length = readFully(plaintext, chunk);
+            last = length < chunkSize;
+            size += length;
+            byte[] hash = hasher.hash(chunk, 0, length);
+            hashes.add(hash);
+            if (!old.matches(index, hash)) {
+                int ciphertextLength = last ? paddedLength(length) : length;
+                changed.add(new ChangedSlot(index, fed, ciphertextLength));
+                fed += ciphertextLength;
+                int n = last ? cipher.doFinal(chunk, 0, length, ciphertext, 0) :
+                        cipher.update(chunk, 0, length, ciphertext, 0);
+                staging.write(ciphertext, 0, n);
+            } else if (last) {
+                // the last chunk is unchanged, the padding block produced here is not needed
+                staging.write(ciphertext, 0, cipher.doFinal(ciphertext, 0));
+            }
+            progress.advance(length);
+        }
+        return new Delta(cipher.getIV(), changed, new Fingerprints(old.salt, chunkSize, hashes),
+                size);
+    }
+
+    /**
+     * Writes the changed slots into the encrypted file
+     *
+     * @param delta   the delta returned by {@link #encode}
+     * @param staging the staging file written by {@link #encode}
+     * @param target  the encrypted file of the old version or an empty file
+     */
+    public static void apply(final Delta delta, final RandomAccessFile staging,
+                             final RandomAccessFile target) throws IOException {
+        int chunkSize = delta.fingerprints.chunkSize;
+        byte[] slot = new byte[BLOCK_SIZE + chunkSize + BLOCK_SIZE];
+        target.seek(0);
+        FileFormat.writeChunkedHeader(new RandomAccessFileOutputStream(target), chunkSize);
+        for (ChangedSlot s : delta.slots) {
+            if (s.offset == 0) {
+                System.arraycopy(delta.iv, 0, slot, 0, BLOCK_SIZE);
+                staging.seek(0);
+                staging.readFully(slot, BLOCK_SIZE, s.length);
+            } else {
+                staging.seek(s.offset - BLOCK_SIZE);
+                staging.readFully(slot, 0, BLOCK_SIZE + s.length);
+            }
+            target.seek(FileFormat.CHUNKED_HEADER_LENGTH +
+                    (long) s.index * (BLOCK_SIZE + chunkSize));
+            target.write(slot, 0, BLOCK_SIZE + s.length);
+        }
+        target.setLength(delta.encryptedLength());
+    }
+
+    /**
+     * @return the length of the PKCS7 padded ciphertext of a plaintext of the given length
+     */
+    public static int paddedLength(long length) {
+        return (int) (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    private static int readFully(final InputStream in, final byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length &&
+                (read = in.read(buffer, total, buffer.length - total)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static class RandomAccessFileOutputStream extends OutputStream {
+        private final RandomAccessFile file;
+
+        private RandomAccessFileOutputStream(final RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            file.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, int offset, int length) throws IOException {
+            file.write(b, offset, length);
+        }
+    }
+}
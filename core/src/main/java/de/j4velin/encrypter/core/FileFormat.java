@@ -0,0 +1,461 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * The layout of our encrypted files.
+ * <p>
+ * Legacy files consist of the IV length (always 16), the IV and the AES/CBC/PKCS7 ciphertext.
+ * <p>
+ * Chunked files start with a zero byte (which can not be a valid IV length), the format version
+ * and the chunk size. The plaintext is split into chunks of exactly chunk size bytes and a last,
+ * shorter (possibly empty) chunk. Each chunk is stored in its own slot: the IV followed by the
+ * chunk's ciphertext. Only the last chunk is padded, so every slot except the last one is exactly
+ * {@code 16 + chunk size} bytes long and can be read or rewritten independently.
+ * <p>
+ * A newly encrypted file is still a single CBC stream: the IV of each slot is simply the last
+ * ciphertext block of the previous slot.
+ */
+public class FileFormat {
+
+    public final static int BLOCK_SIZE = CbcChainDecoder.BLOCK_SIZE;
+    public final static int VERSION_LEGACY = 1;
+    public final static int VERSION_CHUNKED = 2;
+    public final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /**
+     * Length of the chunked header, without the first slot's IV
+     */
+    public final static int CHUNKED_HEADER_LENGTH = 6;
+
+    private FileFormat() {
+    }
+
+    /**
+     * The header of an encrypted file
+     */
+    public static class Header {
+        public final int version;
+        public final int chunkSize;
+        /**
+         * The IV of the first (or only) segment
+         */
+        public final byte[] iv;
+
+        private Header(int version, int chunkSize, final byte[] iv) {
+            this.version = version;
+            this.chunkSize = chunkSize;
+            this.iv = iv;
+        }
+
+        /**
+         * @return the number of bytes read by {@link #readHeader(InputStream)}
+         */
+        public int length() {
+            return version == VERSION_LEGACY ? 1 + BLOCK_SIZE :
+                    CHUNKED_HEADER_LENGTH + BLOCK_SIZE;
+        }
+
+        /**
+         * @param index the index of the slot
+         * @return the position of the given slot within a chunked file
+         */
+        public long slotOffset(int index) {
+            return CHUNKED_HEADER_LENGTH + (long) index * (BLOCK_SIZE + chunkSize);
+        }
+
+        /**
+         * @param length the total length of the chunked file
+         * @return the number of slots of the file
+         */
+        public int slotCount(long length) {
+            long slot = BLOCK_SIZE + chunkSize;
+            return (int) ((length - CHUNKED_HEADER_LENGTH + slot - 1) / slot);
+        }
+    }
+
+    /**
+     * Reads the header and the first IV of an encrypted file
+     *
+     * @param input the stream of the encrypted file, positioned at the start of the file
+     * @return the header
+     * @throws IOException if the header can not be read or is invalid
+     */
+    public static Header readHeader(final InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        int first = in.read();
+        int version, chunkSize;
+        if (first == BLOCK_SIZE) {
+            version = VERSION_LEGACY;
+            chunkSize = 0;
+        } else if (first == 0) {
+            version = in.read();
+            chunkSize = in.readInt();
+            if (version != VERSION_CHUNKED || chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0) {
+                throw new IOException("Unsupported file format");
+            }
+        } else {
+            throw new IOException("Invalid header");
+        }
+        byte[] iv = new byte[BLOCK_SIZE];
+        in.readFully(iv);
+        return new Header(version, chunkSize, iv);
+    }
+
+    /**
+     * @param plaintextLength the length of the plaintext
+     * @param chunkSize       the chunk size
+     * @return the length of the chunked file the plaintext is encrypted to
+     */
+    public static long chunkedLength(long plaintextLength, int chunkSize) {
+        long ciphertext = (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+        long slots = (ciphertext + chunkSize - 1) / chunkSize;
+        return CHUNKED_HEADER_LENGTH + slots * BLOCK_SIZE + ciphertext;
+    }
+
+    /**
+     * Writes the header of a chunked file, without the first IV
+     */
+    public static void writeChunkedHeader(final OutputStream output, int chunkSize)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.write(0);
+        out.write(VERSION_CHUNKED);
+        out.writeInt(chunkSize);
+        out.flush();
+    }
+
+    /**
+     * Splits a continuous CBC ciphertext into slots by inserting the last ciphertext block as the
+     * IV of the next slot after every chunk. The header and the first IV have to be written to
+     * the underlying stream before.
+     */
+    public static class ChunkedOutputStream extends FilterOutputStream {
+        private final int chunkSize;
+        private final byte[] lastBlock = new byte[BLOCK_SIZE];
+        private int slotRemaining;
+
+        public ChunkedOutputStream(final OutputStream out, int chunkSize) {
+            super(out);
+            this.chunkSize = chunkSize;
+            slotRemaining = chunkSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (slotRemaining == 0) {
+                    out.write(lastBlock);
+                    slotRemaining = chunkSize;
+                }
+                int n = Math.min(length, slotRemaining);
+                out.write(buffer, offset, n);
+                rememberLastBlock(buffer, offset, n);
+                slotRemaining -= n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private void rememberLastBlock(final byte[] buffer, int offset, int length) {
+            if (length >= BLOCK_SIZE) {
+                System.arraycopy(buffer, offset + length - BLOCK_SIZE, lastBlock, 0, BLOCK_SIZE);
+            } else {
+                System.arraycopy(lastBlock, length, lastBlock, 0, BLOCK_SIZE - length);
+                System.arraycopy(buffer, offset, lastBlock, BLOCK_SIZE - length, length);
+            }
+        }
+    }
+
+    /**
+     * Feeds the ciphertext of one encrypted file into a {@link CbcChainDecoder}, one buffer at a
+     * time
+     */
+    public static class Reader {
+        private final Header header;
+        private final InputStream in;
+        private final CbcChainDecoder decoder;
+        private final CbcChainDecoder.Sink sink;
+        private final Progress progress;
+        private final byte[] buffer;
+        private final byte[] iv = new byte[BLOCK_SIZE];
+        private final boolean[] ended = new boolean[1];
+        private final Queue<SlotSink> recycled = new ArrayDeque<>();
+        private long remaining;
+        private long slotRemaining;
+        private SlotSink slot;
+
+        /**
+         * @param header   the header, already read from the stream
+         * @param in       the stream, positioned after the header
+         * @param length   the total length of the encrypted file, including the header. Only
+         *                 used for chunked files
+         * @param decoder  the decoder to feed
+         * @param sink     the sink to receive the plaintext of the whole file
+         * @param progress the progress to report the read bytes to or null
+         * @param buffer   the buffer to use for reading
+         */
+        public Reader(final Header header, final InputStream in, long length,
+                      final CbcChainDecoder decoder, final CbcChainDecoder.Sink sink,
+                      final Progress progress, final byte[] buffer) {
+            this.header = header;
+            this.in = in;
+            this.decoder = decoder;
+            this.sink = sink;
+            this.progress = progress;
+            this.buffer = buffer;
+            if (header.version == VERSION_LEGACY) {
+                remaining = Long.MAX_VALUE;
+                slotRemaining = Long.MAX_VALUE;
+            } else {
+                remaining = length - header.length();
+                slotRemaining = Math.min(header.chunkSize, remaining);
+            }
+            beginSlot(header.iv);
+        }
+
+        /**
+         * Reads and decrypts the next part of the file
+         *
+         * @return false, if the whole file has been read
+         */
+        public boolean step() throws IOException {
+            if (slot == null) {
+                return false;
+            }
+            if (remaining <= 0 && slotRemaining <= 0) {
+                // truncated file
+                fail();
+                throw new EOFException();
+            }
+            if (slotRemaining == 0) {
+                readFully(in, iv);
+                remaining -= BLOCK_SIZE;
+                slotRemaining = Math.min(header.chunkSize, remaining);
+                beginSlot(iv);
+            }
+            int read;
+            try {
+                read = in.read(buffer, 0, (int) Math.min(buffer.length, slotRemaining));
+            } catch (IOException e) {
+                fail();
+                throw e;
+            }
+            if (read < 0) {
+                if (header.version == VERSION_LEGACY) {
+                    slotRemaining = 0;
+                } else {
+                    fail();
+                    throw new EOFException();
+                }
+            } else {
+                decoder.update(buffer, 0, read);
+                remaining -= read;
+                slotRemaining -= read;
+                if (progress != null) {
+                    progress.advance(read);
+                }
+            }
+            if (slotRemaining == 0) {
+                SlotSink s = slot;
+                boolean last = header.version == VERSION_LEGACY || remaining <= 0;
+                if (last) {
+                    slot = null;
+                }
+                s.last = last;
+                decoder.endSegment(true);
+            }
+            return slot != null;
+        }
+
+        /**
+         * Ends the current slot as invalid, after the file could not be read completely
+         */
+        public void fail() throws IOException {
+            if (slot != null) {
+                slot.last = true;
+                slot = null;
+                decoder.endSegment(false);
+            }
+        }
+
+        private void beginSlot(final byte[] iv) {
+            slot = recycled.poll();
+            if (slot == null) {
+                slot = new SlotSink(sink, ended, recycled);
+            }
+            slot.last = false;
+            boolean padded = header.version == VERSION_LEGACY ||
+                    remaining - slotRemaining <= 0;
+            decoder.beginSegment(iv, slot, padded);
+        }
+    }
+
+    private static void readFully(final InputStream in, final byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Forwards the plaintext of a single slot to the sink of the whole file. The file's sink is
+     * ended after the last slot or as soon as any slot turns out to be invalid. Once ended, a slot
+     * sink is returned to the reader for reuse.
+     */
+    private static class SlotSink implements CbcChainDecoder.Sink {
+        private final CbcChainDecoder.Sink sink;
+        private final boolean[] ended;
+        private final Queue<SlotSink> recycled;
+        private boolean last;
+
+        private SlotSink(final CbcChainDecoder.Sink sink, final boolean[] ended,
+                         final Queue<SlotSink> recycled) {
+            this.sink = sink;
+            this.ended = ended;
+            this.recycled = recycled;
+        }
+
+        @Override
+        public void write(final byte[] buffer, int offset, int length) throws IOException {
+            if (!ended[0]) {
+                sink.write(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public void end(boolean valid) throws IOException {
+            if (!ended[0] && (last || !valid)) {
+                ended[0] = true;
+                sink.end(valid);
+            }
+            recycled.add(this);
+        }
+    }
+
+    /**
+     * A stream which decrypts a single encrypted file on the fly
+     */
+    public static class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final CbcChainDecoder decoder;
+        private final Reader reader;
+        private byte[] plaintext = new byte[2 * BLOCK_SIZE];
+        private int position, limit;
+        private boolean valid, ended, finished;
+
+        /**
+         * @param header   the header, already read from the stream
+         * @param in       the stream, positioned after the header
+         * @param length   the total length of the encrypted file
+         * @param decoder  the decoder, initialized with the header's IV
+         * @param buffer   the buffer to use for reading
+         */
+        public DecryptingInputStream(final Header header, final InputStream in, long length,
+                                     final CbcChainDecoder decoder, final byte[] buffer) {
+            this.in = in;
+            this.decoder = decoder;
+            this.reader = new Reader(header, in, length, decoder, new CbcChainDecoder.Sink() {
+                @Override
+                public void write(final byte[] b, int offset, int length) {
+                    append(b, offset, length);
+                }
+
+                @Override
+                public void end(boolean v) {
+                    ended = true;
+                    valid = v;
+                }
+            }, null, buffer);
+        }
+
+        private void append(final byte[] b, int offset, int length) {
+            if (position == limit) {
+                position = limit = 0;
+            }
+            if (limit + length > plaintext.length) {
+                plaintext = Arrays.copyOf(plaintext, Math.max(plaintext.length * 2,
+                        limit + length));
+            }
+            System.arraycopy(b, offset, plaintext, limit, length);
+            limit += length;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == limit && !ended) {
+                if (!reader.step()) {
+                    if (finished) {
+                        break;
+                    }
+                    finished = true;
+                    try {
+                        decoder.finish();
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+            if (position == limit && !valid) {
+                throw new IOException("File is corrupt");
+            }
+            return position < limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? plaintext[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(length, limit - position);
+            System.arraycopy(plaintext, position, b, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+
+/**
+ * Salted HMAC-SHA256 of the plaintext chunks of a chunked file (see {@link FileFormat}), used to
+ * detect which chunks have changed when a new version of a file is encrypted.
+ * <p>
+ * The key is kept apart from the fingerprints (the app uses a non-exportable keystore key), so
+ * the stored fingerprints can not be used to confirm guessed chunk contents. The salt is random
+ * per entry, so equal chunks of different files can not be correlated.
+ */
+public class Fingerprints {
+
+    public final static int SALT_LENGTH = 16;
+
+    /**
+     * The MAC algorithm of the fingerprint keys
+     */
+    public final static String ALGORITHM = "HmacSHA256";
+
+    public final byte[] salt;
+    public final int chunkSize;
+    private final List<byte[]> hashes;
+
+    public Fingerprints(final byte[] salt, int chunkSize, final List<byte[]> hashes) {
+        this.salt = salt;
+        this.chunkSize = chunkSize;
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return the number of chunks
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * @param index the chunk index
+     * @return the hash of the given chunk
+     */
+    public byte[] get(int index) {
+        return hashes.get(index);
+    }
+
+    /**
+     * @param index the chunk index
+     * @param hash  the hash of the new version of the chunk
+     * @return true, if the given chunk exists and has the same hash
+     */
+    public boolean matches(int index, final byte[] hash) {
+        return index < hashes.size() && MessageDigest.isEqual(hashes.get(index), hash);
+    }
+
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Computes the fingerprints of a plaintext chunk by chunk
+     */
+    public static class Hasher {
+        private final byte[] salt;
+        private final Mac mac;
+
+        /**
+         * @param key  the {@link #ALGORITHM} key
+         * @param salt the salt of the entry
+         */
+        public Hasher(final Key key, final byte[] salt) throws GeneralSecurityException {
+            this.salt = salt;
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+        }
+
+        /**
+         * @return the fingerprint of the given chunk
+         */
+        public byte[] hash(final byte[] chunk, int offset, int length) {
+            mac.update(salt);
+            mac.update(chunk, offset, length);
+            return mac.doFinal();
+        }
+    }
+
+    /**
+     * A stream computing the fingerprints of the data read through it. The fingerprints are
+     * available once the end of the stream has been reached.
+     */
+    public static class FingerprintingInputStream extends FilterInputStream {
+        private final byte[] salt = newSalt();
+        private final int chunkSize;
+        private final Mac mac;
+        private final List<byte[]> hashes = new ArrayList<>();
+        private int chunkRemaining;
+        private boolean complete;
+
+        /**
+         * @param in        the stream to read from
+         * @param key       the {@link #ALGORITHM} key
+         * @param chunkSize the chunk size
+         */
+        public FingerprintingInputStream(final InputStream in, final Key key, int chunkSize)
+                throws GeneralSecurityException {
+            super(in);
+            this.chunkSize = chunkSize;
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            startChunk();
+        }
+
+        private void startChunk() {
+            mac.update(salt);
+            chunkRemaining = chunkSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                if (!complete) {
+                    // the last chunk is always shorter than the chunk size, maybe even empty
+                    hashes.add(mac.doFinal());
+                    complete = true;
+                }
+                return read;
+            }
+            int position = offset;
+            int remaining = read;
+            while (remaining > 0) {
+                int n = Math.min(remaining, chunkRemaining);
+                mac.update(buffer, position, n);
+                chunkRemaining -= n;
+                position += n;
+                remaining -= n;
+                if (chunkRemaining == 0) {
+                    hashes.add(mac.doFinal());
+                    startChunk();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip not supported");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return the fingerprints or null, if the stream has not been read completely
+         */
+        public Fingerprints getFingerprints() {
+            return complete ? new Fingerprints(salt, chunkSize, hashes) : null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Adapts the {@link Scheduler} to the state of the device, so the jobs back off before the
+ * system throttles the CPU or kills the app for its memory.
+ * <p>
+ * The pressure is the highest one reported by any {@link Signal}. As the pressure rises, the
+ * bulk jobs lose their concurrency and bandwidth first, then the jobs started by the user, while
+ * the interactive jobs keep at least one worker. Buffer sizes shrink as well, see
+ * {@link #scale(int, int)}. A higher pressure applies at the next {@link #update(long)},
+ * a lower one only after it has lasted for {@link #RECOVERY_MS}, and only one level at a time,
+ * so the limits do not oscillate with a signal at a threshold.
+ * <p>
+ * The governor has no clock and no thread of its own. The caller samples it periodically with
+ * the current time, which also allows to replay simulated signals off-device.
+ */
+public class Governor {
+
+    public enum Pressure {
+        NONE,
+        /**
+         * Bulk jobs should back off
+         */
+        LIGHT,
+        /**
+         * All jobs should back off
+         */
+        MODERATE,
+        /**
+         * Only the most important work should continue
+         */
+        SEVERE
+    }
+
+    /**
+     * A source of pressure, e.g. the temperature of the device
+     */
+    public interface Signal {
+        /**
+         * @param now the current time in milliseconds
+         * @return the pressure indicated by this signal, never null
+         */
+        Pressure sample(long now);
+    }
+
+    public interface Listener {
+        /**
+         * Called from the thread calling {@link #update(long)} if the applied pressure changed
+         *
+         * @param pressure the new pressure
+         */
+        void pressureChanged(final Pressure pressure);
+    }
+
+    /**
+     * Time a lower pressure must last before the limits are raised again
+     */
+    public final static long RECOVERY_MS = 30 * 1000;
+
+    private final Scheduler scheduler;
+    private final Map<Scheduler.Priority, Scheduler.Limits> base =
+            new EnumMap<>(Scheduler.Priority.class);
+    private final List<Signal> signals;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ThroughputSignal throughput;
+
+    private volatile Pressure pressure = Pressure.NONE;
+    /**
+     * Time since which the signals have been below the applied pressure or -1, if they are not
+     */
+    private long lowerSince = -1;
+
+    /**
+     * @param scheduler the scheduler to control. Its current limits are the ones to apply
+     *                  without pressure.
+     * @param signals   the signals to sample
+     */
+    public Governor(final Scheduler scheduler, final List<? extends Signal> signals) {
+        this.scheduler = scheduler;
+        for (Scheduler.Priority p : Scheduler.Priority.values()) {
+            base.put(p, scheduler.getLimits(p));
+        }
+        throughput = new ThroughputSignal(scheduler);
+        List<Signal> all = new ArrayList<>(signals);
+        all.add(throughput);
+        this.signals = Collections.unmodifiableList(all);
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the currently applied pressure
+     */
+    public Pressure getPressure() {
+        return pressure;
+    }
+
+    /**
+     * Samples all signals and adapts the limits of the scheduler
+     *
+     * @param now the current time in milliseconds
+     * @return the applied pressure
+     */
+    public Pressure update(long now) {
+        Pressure sampled = Pressure.NONE;
+        for (Signal signal : signals) {
+            Pressure p = signal.sample(now);
+            if (p.compareTo(sampled) > 0) {
+                sampled = p;
+            }
+        }
+        Pressure applied;
+        synchronized (this) {
+            applied = pressure;
+            if (sampled.compareTo(applied) > 0) {
+                applied = sampled;
+                lowerSince = -1;
+            } else if (sampled.compareTo(applied) < 0) {
+                if (lowerSince < 0) {
+                    lowerSince = now;
+                } else if (now - lowerSince >= RECOVERY_MS) {
+                    applied = Pressure.values()[applied.ordinal() - 1];
+                    // the next level needs to last as long again
+                    lowerSince = applied.compareTo(sampled) > 0 ? now : -1;
+                }
+            } else {
+                lowerSince = -1;
+            }
+            if (applied == pressure) {
+                return applied;
+            }
+            pressure = applied;
+            long peak = throughput.getPeak();
+            for (Scheduler.Priority p : Scheduler.Priority.values()) {
+                scheduler.setLimits(p, limit(base.get(p), p, applied, peak));
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.pressureChanged(applied);
+        }
+        return applied;
+    }
+
+    /**
+     * Scales a buffer size or a number of workers to the applied pressure
+     *
+     * @param value   the value without pressure
+     * @param minimum the smallest value to return, unless the value itself is smaller
+     * @return the value to use now
+     */
+    public int scale(int value, int minimum) {
+        return Math.max(Math.min(value, minimum), value >> shift(pressure));
+    }
+
+    /**
+     * Calculates the limits of a class under the given pressure
+     *
+     * @param base     the limits without pressure
+     * @param priority the class
+     * @param pressure the pressure
+     * @param peak     the highest observed throughput of all jobs in bytes per second or 0, if
+     *                 not known
+     * @return the limits to apply
+     */
+    static Scheduler.Limits limit(final Scheduler.Limits base, final Scheduler.Priority priority,
+                                  final Pressure pressure, long peak) {
+        // the lower the class, the earlier it backs off
+        int level = pressure.ordinal() + priority.ordinal() -
+                Scheduler.Priority.BACKGROUND.ordinal();
+        if (level <= 0) {
+            return base;
+        }
+        int concurrency = base.concurrency >> level;
+        long bytesPerSecond = base.bytesPerSecond;
+        if (level > 1 && peak > 0) {
+            long cap = peak >> level;
+            bytesPerSecond = bytesPerSecond > 0 ? Math.min(bytesPerSecond, cap) : cap;
+        }
+        return new Scheduler.Limits(concurrency, bytesPerSecond);
+    }
+
+    private static int shift(final Pressure pressure) {
+        // buffers are only reduced when the jobs themselves are
+        return Math.max(0, pressure.ordinal() - Pressure.LIGHT.ordinal());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Commits the entries of newly written files, e.g. their database rows, so that an entry never
+ * refers to data which might not be on the storage yet.
+ * <p>
+ * Depending on the {@link Policy}, the data of a file is synced before its entry is committed.
+ * With {@link Policy#GROUP}, jobs finishing at about the same time share the work: the first one
+ * becomes the leader and syncs the files of all waiting jobs, then commits all their entries at
+ * once. Jobs arriving meanwhile wait for the next group. So there is no fixed delay, but the
+ * more jobs run in parallel, the larger the groups get.
+ *
+ * @param <T> the type of the entries
+ */
+public class GroupCommit<T> {
+
+    public enum Policy {
+        /**
+         * Commit the entry without syncing the data. After a crash, an entry might refer to a
+         * truncated file.
+         */
+        NONE,
+        /**
+         * Sync each file and commit its entry on its own
+         */
+        PER_FILE,
+        /**
+         * Sync the files of concurrent jobs and commit their entries together
+         */
+        GROUP
+    }
+
+    /**
+     * Commits entries, e.g. by adding them to the database in a single transaction. Called once
+     * per group after the data of its files has been synced, so it is also the place to sync the
+     * directories of new files, which {@link #sync(File)} does not cover.
+     */
+    public interface Committer<T> {
+        void commit(final List<T> entries) throws IOException;
+    }
+
+    private static class Pending<T> {
+        private final File data;
+        private final T entry;
+        private boolean done;
+        private IOException error;
+
+        private Pending(final File data, final T entry) {
+            this.data = data;
+            this.entry = entry;
+        }
+    }
+
+    private final Policy policy;
+    private final Committer<T> committer;
+    private final List<Pending<T>> queue = new ArrayList<>();
+    private boolean leaderActive;
+    private long groups;
+    private long commits;
+
+    /**
+     * @param policy    the policy
+     * @param committer the committer to commit the entries with
+     */
+    public GroupCommit(final Policy policy, final Committer<T> committer) {
+        this.policy = policy;
+        this.committer = committer;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Makes the data durable according to the policy and commits the entry. Blocks until the
+     * entry has been committed.
+     *
+     * @param data  the file the entry refers to or null, if there is none
+     * @param entry the entry
+     * @throws IOException if the data could not be synced or the entry not be committed
+     */
+    public void commit(final File data, final T entry) throws IOException {
+        if (policy != Policy.GROUP) {
+            if (policy == Policy.PER_FILE && data != null) {
+                sync(data);
+            }
+            committer.commit(Collections.singletonList(entry));
+            synchronized (this) {
+                groups++;
+                commits++;
+            }
+            return;
+        }
+        Pending<T> pending = new Pending<>(data, entry);
+        List<Pending<T>> group;
+        synchronized (this) {
+            queue.add(pending);
+            while (leaderActive && !pending.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (pending.done) {
+                if (pending.error != null) {
+                    throw pending.error;
+                }
+                return;
+            }
+            // become the leader for everyone who is waiting
+            leaderActive = true;
+            group = new ArrayList<>(queue);
+            queue.clear();
+        }
+        IOException error = null;
+        try {
+            for (Pending<T> p : group) {
+                if (p.data != null) {
+                    sync(p.data);
+                }
+            }
+            List<T> entries = new ArrayList<>(group.size());
+            for (Pending<T> p : group) {
+                entries.add(p.entry);
+            }
+            committer.commit(entries);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        }
+        synchronized (this) {
+            for (Pending<T> p : group) {
+                p.error = error;
+                p.done = true;
+            }
+            leaderActive = false;
+            groups++;
+            commits += group.size();
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return the average number of entries committed at once so far
+     */
+    public synchronized double getAverageGroupSize() {
+        return groups > 0 ? (double) commits / groups : 0;
+    }
+
+    /**
+     * Syncs the content of a file to the storage. Syncing through a new descriptor is sufficient,
+     * as the dirty pages belong to the file, not to the descriptor they were written with.
+     *
+     * @param file the file
+     */
+    public static void sync(final File file) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.getChannel().force(false);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+
+/**
+ * Provides the ciphers and the fingerprint key of a vault. The Android app authenticates each
+ * cipher with a fingerprint, tools running off-device can use a {@link SecretKeyProvider}.
+ */
+public interface KeyProvider {
+    /**
+     * Creates a new AES/CBC/PKCS7 cipher
+     *
+     * @param iv the initialization vector for decryption or null, to request an encryption
+     *           cipher with a random IV
+     * @return the initialized cipher
+     */
+    Cipher getCipher(final byte[] iv) throws GeneralSecurityException;
+
+    /**
+     * @return the {@link Fingerprints#ALGORITHM} key to compute the fingerprints of files with
+     */
+    Key getFingerprintKey() throws GeneralSecurityException;
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream which reads ahead from the underlying stream on a separate thread, so the
+ * latency of the underlying stream overlaps with the processing of the data already read.
+ * <p>
+ * The reader thread and the consumer exchange a small ring of reusable buffers. Errors of the
+ * underlying stream are rethrown by {@link #read(byte[], int, int)} once all data read before the
+ * error has been consumed.
+ */
+public class PipelinedInputStream extends InputStream {
+
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public final static int DEFAULT_BUFFERS = 4;
+
+    private static class Buffer {
+        private final byte[] data;
+        private int length;
+        private int position;
+        private IOException error;
+
+        private Buffer(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final InputStream in;
+    private final BlockingQueue<Buffer> free;
+    private final BlockingQueue<Buffer> filled;
+    private final Thread reader;
+    private final byte[] single = new byte[1];
+    private Buffer current;
+    private IOException error;
+    /**
+     * Error of the underlying stream, held back by the reader thread until the data read before
+     * it has been handed over
+     */
+    private IOException deferred;
+    private boolean eof;
+    private volatile boolean closed;
+
+    public PipelinedInputStream(final InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+    }
+
+    /**
+     * @param in         the stream to read from
+     * @param bufferSize the size of each buffer
+     * @param buffers    the number of buffers, at least 2
+     */
+    public PipelinedInputStream(final InputStream in, int bufferSize, int buffers) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least two buffers required");
+        }
+        this.in = in;
+        free = new ArrayBlockingQueue<>(buffers);
+        filled = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Buffer(bufferSize));
+        }
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "PipelinedInputStream");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (!closed) {
+                Buffer b = free.take();
+                try {
+                    b.length = fill(b.data);
+                } catch (IOException e) {
+                    b.error = e;
+                }
+                filled.put(b);
+                if (b.length < 0 || b.error != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Fills the buffer as far as possible, so small reads of the underlying stream are coalesced
+     *
+     * @return the number of bytes read or -1, if the end of the stream has been reached
+     */
+    private int fill(final byte[] data) throws IOException {
+        if (deferred != null) {
+            throw deferred;
+        }
+        int total = 0;
+        while (total < data.length) {
+            int read;
+            try {
+                read = in.read(data, total, data.length - total);
+            } catch (IOException e) {
+                if (total == 0) {
+                    throw e;
+                }
+                deferred = e;
+                return total;
+            }
+            if (read < 0) {
+                return total > 0 ? total : -1;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (current == null || current.position == current.length) {
+            if (error != null) {
+                // a new instance per call, the error may be rethrown by several calls
+                throw new IOException(error.getMessage(), error);
+            }
+            if (eof) {
+                return -1;
+            }
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            Buffer next;
+            try {
+                next = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (next.error != null) {
+                error = next.error;
+            } else if (next.length < 0) {
+                eof = true;
+            } else {
+                next.position = 0;
+                current = next;
+            }
+        }
+        int n = Math.min(length, current.length - current.position);
+        System.arraycopy(current.data, current.position, b, offset, n);
+        current.position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.length - current.position : 0;
+    }
+
+    /**
+     * Stops the reader thread and closes the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            reader.interrupt();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An output stream which writes to the underlying stream on a separate thread, so the latency of
+ * the underlying stream overlaps with the production of the next data.
+ * <p>
+ * The producer and the writer thread exchange a small ring of reusable buffers. If the ring is
+ * full, {@link #write(byte[], int, int)} blocks until the writer thread has caught up. Errors of
+ * the underlying stream are rethrown by the next call to write, {@link #flush()} or
+ * {@link #close()}.
+ */
+public class PipelinedOutputStream extends OutputStream {
+
+    private static class Buffer {
+        private final byte[] data;
+        private int length;
+        /**
+         * Set for flush requests, which carry no data
+         */
+        private final CountDownLatch flushed;
+
+        private Buffer(int size, final CountDownLatch flushed) {
+            data = new byte[size];
+            this.flushed = flushed;
+        }
+    }
+
+    private final static Buffer END = new Buffer(0, null);
+
+    private final OutputStream out;
+    private final BlockingQueue<Buffer> free;
+    private final BlockingQueue<Buffer> filled;
+    private final Thread writer;
+    private final byte[] single = new byte[1];
+    private Buffer current;
+    private volatile IOException error;
+    private boolean closed;
+
+    public PipelinedOutputStream(final OutputStream out) {
+        this(out, PipelinedInputStream.DEFAULT_BUFFER_SIZE, PipelinedInputStream.DEFAULT_BUFFERS);
+    }
+
+    /**
+     * @param out        the stream to write to
+     * @param bufferSize the size of each buffer
+     * @param buffers    the number of buffers, at least 2
+     */
+    public PipelinedOutputStream(final OutputStream out, int bufferSize, int buffers) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least two buffers required");
+        }
+        this.out = out;
+        free = new ArrayBlockingQueue<>(buffers);
+        // room for all buffers plus a flush request and the end marker
+        filled = new ArrayBlockingQueue<>(buffers + 2);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Buffer(bufferSize, null));
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind();
+            }
+        }, "PipelinedOutputStream");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeBehind() {
+        try {
+            Buffer b;
+            while ((b = filled.take()) != END) {
+                try {
+                    if (error == null) {
+                        if (b.flushed != null) {
+                            out.flush();
+                        } else {
+                            out.write(b.data, 0, b.length);
+                        }
+                    }
+                } catch (IOException e) {
+                    // keep draining the queue, so the producer does not block forever
+                    error = e;
+                }
+                if (b.flushed != null) {
+                    b.flushed.countDown();
+                } else {
+                    free.add(b);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop writing
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            // a new instance per call, the error may be rethrown by several calls
+            throw new IOException(error.getMessage(), error);
+        }
+    }
+
+    private void enqueue(final Buffer b) throws IOException {
+        try {
+            filled.put(b);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        checkError();
+        while (length > 0) {
+            if (current == null) {
+                try {
+                    current = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                current.length = 0;
+            }
+            int n = Math.min(length, current.data.length - current.length);
+            System.arraycopy(b, offset, current.data, current.length, n);
+            current.length += n;
+            offset += n;
+            length -= n;
+            if (current.length == current.data.length) {
+                enqueue(current);
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Hands all buffered data to the writer thread and waits until it has been written to and
+     * flushed by the underlying stream
+     */
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (current != null && current.length > 0) {
+            enqueue(current);
+            current = null;
+        }
+        Buffer request = new Buffer(0, new CountDownLatch(1));
+        enqueue(request);
+        try {
+            request.flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        checkError();
+    }
+
+    /**
+     * Writes all remaining data, stops the writer thread and closes the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            enqueue(END);
+            out.close();
+        }
+    }
+}
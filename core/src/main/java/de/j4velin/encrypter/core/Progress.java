@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress and cancellation state of a running encryption/decryption job.
+ * <p>
+ * The worker reports processed bytes via {@link #advance(long)} once per chunk, which also acts as
+ * the cancellation point of the job. Listeners are not notified for every chunk but at most once
+ * per {@link #UPDATE_INTERVAL_MS}, independent of the file size.
+ */
+public class Progress {
+
+    /**
+     * Minimum time between two listener notifications
+     */
+    public final static long UPDATE_INTERVAL_MS = 100;
+    private final static long UPDATE_INTERVAL_NS =
+            TimeUnit.MILLISECONDS.toNanos(UPDATE_INTERVAL_MS);
+    /**
+     * Weight of the newest sample in the moving average of the transfer rate
+     */
+    private final static float RATE_SMOOTHING = 0.3f;
+
+    public interface Listener {
+        /**
+         * Called from the worker thread whenever the progress has changed significantly
+         *
+         * @param progress the progress
+         */
+        void onProgress(final Progress progress);
+    }
+
+    /**
+     * Passed by the worker at every chunk boundary, e.g. to let the job yield to more important
+     * work, see {@link Scheduler}
+     */
+    public interface Gate {
+        /**
+         * Called from the worker thread before the processed bytes are reported. May block, but
+         * should return soon after the progress has been cancelled.
+         *
+         * @param progress  the progress
+         * @param processed the number of bytes processed since the last call
+         */
+        void pass(final Progress progress, long processed);
+    }
+
+    /**
+     * Thrown by {@link #advance(long)} if the job has been cancelled
+     */
+    public static class CancelledException extends IOException {
+        private final static long serialVersionUID = 1L;
+
+        public CancelledException() {
+            super("Cancelled");
+        }
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final long total;
+    private volatile boolean cancelled;
+    private volatile long bytes;
+    private volatile long bytesPerSecond;
+    private volatile Gate gate;
+
+    private long lastUpdateTime;
+    private long lastUpdateBytes;
+
+    /**
+     * @param total the total number of bytes of the job or a value <= 0, if not known
+     */
+    public Progress(long total) {
+        this.total = total;
+        lastUpdateTime = System.nanoTime();
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param gate the gate to pass at every chunk boundary or null, to run without one
+     */
+    public void setGate(final Gate gate) {
+        this.gate = gate;
+    }
+
+    /**
+     * Requests the job to stop. The worker will notice with the next processed chunk.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Reports processed bytes and notifies the listeners, if the last notification is at least
+     * {@link #UPDATE_INTERVAL_MS} ago. Blocks while the {@link Gate} holds the job back.
+     *
+     * @param processed the number of bytes processed since the last call
+     * @throws CancelledException if the job has been cancelled
+     */
+    public void advance(long processed) throws CancelledException {
+        if (cancelled) {
+            throw new CancelledException();
+        }
+        Gate g = gate;
+        if (g != null) {
+            g.pass(this, processed);
+            if (cancelled) {
+                throw new CancelledException();
+            }
+        }
+        bytes += processed;
+        long now = System.nanoTime();
+        if (now - lastUpdateTime >= UPDATE_INTERVAL_NS) {
+            update(now);
+        }
+    }
+
+    /**
+     * Notifies the listeners about the final state, independent of the update interval
+     */
+    public void finish() {
+        update(System.nanoTime());
+    }
+
+    private void update(long now) {
+        long elapsed = now - lastUpdateTime;
+        if (elapsed > 0) {
+            long rate = (bytes - lastUpdateBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            bytesPerSecond = bytesPerSecond == 0 ? rate :
+                    (long) (RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * bytesPerSecond);
+        }
+        lastUpdateTime = now;
+        lastUpdateBytes = bytes;
+        for (Listener listener : listeners) {
+            listener.onProgress(this);
+        }
+    }
+
+    /**
+     * @return the total number of bytes or a value <= 0, if not known
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of bytes processed so far
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the current transfer rate in bytes per second
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the estimated remaining time in seconds or -1, if it can not be estimated
+     */
+    public long getSecondsRemaining() {
+        if (total <= 0 || bytesPerSecond <= 0) {
+            return -1;
+        }
+        return Math.max(0, total - bytes) / bytesPerSecond;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs jobs by {@link Priority}, so a file the user wants to see right now does not wait for a
+ * long running import or export.
+ * <p>
+ * Each priority class has its own queue and {@link Limits}. A job of a class runs as soon as
+ * fewer than {@link Limits#concurrency} jobs of that class are running, independent of the other
+ * classes. Jobs which pass their {@link Progress} to {@link #attach(Progress, Priority)} pause at
+ * their next chunk boundary while a job of a higher class is running, so the more important job
+ * gets the CPU and the storage for itself within a few milliseconds. If a class is limited to a
+ * bandwidth, its jobs are paced at the chunk boundaries as well. The limits can be changed while
+ * jobs are running, e.g. by a {@link Governor}.
+ */
+public class Scheduler {
+
+    public enum Priority {
+        /**
+         * The user waits for the result, e.g. a file to view
+         */
+        INTERACTIVE,
+        /**
+         * Started by the user, but not awaited, e.g. the encryption of a new file
+         */
+        USER,
+        /**
+         * Bulk work like imports, exports and batches
+         */
+        BACKGROUND
+    }
+
+    /**
+     * The limits of a priority class
+     */
+    public static class Limits {
+        /**
+         * Maximum number of jobs of the class running at the same time
+         */
+        public final int concurrency;
+        /**
+         * Maximum combined throughput of all jobs of the class or 0, if not limited
+         */
+        public final long bytesPerSecond;
+
+        public Limits(int concurrency, long bytesPerSecond) {
+            this.concurrency = Math.max(1, concurrency);
+            this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        }
+    }
+
+    /**
+     * Longest time a paused job waits before it checks again if it has been cancelled
+     */
+    private final static long POLL_MS = Progress.UPDATE_INTERVAL_MS;
+
+    private final Map<Priority, Limits> limits;
+    private final Map<Priority, Queue<Runnable>> queues = new EnumMap<>(Priority.class);
+    private final int[] running = new int[Priority.values().length];
+    /**
+     * Time until which the bandwidth of each class has been handed out, see {@link #pace}
+     */
+    private final long[] paced = new long[Priority.values().length];
+    private final ExecutorService threads;
+    /**
+     * Bytes processed by all attached jobs, see {@link #getProcessed()}
+     */
+    private final AtomicLong processed = new AtomicLong();
+    /**
+     * The highest class with a running job, as ordinal, or {@link Integer#MAX_VALUE} if idle.
+     * Read without the lock by the gates, which only need to lock while they have to wait.
+     */
+    private volatile int highestRunning = Integer.MAX_VALUE;
+
+    /**
+     * @param limits the limits for each class, classes without limits run one job at a time
+     */
+    public Scheduler(final Map<Priority, Limits> limits) {
+        this.limits = new EnumMap<>(Priority.class);
+        for (Priority p : Priority.values()) {
+            Limits l = limits.get(p);
+            this.limits.put(p, l != null ? l : new Limits(1, 0));
+            queues.put(p, new ArrayDeque<Runnable>());
+        }
+        final AtomicInteger count = new AtomicInteger();
+        // the number of threads is bounded by the sum of the concurrency limits
+        threads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, "Scheduler-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * @param priority the priority class
+     * @return an executor which runs its tasks in the given class
+     */
+    public Executor getExecutor(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                submit(priority, command);
+            }
+        };
+    }
+
+    /**
+     * Lets the job of the given progress yield to higher classes and applies the bandwidth limit
+     * of its class. The job must run in that class.
+     *
+     * @param progress the progress of the job
+     * @param priority the class of the job
+     */
+    public void attach(final Progress progress, final Priority priority) {
+        progress.setGate(new Progress.Gate() {
+            @Override
+            public void pass(final Progress p, long bytes) {
+                holdBack(p, priority);
+                pace(p, priority, bytes);
+                processed.addAndGet(bytes);
+            }
+        });
+    }
+
+    /**
+     * @param priority the priority class
+     * @return the number of running jobs of the class
+     */
+    public synchronized int getRunning(final Priority priority) {
+        return running[priority.ordinal()];
+    }
+
+    /**
+     * @return the number of running jobs of all classes
+     */
+    public synchronized int getRunning() {
+        int sum = 0;
+        for (int r : running) {
+            sum += r;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of bytes processed by all attached jobs since the scheduler was created
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @param priority the priority class
+     * @return the limits of the class
+     */
+    public synchronized Limits getLimits(final Priority priority) {
+        return limits.get(priority);
+    }
+
+    /**
+     * Changes the limits of a class. Running jobs are not stopped if the concurrency is lowered,
+     * but no new job of the class starts until it is below the new limit again. A new bandwidth
+     * applies from the next chunk on.
+     *
+     * @param priority the priority class
+     * @param limits   the new limits of the class
+     */
+    public synchronized void setLimits(final Priority priority, final Limits limits) {
+        this.limits.put(priority, limits);
+        dispatch();
+    }
+
+    private synchronized void submit(final Priority priority, final Runnable command) {
+        queues.get(priority).add(command);
+        dispatch();
+    }
+
+    /**
+     * Starts queued jobs for which their class has capacity
+     */
+    private synchronized void dispatch() {
+        for (final Priority p : Priority.values()) {
+            Queue<Runnable> queue = queues.get(p);
+            while (!queue.isEmpty() && running[p.ordinal()] < limits.get(p).concurrency) {
+                final Runnable job = queue.remove();
+                running[p.ordinal()]++;
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            job.run();
+                        } finally {
+                            finished(p);
+                        }
+                    }
+                });
+            }
+        }
+        updateHighestRunning();
+    }
+
+    private synchronized void finished(final Priority priority) {
+        running[priority.ordinal()]--;
+        dispatch();
+        // wake up the paused jobs of lower classes
+        notifyAll();
+    }
+
+    private void updateHighestRunning() {
+        int highest = Integer.MAX_VALUE;
+        for (int i = 0; i < running.length && highest == Integer.MAX_VALUE; i++) {
+            if (running[i] > 0) {
+                highest = i;
+            }
+        }
+        highestRunning = highest;
+    }
+
+    /**
+     * Blocks while a job of a higher class is running
+     */
+    private void holdBack(final Progress progress, final Priority priority) {
+        if (highestRunning >= priority.ordinal()) {
+            return;
+        }
+        synchronized (this) {
+            while (highestRunning < priority.ordinal() && !progress.isCancelled()) {
+                try {
+                    wait(POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Delays the job until its class is within its bandwidth again
+     */
+    private void pace(final Progress progress, final Priority priority, long processed) {
+        if (processed <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long start;
+        synchronized (this) {
+            long bytesPerSecond = limits.get(priority).bytesPerSecond;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            int i = priority.ordinal();
+            // no credit for idle time, but the current chunk may start right away
+            start = Math.max(now, paced[i]);
+            paced[i] = start + processed * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        }
+        long deadline = start;
+        while (System.nanoTime() < deadline && !progress.isCancelled() &&
+                !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(Math.min(deadline - System.nanoTime(),
+                    TimeUnit.MILLISECONDS.toNanos(POLL_MS)));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * A {@link KeyProvider} using keys which are directly accessible, for example keys read from a
+ * key file by a server-side tool or generated keys in a benchmark
+ */
+public class SecretKeyProvider implements KeyProvider {
+
+    /**
+     * The transformation used for all files
+     */
+    public final static String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    private final SecretKey key;
+    private final SecretKey fingerprintKey;
+
+    /**
+     * @param key            the AES key
+     * @param fingerprintKey the {@link Fingerprints#ALGORITHM} key
+     */
+    public SecretKeyProvider(final SecretKey key, final SecretKey fingerprintKey) {
+        this.key = key;
+        this.fingerprintKey = fingerprintKey;
+    }
+
+    @Override
+    public Cipher getCipher(final byte[] iv) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance(TRANSFORMATION);
+        if (iv == null) {
+            c.init(Cipher.ENCRYPT_MODE, key);
+        } else {
+            c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        }
+        return c;
+    }
+
+    @Override
+    public Key getFingerprintKey() {
+        return fingerprintKey;
+    }
+}
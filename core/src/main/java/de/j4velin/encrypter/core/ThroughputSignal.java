@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+/**
+ * Detects throttling by the system from the throughput of the jobs of a {@link Scheduler}.
+ * <p>
+ * A throttled CPU shows as a throughput per job which stays well below the best one seen
+ * recently. Only samples with jobs of a single class running are compared, as a job paused for
+ * a higher class would look throttled as well. A single slow source like a network share does
+ * not last long enough to count, and the best throughput decays, so a device which is slower
+ * than it used to be is eventually not considered throttled anymore. As throttling is only
+ * inferred, this signal never reports more than {@link Governor.Pressure#LIGHT}.
+ */
+public class ThroughputSignal implements Governor.Signal {
+
+    /**
+     * Throughput relative to the best one below which a sample counts as throttled
+     */
+    private final static double THROTTLED = 0.7;
+    /**
+     * Number of consecutive throttled samples after which pressure is reported
+     */
+    private final static int SAMPLES = 6;
+    /**
+     * Time after which the best throughput has decayed to half its value
+     */
+    private final static long HALF_LIFE_MS = 10 * 60 * 1000;
+
+    private final Scheduler scheduler;
+    private final double[] peakPerJob = new double[Scheduler.Priority.values().length];
+    private double peak;
+    private long lastTime = -1;
+    private long lastBytes;
+    private int throttled;
+
+    /**
+     * @param scheduler the scheduler whose jobs to observe
+     */
+    public ThroughputSignal(final Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the highest recent throughput of all jobs in bytes per second or 0, if no jobs
+     * have run yet
+     */
+    public synchronized long getPeak() {
+        return (long) peak;
+    }
+
+    @Override
+    public synchronized Governor.Pressure sample(long now) {
+        long bytes = scheduler.getProcessed();
+        long elapsed = now - lastTime;
+        if (lastTime < 0 || elapsed <= 0) {
+            lastTime = now;
+            lastBytes = bytes;
+            return Governor.Pressure.NONE;
+        }
+        double rate = (bytes - lastBytes) * 1000d / elapsed;
+        lastTime = now;
+        lastBytes = bytes;
+        double decay = Math.pow(0.5, (double) elapsed / HALF_LIFE_MS);
+        peak *= decay;
+        for (int i = 0; i < peakPerJob.length; i++) {
+            peakPerJob[i] *= decay;
+        }
+        peak = Math.max(peak, rate);
+
+        Scheduler.Priority only = null;
+        int jobs = 0;
+        for (Scheduler.Priority p : Scheduler.Priority.values()) {
+            int running = scheduler.getRunning(p);
+            if (running > 0) {
+                if (only != null) {
+                    // not comparable
+                    return current();
+                }
+                only = p;
+                jobs = running;
+            }
+        }
+        if (only == null || rate <= 0) {
+            // idle or waiting for input, which says nothing about the CPU
+            throttled = 0;
+            return Governor.Pressure.NONE;
+        }
+        double perJob = rate / jobs;
+        int i = only.ordinal();
+        if (perJob < peakPerJob[i] * THROTTLED) {
+            throttled++;
+        } else {
+            throttled = 0;
+            peakPerJob[i] = Math.max(peakPerJob[i], perJob);
+        }
+        return current();
+    }
+
+    private Governor.Pressure current() {
+        return throttled >= SAMPLES ? Governor.Pressure.LIGHT : Governor.Pressure.NONE;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single file archive containing the (still encrypted) files of a vault and their metadata.
+ * <p>
+ * Format, all numbers big endian:
+ * <pre>
+ * archive := MAGIC version:int entry* index trailer
+ * entry   := ENTRY:int metadata blob
+ * index   := INDEX:int count:int (metadata offset:long)*
+ * trailer := indexOffset:long MAGIC
+ * metadata:= name:utf mime:utf size:long blobLength:long
+ * </pre>
+ * The archive is written in one sequential pass. It can either be read sequentially from the
+ * start (entry by entry) or, if the archive is seekable, by reading the index at the end and
+ * accessing single blobs directly.
+ */
+public class VaultArchive {
+
+    private final static byte[] MAGIC = {'E', 'N', 'C', 'V', 'A', 'U', 'L', 'T'};
+    private final static int VERSION = 1;
+    private final static int ENTRY = 0x454e5452;
+    private final static int INDEX = 0x494e4458;
+    private final static int TRAILER_LENGTH = 8 + MAGIC.length;
+    /**
+     * Number of bytes copied between two progress updates
+     */
+    private final static long TRANSFER_CHUNK = 1024 * 1024;
+
+    private VaultArchive() {
+    }
+
+    /**
+     * Metadata of an archived file
+     */
+    public static class Entry {
+        public final String name;
+        public final String mime;
+        /**
+         * The original plaintext size
+         */
+        public final long size;
+        public final long blobLength;
+        /**
+         * The position of the blob within the archive or -1, if not known
+         */
+        public final long blobOffset;
+
+        public Entry(final String name, final String mime, long size, long blobLength) {
+            this(name, mime, size, blobLength, -1);
+        }
+
+        private Entry(final String name, final String mime, long size, long blobLength,
+                      long blobOffset) {
+            this.name = name;
+            this.mime = mime;
+            this.size = size;
+            this.blobLength = blobLength;
+            this.blobOffset = blobOffset;
+        }
+
+        private void write(final DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeUTF(mime);
+            out.writeLong(size);
+            out.writeLong(blobLength);
+        }
+
+        private static Entry read(final DataInputStream in, long blobOffset) throws IOException {
+            return new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(),
+                    blobOffset);
+        }
+    }
+
+    /**
+     * Writes an archive sequentially into a channel
+     */
+    public static class Writer {
+        private final WritableByteChannel out;
+        private final List<Entry> entries = new ArrayList<>();
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private final DataOutputStream headerOut = new DataOutputStream(header);
+        private long position;
+
+        public Writer(final WritableByteChannel out) throws IOException {
+            this.out = out;
+            headerOut.write(MAGIC);
+            headerOut.writeInt(VERSION);
+            flushHeader();
+        }
+
+        /**
+         * Appends a file to the archive
+         *
+         * @param entry    the metadata of the file
+         * @param blob     the channel to read the encrypted file from
+         * @param progress the progress to report the copied bytes to
+         */
+        public void add(final Entry entry, final FileChannel blob, final Progress progress)
+                throws IOException {
+            begin(entry);
+            long copied = 0;
+            while (copied < entry.blobLength) {
+                long n = blob.transferTo(copied,
+                        Math.min(TRANSFER_CHUNK, entry.blobLength - copied), out);
+                if (n <= 0) {
+                    throw new EOFException(entry.name);
+                }
+                copied += n;
+                progress.advance(n);
+            }
+            position += copied;
+        }
+
+        /**
+         * Appends a file which is already in memory to the archive
+         *
+         * @param entry    the metadata of the file
+         * @param blob     the encrypted file, must be entry.blobLength bytes long
+         * @param progress the progress to report the copied bytes to
+         */
+        public void add(final Entry entry, final byte[] blob, final Progress progress)
+                throws IOException {
+            if (blob.length != entry.blobLength) {
+                throw new IllegalArgumentException("Blob length does not match the entry");
+            }
+            begin(entry);
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            while (buffer.hasRemaining()) {
+                progress.advance(out.write(buffer));
+            }
+            position += blob.length;
+        }
+
+        private void begin(final Entry entry) throws IOException {
+            headerOut.writeInt(ENTRY);
+            entry.write(headerOut);
+            flushHeader();
+            entries.add(new Entry(entry.name, entry.mime, entry.size, entry.blobLength,
+                    position));
+        }
+
+        /**
+         * Writes the index and the trailer. Does not close the channel.
+         */
+        public void finish() throws IOException {
+            long indexOffset = position;
+            headerOut.writeInt(INDEX);
+            headerOut.writeInt(entries.size());
+            for (Entry e : entries) {
+                e.write(headerOut);
+                headerOut.writeLong(e.blobOffset);
+            }
+            headerOut.writeLong(indexOffset);
+            headerOut.write(MAGIC);
+            flushHeader();
+        }
+
+        private void flushHeader() throws IOException {
+            headerOut.flush();
+            ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer);
+            }
+            header.reset();
+        }
+    }
+
+    /**
+     * Reads an archive sequentially, entry by entry
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private BlobInputStream blob;
+
+        /**
+         * @param in the stream to read from, should be buffered
+         */
+        public Reader(final InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a vault archive");
+            }
+            int version = this.in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive version: " + version);
+            }
+        }
+
+        /**
+         * Reads the metadata of the next entry. The blob of the previous entry is skipped, if
+         * it has not been read completely.
+         *
+         * @return the next entry or null, if there are no more entries
+         */
+        public Entry next() throws IOException {
+            if (blob != null) {
+                blob.skipRemaining();
+                blob = null;
+            }
+            int type = in.readInt();
+            if (type == INDEX) {
+                return null;
+            } else if (type != ENTRY) {
+                throw new IOException("Corrupt archive");
+            }
+            Entry entry = Entry.read(in, -1);
+            blob = new BlobInputStream(in, entry.blobLength);
+            return entry;
+        }
+
+        /**
+         * @return the stream of the current entry's blob. Closing it does not close the archive.
+         */
+        public InputStream blob() {
+            return blob;
+        }
+    }
+
+    /**
+     * Reads the index of a seekable archive without reading the blobs
+     *
+     * @param channel the archive
+     * @return the entries, including the blob positions
+     */
+    public static List<Entry> readIndex(final FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < MAGIC.length + 4 + 8 + TRAILER_LENGTH) {
+            throw new IOException("Not a vault archive");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        readFully(channel, trailer, size - TRAILER_LENGTH);
+        long indexOffset = trailer.getLong(0);
+        byte[] magic = Arrays.copyOfRange(trailer.array(), 8, TRAILER_LENGTH);
+        if (!Arrays.equals(magic, MAGIC) || indexOffset < 0 ||
+                indexOffset > size - TRAILER_LENGTH) {
+            throw new IOException("Not a vault archive");
+        }
+        channel.position(indexOffset);
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        if (in.readInt() != INDEX) {
+            throw new IOException("Corrupt archive");
+        }
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Entry e = Entry.read(in, -1);
+            entries.add(new Entry(e.name, e.mime, e.size, e.blobLength, in.readLong()));
+        }
+        return entries;
+    }
+
+    /**
+     * Opens the blob of a single entry of a seekable archive
+     *
+     * @param channel the archive
+     * @param entry   an entry returned by {@link #readIndex(FileChannel)}
+     * @return the stream of the blob
+     */
+    public static InputStream openBlob(final FileChannel channel, final Entry entry)
+            throws IOException {
+        channel.position(entry.blobOffset);
+        return new BlobInputStream(Channels.newInputStream(channel), entry.blobLength);
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * A stream limited to the length of a blob, which does not close the underlying stream
+     */
+    private static class BlobInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BlobInputStream(final InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // the archive stays open
+        }
+
+        private void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                if (skip(remaining) <= 0 && read() < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+    }
+}
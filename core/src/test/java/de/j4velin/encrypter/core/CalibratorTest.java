@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CalibratorTest {
+
+    private final static int SAMPLE_SIZE = 256 * 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("calibration", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void measuresAllCandidates() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        final SecretKey key = generator.generateKey();
+        List<Calibrator.CipherFactory> ciphers = Arrays.asList(
+                factory("AES/CBC", "AES/CBC/PKCS5Padding", key),
+                factory("AES/CTR", "AES/CTR/NoPadding", key));
+        Calibrator calibrator = new Calibrator(ciphers, directory, SAMPLE_SIZE);
+        Progress progress = new Progress(calibrator.getTotal());
+        Calibrator.Result result = calibrator.run(progress);
+
+        assertEquals(calibrator.getTotal(), progress.getBytes());
+        assertEquals("AES/CBC", result.cipher);
+        assertTrue(contains(Calibrator.CIPHER_BUFFER_SIZES, result.bufferSize));
+        assertTrue(contains(Calibrator.IO_BUFFER_SIZES, result.ioBufferSize));
+        assertTrue(result.writers >= 1 && result.writers <= Calibrator.MAX_WRITERS);
+
+        int cipher = 0, storage = 0, writers = 0;
+        for (Calibrator.Measurement m : result.measurements) {
+            assertTrue(m.bytesPerSecond > 0);
+            if (Calibrator.CATEGORY_CIPHER.equals(m.category)) {
+                cipher++;
+            } else if (Calibrator.CATEGORY_STORAGE.equals(m.category)) {
+                storage++;
+            } else if (Calibrator.CATEGORY_WRITERS.equals(m.category)) {
+                writers++;
+            }
+        }
+        assertEquals(2 * Calibrator.CIPHER_BUFFER_SIZES.length, cipher);
+        assertEquals(Calibrator.IO_BUFFER_SIZES.length, storage);
+        assertEquals(Calibrator.MAX_WRITERS, writers);
+        // the temporary files are removed again
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void choosesLargerBufferIfItPaysOff() throws Exception {
+        // every call costs the same, so larger buffers are clearly faster
+        Calibrator calibrator = new Calibrator(Collections.singletonList(
+                slowFactory(2, 0)), directory, SAMPLE_SIZE);
+        Calibrator.Result result = calibrator.run(new Progress(calibrator.getTotal()));
+        assertEquals(Calibrator.CIPHER_BUFFER_SIZES[Calibrator.CIPHER_BUFFER_SIZES.length - 1],
+                result.bufferSize);
+    }
+
+    @Test
+    public void choosesSmallestBufferWithinTolerance() throws Exception {
+        // the time does not depend on the buffer size, so more memory would gain nothing
+        Calibrator calibrator = new Calibrator(Collections.singletonList(
+                slowFactory(0, 100)), directory, SAMPLE_SIZE);
+        Calibrator.Result result = calibrator.run(new Progress(calibrator.getTotal()));
+        assertEquals(Calibrator.CIPHER_BUFFER_SIZES[0], result.bufferSize);
+    }
+
+    @Test
+    public void cancelAbortsAndCleansUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        Calibrator calibrator = new Calibrator(Collections.singletonList(
+                factory("AES/CBC", "AES/CBC/PKCS5Padding", generator.generateKey())),
+                directory, SAMPLE_SIZE);
+        final Progress progress = new Progress(calibrator.getTotal());
+        final long cipherBytes = (long) SAMPLE_SIZE * Calibrator.CIPHER_BUFFER_SIZES.length;
+        progress.setGate(new Progress.Gate() {
+            @Override
+            public void pass(final Progress p, long processed) {
+                // cancel in the middle of the storage measurements
+                if (p.getBytes() > cipherBytes + SAMPLE_SIZE / 2) {
+                    p.cancel();
+                }
+            }
+        });
+        try {
+            calibrator.run(progress);
+            fail("Calibration not cancelled");
+        } catch (Progress.CancelledException e) {
+            assertEquals(0, directory.listFiles().length);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoCiphers() {
+        new Calibrator(Collections.<Calibrator.CipherFactory>emptyList(), directory, SAMPLE_SIZE);
+    }
+
+    private static Calibrator.CipherFactory factory(final String name,
+                                                    final String transformation,
+                                                    final SecretKey key) {
+        return new Calibrator.CipherFactory() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public Cipher newCipher() throws GeneralSecurityException {
+                Cipher c = Cipher.getInstance(transformation);
+                c.init(Cipher.ENCRYPT_MODE, key);
+                return c;
+            }
+        };
+    }
+
+    /**
+     * @param millisPerUpdate time spent in every update call
+     * @param millisPerFinal  time spent once per measurement
+     */
+    private static Calibrator.CipherFactory slowFactory(final long millisPerUpdate,
+                                                        final long millisPerFinal) {
+        return new Calibrator.CipherFactory() {
+            @Override
+            public String getName() {
+                return "slow";
+            }
+
+            @Override
+            public Cipher newCipher() throws GeneralSecurityException {
+                Cipher c = new SlowCipher(millisPerUpdate, millisPerFinal);
+                c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"));
+                return c;
+            }
+        };
+    }
+
+    private static boolean contains(final int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A cipher which does not transform anything, but takes a fixed time per call
+     */
+    private static class SlowCipher extends Cipher {
+        private SlowCipher(final long millisPerUpdate, final long millisPerFinal) {
+            super(new CipherSpi() {
+                @Override
+                protected void engineSetMode(final String mode) {
+                }
+
+                @Override
+                protected void engineSetPadding(final String padding) {
+                }
+
+                @Override
+                protected int engineGetBlockSize() {
+                    return FileFormat.BLOCK_SIZE;
+                }
+
+                @Override
+                protected int engineGetOutputSize(int inputLen) {
+                    return inputLen;
+                }
+
+                @Override
+                protected byte[] engineGetIV() {
+                    return null;
+                }
+
+                @Override
+                protected AlgorithmParameters engineGetParameters() {
+                    return null;
+                }
+
+                @Override
+                protected void engineInit(int opmode, final Key key,
+                                          final SecureRandom random) {
+                }
+
+                @Override
+                protected void engineInit(int opmode, final Key key,
+                                          final AlgorithmParameterSpec params,
+                                          final SecureRandom random) {
+                }
+
+                @Override
+                protected void engineInit(int opmode, final Key key,
+                                          final AlgorithmParameters params,
+                                          final SecureRandom random) {
+                }
+
+                @Override
+                protected byte[] engineUpdate(final byte[] input, int offset, int length) {
+                    sleep(millisPerUpdate);
+                    return Arrays.copyOfRange(input, offset, offset + length);
+                }
+
+                @Override
+                protected int engineUpdate(final byte[] input, int offset, int length,
+                                           final byte[] output, int outputOffset) {
+                    sleep(millisPerUpdate);
+                    return length;
+                }
+
+                @Override
+                protected byte[] engineDoFinal(final byte[] input, int offset, int length) {
+                    sleep(millisPerFinal);
+                    return new byte[0];
+                }
+
+                @Override
+                protected int engineDoFinal(final byte[] input, int offset, int length,
+                                            final byte[] output, int outputOffset) {
+                    sleep(millisPerFinal);
+                    return 0;
+                }
+            }, new Provider("Slow", 1.0, "Slow test cipher") {
+                private final static long serialVersionUID = 1L;
+            }, "slow");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CbcChainTest {
+
+    private final static int CHUNK_SIZE = 64;
+    private final static int[] LENGTHS = {200, 0, 1000, 64, 17};
+
+    private SecretKey key;
+    private SecretKey fingerprintKey;
+    private byte[][] plaintexts;
+    private byte[][] files;
+
+    /**
+     * Collects the plaintext of one segment
+     */
+    private static class CollectingSink implements CbcChainDecoder.Sink {
+        private final ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        private int ended;
+        private boolean valid;
+
+        @Override
+        public void write(final byte[] buffer, int offset, int length) {
+            plaintext.write(buffer, offset, length);
+        }
+
+        @Override
+        public void end(boolean valid) {
+            ended++;
+            this.valid = valid;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        key = generator.generateKey();
+        fingerprintKey = KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey();
+        Random random = new Random(42);
+        plaintexts = new byte[LENGTHS.length][];
+        for (int i = 0; i < LENGTHS.length; i++) {
+            plaintexts[i] = new byte[LENGTHS[i]];
+            random.nextBytes(plaintexts[i]);
+        }
+        files = encryptChained(plaintexts);
+    }
+
+    @Test
+    public void encodedFilesDecryptIndependently() throws Exception {
+        for (int i = 0; i < files.length; i++) {
+            assertEquals(FileFormat.chunkedLength(LENGTHS[i], CHUNK_SIZE), files[i].length);
+            assertArrayEquals(plaintexts[i], decryptSingle(files[i]));
+        }
+    }
+
+    @Test
+    public void encoderReturnsFingerprints() throws Exception {
+        Cipher cipher = Cipher.getInstance(SecretKeyProvider.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        CbcChainEncoder encoder = new CbcChainEncoder(cipher, fingerprintKey, CHUNK_SIZE, 100);
+        Fingerprints fingerprints = encoder.encrypt(new ByteArrayInputStream(plaintexts[2]),
+                new ByteArrayOutputStream(), new Progress(0));
+        encoder.finish();
+        assertEquals(LENGTHS[2] / CHUNK_SIZE + 1, fingerprints.size());
+        Fingerprints.Hasher hasher = new Fingerprints.Hasher(fingerprintKey, fingerprints.salt);
+        assertTrue(fingerprints.matches(1, hasher.hash(plaintexts[2], CHUNK_SIZE, CHUNK_SIZE)));
+    }
+
+    @Test
+    public void decoderRoundTrip() throws Exception {
+        List<CollectingSink> sinks = decryptChained(files);
+        for (int i = 0; i < files.length; i++) {
+            assertEquals(1, sinks.get(i).ended);
+            assertTrue(sinks.get(i).valid);
+            assertArrayEquals(plaintexts[i], sinks.get(i).plaintext.toByteArray());
+        }
+    }
+
+    @Test
+    public void decoderRejectsCorruptPadding() throws Exception {
+        byte[][] corrupt = files.clone();
+        corrupt[2] = files[2].clone();
+        // flips the last padding byte, as the block before is XORed into the last plaintext block
+        corrupt[2][corrupt[2].length - FileFormat.BLOCK_SIZE - 1] ^= 1;
+        List<CollectingSink> sinks = decryptChained(corrupt);
+        assertFalse(sinks.get(2).valid);
+        assertValidExcept(sinks, 2);
+    }
+
+    @Test
+    public void decoderRejectsPartialBlock() throws Exception {
+        byte[][] truncated = files.clone();
+        truncated[0] = Arrays.copyOf(files[0], files[0].length - 5);
+        List<CollectingSink> sinks = decryptChained(truncated);
+        assertFalse(sinks.get(0).valid);
+        assertValidExcept(sinks, 0);
+    }
+
+    @Test
+    public void readerFailsOnShortStream() throws Exception {
+        byte[] file = files[2];
+        InputStream in = new ByteArrayInputStream(file, 0, file.length - 100);
+        FileFormat.Header header = FileFormat.readHeader(in);
+        CbcChainDecoder decoder = new CbcChainDecoder(newDecryptCipher(header.iv), header.iv);
+        CollectingSink sink = new CollectingSink();
+        FileFormat.Reader reader = new FileFormat.Reader(header, in, file.length, decoder, sink,
+                null, new byte[48]);
+        try {
+            while (reader.step()) {
+                // read until the stream ends too early
+            }
+            fail("Truncated file read completely");
+        } catch (EOFException e) {
+            // expected
+        }
+        decoder.abort();
+        assertEquals(1, sink.ended);
+        assertFalse(sink.valid);
+    }
+
+    @Test(expected = IOException.class)
+    public void decryptingStreamRejectsCorruptFile() throws Exception {
+        byte[] corrupt = files[0].clone();
+        corrupt[corrupt.length - FileFormat.BLOCK_SIZE - 1] ^= 1;
+        decryptSingle(corrupt);
+    }
+
+    private void assertValidExcept(final List<CollectingSink> sinks, int invalid) {
+        for (int i = 0; i < sinks.size(); i++) {
+            assertEquals(1, sinks.get(i).ended);
+            if (i != invalid) {
+                assertTrue("segment " + i, sinks.get(i).valid);
+                assertArrayEquals(plaintexts[i], sinks.get(i).plaintext.toByteArray());
+            }
+        }
+    }
+
+    private byte[][] encryptChained(final byte[][] plaintexts) throws Exception {
+        Cipher cipher = Cipher.getInstance(SecretKeyProvider.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        // a buffer size which is not a multiple of the block size
+        CbcChainEncoder encoder = new CbcChainEncoder(cipher, fingerprintKey, CHUNK_SIZE, 100);
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        for (byte[] plaintext : plaintexts) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outputs.add(out);
+            encoder.encrypt(new ByteArrayInputStream(plaintext), out, new Progress(0));
+        }
+        encoder.finish();
+        byte[][] result = new byte[outputs.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = outputs.get(i).toByteArray();
+        }
+        return result;
+    }
+
+    private List<CollectingSink> decryptChained(final byte[][] files) throws Exception {
+        List<CollectingSink> sinks = new ArrayList<>();
+        CbcChainDecoder decoder = null;
+        byte[] buffer = new byte[40];
+        for (byte[] file : files) {
+            InputStream in = new ByteArrayInputStream(file);
+            FileFormat.Header header = FileFormat.readHeader(in);
+            if (decoder == null) {
+                decoder = new CbcChainDecoder(newDecryptCipher(header.iv), header.iv);
+            }
+            CollectingSink sink = new CollectingSink();
+            sinks.add(sink);
+            FileFormat.Reader reader =
+                    new FileFormat.Reader(header, in, file.length, decoder, sink, null, buffer);
+            while (reader.step()) {
+                // all plaintext goes to the sink
+            }
+        }
+        decoder.finish();
+        return sinks;
+    }
+
+    private byte[] decryptSingle(final byte[] file) throws Exception {
+        InputStream in = new ByteArrayInputStream(file);
+        FileFormat.Header header = FileFormat.readHeader(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CryptoEngine.decrypt(header, newDecryptCipher(header.iv), in, file.length, out,
+                new Progress(0));
+        return out.toByteArray();
+    }
+
+    private Cipher newDecryptCipher(final byte[] iv) throws Exception {
+        Cipher cipher = Cipher.getInstance(SecretKeyProvider.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+}
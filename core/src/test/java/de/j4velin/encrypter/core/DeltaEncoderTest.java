@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DeltaEncoderTest {
+
+    private final static int CHUNK_SIZE = 64;
+
+    private SecretKeyProvider keys;
+    private File target;
+    private File staging;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        keys = new SecretKeyProvider(generator.generateKey(),
+                KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey());
+        target = File.createTempFile("delta", ".enc");
+        staging = File.createTempFile("delta", ".staging");
+    }
+
+    @After
+    public void tearDown() {
+        target.delete();
+        staging.delete();
+    }
+
+    @Test
+    public void reencryptsOnlyChangedChunks() throws Exception {
+        byte[] original = random(3 * CHUNK_SIZE + 20, 1);
+        Fingerprints old = encrypt(original);
+        byte[] modified = original.clone();
+        modified[CHUNK_SIZE + 5] ^= 1;
+
+        DeltaEncoder.Delta delta = update(modified, old);
+        assertEquals(1, delta.slots.size());
+        assertEquals(1, delta.slots.get(0).index);
+        assertEquals(modified.length, delta.size);
+        assertEquals(FileFormat.chunkedLength(modified.length, CHUNK_SIZE), target.length());
+        assertArrayEquals(modified, decrypt());
+    }
+
+    @Test
+    public void reencryptsLastChunk() throws Exception {
+        byte[] original = random(2 * CHUNK_SIZE + 20, 2);
+        Fingerprints old = encrypt(original);
+        byte[] modified = original.clone();
+        modified[modified.length - 1] ^= 1;
+
+        DeltaEncoder.Delta delta = update(modified, old);
+        assertEquals(1, delta.slots.size());
+        assertEquals(2, delta.slots.get(0).index);
+        assertArrayEquals(modified, decrypt());
+    }
+
+    @Test
+    public void handlesGrowingAndShrinkingFiles() throws Exception {
+        byte[] original = random(2 * CHUNK_SIZE + 20, 3);
+        Fingerprints old = encrypt(original);
+
+        byte[] grown = Arrays.copyOf(original, 5 * CHUNK_SIZE);
+        DeltaEncoder.Delta delta = update(grown, old);
+        assertEquals(6, delta.slotCount());
+        assertEquals(FileFormat.chunkedLength(grown.length, CHUNK_SIZE), target.length());
+        assertArrayEquals(grown, decrypt());
+
+        byte[] shrunk = Arrays.copyOf(original, CHUNK_SIZE + 1);
+        update(shrunk, delta.fingerprints);
+        assertEquals(FileFormat.chunkedLength(shrunk.length, CHUNK_SIZE), target.length());
+        assertArrayEquals(shrunk, decrypt());
+    }
+
+    @Test
+    public void encryptsEverythingWithoutFingerprints() throws Exception {
+        byte[] plaintext = random(4 * CHUNK_SIZE + 7, 4);
+        Fingerprints empty = new Fingerprints(Fingerprints.newSalt(), CHUNK_SIZE,
+                new ArrayList<byte[]>(0));
+        DeltaEncoder.Delta delta = update(plaintext, empty);
+        assertEquals(5, delta.slots.size());
+        assertArrayEquals(plaintext, decrypt());
+    }
+
+    @Test
+    public void fingerprintsDependOnKey() throws Exception {
+        byte[] plaintext = random(3 * CHUNK_SIZE, 5);
+        Fingerprints old = encrypt(plaintext);
+        DeltaEncoder.Delta delta;
+        try (InputStream in = new ByteArrayInputStream(plaintext);
+             OutputStream out = new ByteArrayOutputStream()) {
+            delta = DeltaEncoder.encode(in, old,
+                    KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey(),
+                    keys.getCipher(null), out, new Progress(0));
+        }
+        assertEquals(old.size(), delta.slots.size());
+    }
+
+    private Fingerprints encrypt(final byte[] plaintext) throws Exception {
+        try (OutputStream out = new FileOutputStream(target)) {
+            return CryptoEngine.encrypt(keys.getCipher(null), keys.getFingerprintKey(),
+                    new ByteArrayInputStream(plaintext), out, CHUNK_SIZE, new Progress(0));
+        }
+    }
+
+    private DeltaEncoder.Delta update(final byte[] plaintext, final Fingerprints old)
+            throws Exception {
+        DeltaEncoder.Delta delta;
+        try (InputStream in = new ByteArrayInputStream(plaintext);
+             OutputStream out = new FileOutputStream(staging)) {
+            delta = DeltaEncoder.encode(in, old, keys.getFingerprintKey(), keys.getCipher(null),
+                    out, new Progress(0));
+        }
+        try (RandomAccessFile stagingFile = new RandomAccessFile(staging, "r");
+             RandomAccessFile targetFile = new RandomAccessFile(target, "rw")) {
+            DeltaEncoder.apply(delta, stagingFile, targetFile);
+        }
+        return delta;
+    }
+
+    private byte[] decrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(target)) {
+            new CryptoEngine(keys).decrypt(in, target.length(), out, new Progress(0));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FileFormatTest {
+
+    private CryptoEngine engine;
+    private SecretKeyProvider keys;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        keys = new SecretKeyProvider(generator.generateKey(),
+                KeyGenerator.getInstance(Fingerprints.ALGORITHM).generateKey());
+        engine = new CryptoEngine(keys);
+    }
+
+    @Test
+    public void readsChunkedFile() throws Exception {
+        // several slots, the last one only partially filled
+        byte[] plaintext = random(2 * FileFormat.DEFAULT_CHUNK_SIZE + 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.encrypt(new ByteArrayInputStream(plaintext), out, new Progress(0));
+        byte[] file = out.toByteArray();
+        assertEquals(FileFormat.chunkedLength(plaintext.length, FileFormat.DEFAULT_CHUNK_SIZE),
+                file.length);
+
+        FileFormat.Header header = FileFormat.readHeader(new ByteArrayInputStream(file));
+        assertEquals(FileFormat.VERSION_CHUNKED, header.version);
+        assertEquals(FileFormat.DEFAULT_CHUNK_SIZE, header.chunkSize);
+        assertEquals(FileFormat.CHUNKED_HEADER_LENGTH + FileFormat.BLOCK_SIZE, header.length());
+        assertEquals(3, header.slotCount(file.length));
+        assertArrayEquals(plaintext, decrypt(file));
+    }
+
+    @Test
+    public void readsEmptyChunkedFile() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.encrypt(new ByteArrayInputStream(new byte[0]), out, new Progress(0));
+        byte[] file = out.toByteArray();
+        assertEquals(FileFormat.chunkedLength(0, FileFormat.DEFAULT_CHUNK_SIZE), file.length);
+        assertArrayEquals(new byte[0], decrypt(file));
+    }
+
+    @Test
+    public void readsChunkBoundaries() throws Exception {
+        int chunkSize = 32;
+        for (int length = 0; length <= 3 * chunkSize + 1; length++) {
+            byte[] plaintext = random(length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CryptoEngine.encrypt(keys.getCipher(null), keys.getFingerprintKey(),
+                    new ByteArrayInputStream(plaintext), out, chunkSize, 24, new Progress(0));
+            byte[] file = out.toByteArray();
+            assertEquals(FileFormat.chunkedLength(length, chunkSize), file.length);
+            assertArrayEquals("length " + length, plaintext, decrypt(file));
+        }
+    }
+
+    @Test
+    public void readsLegacyFile() throws Exception {
+        byte[] plaintext = random(10000);
+        Cipher cipher = keys.getCipher(null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(cipher.getIV().length);
+        out.write(cipher.getIV());
+        out.write(cipher.doFinal(plaintext));
+        byte[] file = out.toByteArray();
+
+        FileFormat.Header header = FileFormat.readHeader(new ByteArrayInputStream(file));
+        assertEquals(FileFormat.VERSION_LEGACY, header.version);
+        assertEquals(1 + FileFormat.BLOCK_SIZE, header.length());
+        assertArrayEquals(cipher.getIV(), header.iv);
+        assertArrayEquals(plaintext, decrypt(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidHeader() throws Exception {
+        FileFormat.readHeader(new ByteArrayInputStream(new byte[]{8, 1, 2, 3}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(FileFormat.VERSION_CHUNKED + 1);
+        out.write(new byte[4 + FileFormat.BLOCK_SIZE]);
+        FileFormat.readHeader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFile() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.encrypt(new ByteArrayInputStream(random(5000)), out, new Progress(0));
+        byte[] file = out.toByteArray();
+        InputStream in = new ByteArrayInputStream(file, 0, file.length - FileFormat.BLOCK_SIZE);
+        engine.decrypt(in, file.length, new ByteArrayOutputStream(), new Progress(0));
+    }
+
+    private byte[] decrypt(final byte[] file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.decrypt(new ByteArrayInputStream(file), file.length, out, new Progress(0));
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
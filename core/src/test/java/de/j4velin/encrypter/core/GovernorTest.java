@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class GovernorTest {
+
+    private final static long PEAK = 1 << 20;
+
+    private Scheduler scheduler;
+    private SimulatedSignal heat;
+    private SimulatedSignal memory;
+    private Governor governor;
+    private final List<Governor.Pressure> changes = new ArrayList<>();
+
+    /**
+     * A signal which reports whatever the test sets
+     */
+    private static class SimulatedSignal implements Governor.Signal {
+        private Governor.Pressure pressure = Governor.Pressure.NONE;
+
+        @Override
+        public Governor.Pressure sample(long now) {
+            return pressure;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Map<Scheduler.Priority, Scheduler.Limits> limits =
+                new EnumMap<>(Scheduler.Priority.class);
+        for (Scheduler.Priority p : Scheduler.Priority.values()) {
+            limits.put(p, new Scheduler.Limits(4, 0));
+        }
+        scheduler = new Scheduler(limits);
+        heat = new SimulatedSignal();
+        memory = new SimulatedSignal();
+        governor = new Governor(scheduler, Arrays.asList(heat, memory));
+        governor.addListener(new Governor.Listener() {
+            @Override
+            public void pressureChanged(final Governor.Pressure pressure) {
+                changes.add(pressure);
+            }
+        });
+    }
+
+    @Test
+    public void noPressureKeepsLimits() {
+        assertEquals(Governor.Pressure.NONE, governor.update(0));
+        assertConcurrency(4, 4, 4);
+        assertEquals(0, changes.size());
+    }
+
+    @Test
+    public void higherPressureAppliesImmediately() {
+        heat.pressure = Governor.Pressure.LIGHT;
+        assertEquals(Governor.Pressure.LIGHT, governor.update(0));
+        // only the bulk jobs back off
+        assertConcurrency(4, 4, 2);
+
+        heat.pressure = Governor.Pressure.MODERATE;
+        assertEquals(Governor.Pressure.MODERATE, governor.update(1000));
+        assertConcurrency(4, 2, 1);
+
+        heat.pressure = Governor.Pressure.SEVERE;
+        assertEquals(Governor.Pressure.SEVERE, governor.update(2000));
+        // the interactive jobs keep a worker, the others are only paused down to one
+        assertConcurrency(2, 1, 1);
+        assertEquals(Arrays.asList(Governor.Pressure.LIGHT, Governor.Pressure.MODERATE,
+                Governor.Pressure.SEVERE), changes);
+    }
+
+    @Test
+    public void highestSignalWins() {
+        heat.pressure = Governor.Pressure.LIGHT;
+        memory.pressure = Governor.Pressure.MODERATE;
+        assertEquals(Governor.Pressure.MODERATE, governor.update(0));
+        memory.pressure = Governor.Pressure.NONE;
+        heat.pressure = Governor.Pressure.MODERATE;
+        assertEquals(Governor.Pressure.MODERATE, governor.update(1000));
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void recoversOneLevelAtATime() {
+        heat.pressure = Governor.Pressure.SEVERE;
+        governor.update(0);
+        heat.pressure = Governor.Pressure.NONE;
+        long t = 1000;
+        assertEquals(Governor.Pressure.SEVERE, governor.update(t));
+        assertEquals(Governor.Pressure.SEVERE, governor.update(t + Governor.RECOVERY_MS - 1));
+        assertEquals(Governor.Pressure.MODERATE, governor.update(t + Governor.RECOVERY_MS));
+        // each level needs to last for the recovery time again
+        assertEquals(Governor.Pressure.MODERATE,
+                governor.update(t + 2 * Governor.RECOVERY_MS - 1));
+        assertEquals(Governor.Pressure.LIGHT, governor.update(t + 2 * Governor.RECOVERY_MS));
+        assertEquals(Governor.Pressure.NONE, governor.update(t + 3 * Governor.RECOVERY_MS));
+        assertConcurrency(4, 4, 4);
+        assertEquals(Arrays.asList(Governor.Pressure.SEVERE, Governor.Pressure.MODERATE,
+                Governor.Pressure.LIGHT, Governor.Pressure.NONE), changes);
+    }
+
+    @Test
+    public void oscillatingSignalDoesNotRecover() {
+        heat.pressure = Governor.Pressure.MODERATE;
+        governor.update(0);
+        // a signal at its threshold, which drops below and comes back again
+        for (long t = 1000; t < 10 * Governor.RECOVERY_MS; t += Governor.RECOVERY_MS / 2) {
+            heat.pressure = heat.pressure == Governor.Pressure.MODERATE ?
+                    Governor.Pressure.LIGHT : Governor.Pressure.MODERATE;
+            assertEquals(Governor.Pressure.MODERATE, governor.update(t));
+        }
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void recoveryStopsAtSignalLevel() {
+        heat.pressure = Governor.Pressure.SEVERE;
+        governor.update(0);
+        heat.pressure = Governor.Pressure.MODERATE;
+        governor.update(1000);
+        assertEquals(Governor.Pressure.MODERATE,
+                governor.update(1000 + Governor.RECOVERY_MS));
+        assertEquals(Governor.Pressure.MODERATE,
+                governor.update(1000 + 10 * Governor.RECOVERY_MS));
+    }
+
+    @Test
+    public void scalesBuffers() {
+        assertEquals(65536, governor.scale(65536, 4096));
+        heat.pressure = Governor.Pressure.LIGHT;
+        governor.update(0);
+        assertEquals(65536, governor.scale(65536, 4096));
+        heat.pressure = Governor.Pressure.MODERATE;
+        governor.update(1000);
+        assertEquals(32768, governor.scale(65536, 4096));
+        heat.pressure = Governor.Pressure.SEVERE;
+        governor.update(2000);
+        assertEquals(16384, governor.scale(65536, 4096));
+        assertEquals(4096, governor.scale(8192, 4096));
+        // values below the minimum are not raised
+        assertEquals(1024, governor.scale(1024, 4096));
+    }
+
+    @Test
+    public void capsBandwidthOfBackedOffClasses() {
+        Scheduler.Limits base = new Scheduler.Limits(4, 0);
+        Scheduler.Limits light = Governor.limit(base, Scheduler.Priority.BACKGROUND,
+                Governor.Pressure.LIGHT, PEAK);
+        assertEquals(2, light.concurrency);
+        assertEquals(0, light.bytesPerSecond);
+
+        Scheduler.Limits moderate = Governor.limit(base, Scheduler.Priority.BACKGROUND,
+                Governor.Pressure.MODERATE, PEAK);
+        assertEquals(1, moderate.concurrency);
+        assertEquals(PEAK / 4, moderate.bytesPerSecond);
+
+        // a lower configured bandwidth is kept
+        Scheduler.Limits limited = Governor.limit(new Scheduler.Limits(4, PEAK / 8),
+                Scheduler.Priority.BACKGROUND, Governor.Pressure.MODERATE, PEAK);
+        assertEquals(PEAK / 8, limited.bytesPerSecond);
+
+        // without a known throughput, only the concurrency is reduced
+        assertEquals(0, Governor.limit(base, Scheduler.Priority.BACKGROUND,
+                Governor.Pressure.SEVERE, 0).bytesPerSecond);
+        assertEquals(base, Governor.limit(base, Scheduler.Priority.INTERACTIVE,
+                Governor.Pressure.MODERATE, PEAK));
+    }
+
+    private void assertConcurrency(int interactive, int user, int background) {
+        assertEquals(interactive,
+                scheduler.getLimits(Scheduler.Priority.INTERACTIVE).concurrency);
+        assertEquals(user, scheduler.getLimits(Scheduler.Priority.USER).concurrency);
+        assertEquals(background, scheduler.getLimits(Scheduler.Priority.BACKGROUND).concurrency);
+    }
+}
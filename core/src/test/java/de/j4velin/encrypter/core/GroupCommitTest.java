@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitTest {
+
+    private final static int JOBS = 5;
+
+    private final List<List<String>> commits =
+            Collections.synchronizedList(new ArrayList<List<String>>());
+    private File file;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("commit", ".enc");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[1000]);
+        }
+        // can not be opened for syncing, so a sync attempt fails
+        directory = File.createTempFile("commit", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void perFileSyncsAndCommitsEachEntry() throws Exception {
+        GroupCommit<String> commit = new GroupCommit<>(GroupCommit.Policy.PER_FILE, recorder());
+        commit.commit(file, "a");
+        commit.commit(null, "b");
+        assertEquals("[[a], [b]]", commits.toString());
+        assertEquals(1.0, commit.getAverageGroupSize(), 0);
+        try {
+            commit.commit(directory, "c");
+            fail("Not synced");
+        } catch (IOException e) {
+            // the entry is not committed without its data
+            assertEquals(2, commits.size());
+        }
+    }
+
+    @Test
+    public void noneDoesNotSync() throws Exception {
+        GroupCommit<String> commit = new GroupCommit<>(GroupCommit.Policy.NONE, recorder());
+        commit.commit(directory, "a");
+        assertEquals("[[a]]", commits.toString());
+    }
+
+    @Test
+    public void groupCommitsWaitingJobsTogether() throws Exception {
+        final CountDownLatch leading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final GroupCommit<String> commit = new GroupCommit<>(GroupCommit.Policy.GROUP,
+                new GroupCommit.Committer<String>() {
+                    @Override
+                    public void commit(final List<String> entries) throws IOException {
+                        commits.add(new ArrayList<>(entries));
+                        leading.countDown();
+                        await(release);
+                    }
+                });
+        List<Job> jobs = new ArrayList<>();
+        jobs.add(new Job(commit, file, "first"));
+        assertTrue(leading.await(5, TimeUnit.SECONDS));
+        // these arrive while the first group is committed
+        for (int i = 1; i < JOBS; i++) {
+            jobs.add(new Job(commit, i % 2 == 0 ? file : null, "job" + i));
+        }
+        waitUntilWaiting(jobs.subList(1, JOBS));
+        release.countDown();
+        for (Job job : jobs) {
+            job.join(5000);
+            assertNull(job.error);
+        }
+        assertEquals(2, commits.size());
+        assertEquals(Collections.singletonList("first"), commits.get(0));
+        assertEquals(JOBS - 1, commits.get(1).size());
+        assertEquals(JOBS / 2.0, commit.getAverageGroupSize(), 0);
+    }
+
+    @Test
+    public void groupErrorReachesEveryJob() throws Exception {
+        final CountDownLatch leading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final GroupCommit<String> commit = new GroupCommit<>(GroupCommit.Policy.GROUP,
+                new GroupCommit.Committer<String>() {
+                    @Override
+                    public void commit(final List<String> entries) throws IOException {
+                        commits.add(new ArrayList<>(entries));
+                        leading.countDown();
+                        await(release);
+                    }
+                });
+        Job first = new Job(commit, file, "first");
+        assertTrue(leading.await(5, TimeUnit.SECONDS));
+        List<Job> group = new ArrayList<>();
+        for (int i = 1; i < JOBS; i++) {
+            // one file of the group can not be synced
+            group.add(new Job(commit, i == 1 ? directory : file, "job" + i));
+        }
+        waitUntilWaiting(group);
+        release.countDown();
+        first.join(5000);
+        assertNull(first.error);
+        for (Job job : group) {
+            job.join(5000);
+            assertTrue(job.error instanceof IOException);
+        }
+        // nothing of the failed group is committed
+        assertEquals(1, commits.size());
+    }
+
+    @Test
+    public void committerRuntimeExceptionIsReported() throws Exception {
+        GroupCommit<String> commit = new GroupCommit<>(GroupCommit.Policy.GROUP,
+                new GroupCommit.Committer<String>() {
+                    @Override
+                    public void commit(final List<String> entries) {
+                        throw new IllegalStateException("Database closed");
+                    }
+                });
+        try {
+            commit.commit(file, "a");
+            fail("Error not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // the next job leads a new group instead of waiting forever
+        try {
+            commit.commit(null, "b");
+            fail("Error not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private GroupCommit.Committer<String> recorder() {
+        return new GroupCommit.Committer<String>() {
+            @Override
+            public void commit(final List<String> entries) {
+                commits.add(new ArrayList<>(entries));
+            }
+        };
+    }
+
+    private static void await(final CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IOException("Timeout");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Waits until the jobs wait for the current group to complete, so they form the next group
+     */
+    private static void waitUntilWaiting(final List<Job> jobs) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Job job : jobs) {
+            while (job.getState() != Thread.State.WAITING &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Thread.State.WAITING, job.getState());
+        }
+    }
+
+    private static class Job extends Thread {
+        private final GroupCommit<String> commit;
+        private final File data;
+        private final String entry;
+        private volatile Exception error;
+
+        private Job(final GroupCommit<String> commit, final File data, final String entry) {
+            this.commit = commit;
+            this.data = data;
+            this.entry = entry;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                commit.commit(data, entry);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelinedStreamsTest {
+
+    private final static int BUFFER_SIZE = 1000;
+    private final static int BUFFERS = 3;
+
+    @Test
+    public void inputDeliversAllData() throws Exception {
+        byte[] data = random(100 * BUFFER_SIZE + 7);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (InputStream in = new PipelinedInputStream(new TrickleInputStream(data),
+                BUFFER_SIZE, BUFFERS)) {
+            copy.write(in.read());
+            // reads which do not line up with the buffers
+            byte[] buffer = new byte[777];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                copy.write(buffer, 0, read);
+            }
+            assertEquals(-1, in.read());
+        }
+        assertArrayEquals(data, copy.toByteArray());
+    }
+
+    @Test
+    public void inputReadsAheadOnlyIntoItsBuffers() throws Exception {
+        final AtomicLong produced = new AtomicLong();
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                produced.incrementAndGet();
+                return 0;
+            }
+        };
+        try (InputStream in = new PipelinedInputStream(endless, BUFFER_SIZE, BUFFERS)) {
+            // the reader fills all buffers without being asked to
+            waitFor(produced, BUFFERS * BUFFER_SIZE);
+            Thread.sleep(50);
+            assertEquals(BUFFERS * BUFFER_SIZE, produced.get());
+
+            // consuming a buffer frees it for the next read ahead
+            assertEquals(BUFFER_SIZE, in.read(new byte[BUFFER_SIZE]));
+            assertEquals(0, in.available());
+            in.read();
+            waitFor(produced, (BUFFERS + 1) * BUFFER_SIZE);
+            Thread.sleep(50);
+            assertEquals((BUFFERS + 1) * BUFFER_SIZE, produced.get());
+        }
+    }
+
+    @Test
+    public void inputRethrowsErrorAfterData() throws Exception {
+        byte[] data = random(2 * BUFFER_SIZE + 500);
+        InputStream failing = new TrickleInputStream(data) {
+            @Override
+            public int read(final byte[] b, int offset, int length) throws IOException {
+                int read = super.read(b, offset, length);
+                if (read < 0) {
+                    throw new IOException("Broken");
+                }
+                return read;
+            }
+        };
+        try (InputStream in = new PipelinedInputStream(failing, BUFFER_SIZE, BUFFERS)) {
+            // room for more, so the loop only ends with the error
+            byte[] copy = new byte[data.length + 1];
+            int total = 0;
+            try {
+                int read;
+                while ((read = in.read(copy, total, copy.length - total)) > 0) {
+                    total += read;
+                }
+                fail("Error not rethrown");
+            } catch (IOException e) {
+                assertEquals("Broken", e.getMessage());
+            }
+            // everything read before the error is delivered first
+            assertEquals(data.length, total);
+            assertArrayEquals(data, Arrays.copyOf(copy, total));
+            try {
+                in.read();
+                fail("Error not rethrown");
+            } catch (IOException e) {
+                assertEquals("Broken", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void outputWritesAllData() throws Exception {
+        byte[] data = random(100 * BUFFER_SIZE + 7);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        ClosingStream closing = new ClosingStream(target);
+        try (OutputStream out = new PipelinedOutputStream(closing, BUFFER_SIZE, BUFFERS)) {
+            out.write(data[0]);
+            for (int offset = 1; offset < data.length; offset += 777) {
+                out.write(data, offset, Math.min(777, data.length - offset));
+            }
+        }
+        assertTrue(closing.closed);
+        assertArrayEquals(data, target.toByteArray());
+    }
+
+    @Test
+    public void outputFlushWaitsForWriter() throws Exception {
+        byte[] data = random(10 * BUFFER_SIZE + 7);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream slow = new FilterOutputStream(target) {
+            @Override
+            public void write(final byte[] b, int offset, int length) throws IOException {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                target.write(b, offset, length);
+            }
+        };
+        OutputStream out = new PipelinedOutputStream(slow, BUFFER_SIZE, BUFFERS);
+        out.write(data);
+        out.flush();
+        assertArrayEquals(data, target.toByteArray());
+        out.close();
+    }
+
+    @Test
+    public void outputRethrowsError() throws Exception {
+        ClosingStream failing = new ClosingStream(new ByteArrayOutputStream()) {
+            @Override
+            public void write(final byte[] b, int offset, int length) throws IOException {
+                throw new IOException("Full");
+            }
+        };
+        OutputStream out = new PipelinedOutputStream(failing, BUFFER_SIZE, BUFFERS);
+        out.write(random(BUFFER_SIZE));
+        try {
+            out.flush();
+            fail("Error not rethrown");
+        } catch (IOException e) {
+            assertEquals("Full", e.getMessage());
+        }
+        try {
+            // the writer keeps draining, so the producer does not block on a broken stream
+            for (int i = 0; i < 10 * BUFFERS; i++) {
+                out.write(random(BUFFER_SIZE));
+            }
+            fail("Error not rethrown");
+        } catch (IOException e) {
+            assertEquals("Full", e.getMessage());
+        }
+        try {
+            out.close();
+            fail("Error not rethrown");
+        } catch (IOException e) {
+            assertEquals("Full", e.getMessage());
+        }
+        assertTrue(failing.closed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSingleBuffer() {
+        new PipelinedInputStream(new ByteArrayInputStream(new byte[0]), BUFFER_SIZE, 1);
+    }
+
+    private static void waitFor(final AtomicLong value, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (value.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, value.get());
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Returns at most a few bytes per read, like a slow network or content provider stream
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final InputStream in;
+
+        private TrickleInputStream(final byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(final byte[] b, int offset, int length) throws IOException {
+            return in.read(b, offset, Math.min(length, 123));
+        }
+    }
+
+    private static class ClosingStream extends FilterOutputStream {
+        private volatile boolean closed;
+
+        private ClosingStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, int offset, int length) throws IOException {
+            out.write(b, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
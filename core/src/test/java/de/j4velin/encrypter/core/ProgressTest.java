@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProgressTest {
+
+    @Test
+    public void coalescesNotifications() throws Exception {
+        Progress progress = new Progress(100000);
+        final AtomicInteger notifications = new AtomicInteger();
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                notifications.incrementAndGet();
+            }
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            progress.advance(1);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        // independent of the number of chunks, at most one notification per interval
+        assertTrue(notifications.get() <= elapsed / Progress.UPDATE_INTERVAL_MS + 1);
+        assertEquals(100000, progress.getBytes());
+
+        int before = notifications.get();
+        progress.finish();
+        assertEquals(before + 1, notifications.get());
+    }
+
+    @Test
+    public void notifiesAfterInterval() throws Exception {
+        Progress progress = new Progress(0);
+        final List<Long> reported = new ArrayList<>();
+        progress.addListener(new Progress.Listener() {
+            @Override
+            public void onProgress(final Progress p) {
+                reported.add(p.getBytes());
+            }
+        });
+        progress.advance(10);
+        Thread.sleep(Progress.UPDATE_INTERVAL_MS + 20);
+        progress.advance(10);
+        assertEquals(1, reported.size());
+        assertEquals(20, (long) reported.get(0));
+        assertTrue(progress.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void cancelStopsAtNextChunk() throws Exception {
+        Progress progress = new Progress(100);
+        progress.advance(10);
+        progress.cancel();
+        assertTrue(progress.isCancelled());
+        try {
+            progress.advance(10);
+            fail("Cancelled progress advanced");
+        } catch (Progress.CancelledException e) {
+            assertEquals(10, progress.getBytes());
+        }
+    }
+
+    @Test
+    public void cancelWhileGateHolds() throws Exception {
+        final Progress progress = new Progress(100);
+        final List<Long> passed = new ArrayList<>();
+        progress.setGate(new Progress.Gate() {
+            @Override
+            public void pass(final Progress p, long processed) {
+                passed.add(processed);
+                if (passed.size() == 2) {
+                    // as if the job has been cancelled while it was held back
+                    p.cancel();
+                }
+            }
+        });
+        progress.advance(10);
+        try {
+            progress.advance(20);
+            fail("Cancelled progress advanced");
+        } catch (Progress.CancelledException e) {
+            // the bytes of the held back chunk are not reported
+            assertEquals(10, progress.getBytes());
+        }
+        assertEquals(2, passed.size());
+        assertEquals(10, (long) passed.get(0));
+        assertEquals(20, (long) passed.get(1));
+    }
+
+    @Test
+    public void removedGateIsNotPassed() throws Exception {
+        Progress progress = new Progress(100);
+        final AtomicInteger passes = new AtomicInteger();
+        progress.setGate(new Progress.Gate() {
+            @Override
+            public void pass(final Progress p, long processed) {
+                passes.incrementAndGet();
+            }
+        });
+        progress.advance(10);
+        progress.setGate(null);
+        progress.advance(10);
+        assertEquals(1, passes.get());
+        assertEquals(20, progress.getBytes());
+    }
+
+    @Test
+    public void estimatesRemainingTime() throws Exception {
+        Progress unknown = new Progress(0);
+        unknown.advance(100);
+        unknown.finish();
+        assertEquals(-1, unknown.getSecondsRemaining());
+
+        Progress progress = new Progress(1000);
+        assertEquals(-1, progress.getSecondsRemaining());
+        progress.advance(500);
+        Thread.sleep(10);
+        progress.finish();
+        assertTrue(progress.getBytesPerSecond() > 0);
+        assertTrue(progress.getSecondsRemaining() >= 0);
+        assertEquals(1000, progress.getTotal());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SchedulerTest {
+
+    private final static long TIMEOUT_S = 5;
+
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp() {
+        Map<Scheduler.Priority, Scheduler.Limits> limits =
+                new EnumMap<>(Scheduler.Priority.class);
+        limits.put(Scheduler.Priority.INTERACTIVE, new Scheduler.Limits(2, 0));
+        limits.put(Scheduler.Priority.USER, new Scheduler.Limits(1, 0));
+        limits.put(Scheduler.Priority.BACKGROUND, new Scheduler.Limits(1, 0));
+        scheduler = new Scheduler(limits);
+    }
+
+    @Test
+    public void higherClassDoesNotWaitForLowerClass() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.getExecutor(Scheduler.Priority.BACKGROUND).execute(blocking(release));
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.getExecutor(Scheduler.Priority.INTERACTIVE).execute(countingDown(done));
+        assertTrue(done.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getRunning(Scheduler.Priority.BACKGROUND));
+        release.countDown();
+    }
+
+    @Test
+    public void jobsOfAClassRunInOrderWithinTheLimit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        scheduler.getExecutor(Scheduler.Priority.USER).execute(blocking(release));
+        for (int i = 0; i < 3; i++) {
+            final int job = i;
+            scheduler.getExecutor(Scheduler.Priority.USER).execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(job);
+                    done.countDown();
+                }
+            });
+        }
+        assertEquals(1, scheduler.getRunning(Scheduler.Priority.USER));
+        assertTrue(order.isEmpty());
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2), order);
+    }
+
+    @Test
+    public void raisedLimitStartsQueuedJobs() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.getExecutor(Scheduler.Priority.BACKGROUND).execute(blocking(release));
+        scheduler.getExecutor(Scheduler.Priority.BACKGROUND).execute(countingDown(started));
+        assertFalse(started.await(100, TimeUnit.MILLISECONDS));
+        scheduler.setLimits(Scheduler.Priority.BACKGROUND, new Scheduler.Limits(2, 0));
+        assertTrue(started.await(TIMEOUT_S, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void lowerClassYieldsToHigherClass() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch interactiveDone = new CountDownLatch(1);
+        final CountDownLatch resumed = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final Progress progress = new Progress(0);
+        scheduler.attach(progress, Scheduler.Priority.BACKGROUND);
+        scheduler.getExecutor(Scheduler.Priority.BACKGROUND).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        progress.advance(1);
+                        events.add("chunk");
+                        running.countDown();
+                        if (interactiveDone.getCount() == 0) {
+                            resumed.countDown();
+                        }
+                        Thread.sleep(1);
+                    }
+                } catch (Progress.CancelledException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    stopped.countDown();
+                }
+            }
+        });
+        assertTrue(running.await(TIMEOUT_S, TimeUnit.SECONDS));
+        scheduler.getExecutor(Scheduler.Priority.INTERACTIVE).execute(new Runnable() {
+            @Override
+            public void run() {
+                events.add("start");
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("end");
+                interactiveDone.countDown();
+            }
+        });
+        assertTrue(interactiveDone.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue(resumed.await(TIMEOUT_S, TimeUnit.SECONDS));
+        stop.set(true);
+        assertTrue(stopped.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        List<String> all;
+        synchronized (events) {
+            all = new ArrayList<>(events);
+        }
+        // a chunk which already passed the gate when the interactive job started may finish
+        int during = all.lastIndexOf("end") - all.indexOf("start") - 1;
+        assertTrue("chunks while the interactive job ran: " + during, during <= 1);
+    }
+
+    @Test
+    public void bandwidthLimitPacesChunks() throws Exception {
+        scheduler.setLimits(Scheduler.Priority.BACKGROUND, new Scheduler.Limits(1, 100 * 1024));
+        Progress progress = new Progress(0);
+        scheduler.attach(progress, Scheduler.Priority.BACKGROUND);
+        long start = System.nanoTime();
+        // the first chunk passes right away, the next ones wait for their share
+        for (int i = 0; i < 3; i++) {
+            progress.advance(25 * 1024);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsed + " ms", elapsed >= 450);
+        assertEquals(75 * 1024, scheduler.getProcessed());
+    }
+
+    private static Runnable blocking(final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(TIMEOUT_S, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable countingDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputSignalTest {
+
+    private final static int SAMPLES = 6;
+    private final static long FAST = 1000000;
+
+    private Scheduler scheduler;
+    private ThroughputSignal signal;
+    private Progress progress;
+    private CountDownLatch release;
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<Scheduler.Priority, Scheduler.Limits> limits =
+                new EnumMap<>(Scheduler.Priority.class);
+        for (Scheduler.Priority p : Scheduler.Priority.values()) {
+            limits.put(p, new Scheduler.Limits(2, 0));
+        }
+        scheduler = new Scheduler(limits);
+        signal = new ThroughputSignal(scheduler);
+        progress = new Progress(0);
+        scheduler.attach(progress, Scheduler.Priority.BACKGROUND);
+        release = new CountDownLatch(1);
+        run(Scheduler.Priority.BACKGROUND);
+        assertEquals(Governor.Pressure.NONE, signal.sample(now));
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void sustainedSlowdownIsThrottling() throws Exception {
+        assertEquals(Governor.Pressure.NONE, step(FAST));
+        assertEquals(FAST, signal.getPeak());
+        for (int i = 1; i < SAMPLES; i++) {
+            assertEquals(Governor.Pressure.NONE, step(FAST / 2));
+        }
+        assertEquals(Governor.Pressure.LIGHT, step(FAST / 2));
+        // back at full speed
+        assertEquals(Governor.Pressure.NONE, step(FAST));
+    }
+
+    @Test
+    public void shortSlowdownIsIgnored() throws Exception {
+        step(FAST);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < SAMPLES; i++) {
+                assertEquals(Governor.Pressure.NONE, step(FAST / 2));
+            }
+            assertEquals(Governor.Pressure.NONE, step(FAST));
+        }
+    }
+
+    @Test
+    public void waitingForInputIsNotThrottling() throws Exception {
+        step(FAST);
+        for (int i = 0; i < 2 * SAMPLES; i++) {
+            assertEquals(Governor.Pressure.NONE, step(0));
+        }
+    }
+
+    @Test
+    public void mixedClassesAreNotCompared() throws Exception {
+        step(FAST);
+        // a job paused for a higher class looks throttled, but is not
+        CountDownLatch higher = new CountDownLatch(1);
+        CountDownLatch started = run(Scheduler.Priority.INTERACTIVE, higher);
+        assertTrue(started.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        try {
+            for (int i = 0; i < 2 * SAMPLES; i++) {
+                now += 1000;
+                scheduler.getProcessed();
+                assertEquals(Governor.Pressure.NONE, signal.sample(now));
+            }
+        } finally {
+            higher.countDown();
+        }
+    }
+
+    @Test
+    public void peakDecays() throws Exception {
+        step(FAST);
+        now += 60 * 60 * 1000;
+        signal.sample(now);
+        assertTrue(signal.getPeak() < FAST / 8);
+    }
+
+    /**
+     * Lets a second pass with the given throughput of the running job and samples the signal
+     */
+    private Governor.Pressure step(long bytesPerSecond) throws Exception {
+        if (bytesPerSecond > 0) {
+            progress.advance(bytesPerSecond);
+        }
+        now += 1000;
+        return signal.sample(now);
+    }
+
+    private void run(final Scheduler.Priority priority) throws Exception {
+        assertTrue(run(priority, release).await(5, java.util.concurrent.TimeUnit.SECONDS));
+    }
+
+    /**
+     * Starts a job which runs until the latch is released
+     *
+     * @return a latch released once the job runs
+     */
+    private CountDownLatch run(final Scheduler.Priority priority, final CountDownLatch latch) {
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.getExecutor(priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return started;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VaultArchiveTest {
+
+    private final static String[] NAMES = {"a.txt", "empty", "b.jpg"};
+    private final static String[] MIMES = {"text/plain", "", "image/jpeg"};
+    private final static int[] LENGTHS = {1000, 0, 3 * 1024 * 1024 + 17};
+
+    private File archive;
+    private File blobFile;
+    private byte[][] blobs;
+
+    @Before
+    public void setUp() throws Exception {
+        archive = File.createTempFile("vault", ".archive");
+        blobFile = File.createTempFile("vault", ".enc");
+        Random random = new Random(7);
+        blobs = new byte[LENGTHS.length][];
+        for (int i = 0; i < LENGTHS.length; i++) {
+            blobs[i] = new byte[LENGTHS[i]];
+            random.nextBytes(blobs[i]);
+        }
+        // the last blob is copied from a file, the others from memory
+        try (FileOutputStream out = new FileOutputStream(blobFile)) {
+            out.write(blobs[2]);
+        }
+        Progress progress = new Progress(0);
+        try (FileOutputStream out = new FileOutputStream(archive);
+             FileChannel blob = new FileInputStream(blobFile).getChannel()) {
+            VaultArchive.Writer writer = new VaultArchive.Writer(out.getChannel());
+            writer.add(entry(0), blobs[0], progress);
+            writer.add(entry(1), blobs[1], progress);
+            writer.add(entry(2), blob, progress);
+            writer.finish();
+        }
+        assertEquals(LENGTHS[0] + LENGTHS[1] + LENGTHS[2], progress.getBytes());
+    }
+
+    @After
+    public void tearDown() {
+        archive.delete();
+        blobFile.delete();
+    }
+
+    @Test
+    public void readsSequentially() throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(archive))) {
+            VaultArchive.Reader reader = new VaultArchive.Reader(in);
+            for (int i = 0; i < NAMES.length; i++) {
+                VaultArchive.Entry entry = reader.next();
+                assertEntry(i, entry);
+                assertArrayEquals(blobs[i], readAll(reader.blob()));
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void skipsUnreadBlobs() throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(archive))) {
+            VaultArchive.Reader reader = new VaultArchive.Reader(in);
+            reader.next();
+            reader.blob().read(new byte[10]);
+            reader.next();
+            assertEntry(2, reader.next());
+            assertArrayEquals(blobs[2], readAll(reader.blob()));
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void readsIndex() throws Exception {
+        try (FileChannel channel = new RandomAccessFile(archive, "r").getChannel()) {
+            List<VaultArchive.Entry> entries = VaultArchive.readIndex(channel);
+            assertEquals(NAMES.length, entries.size());
+            // in reverse order, to make sure each blob is located by its offset
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                assertEntry(i, entries.get(i));
+                assertArrayEquals(blobs[i],
+                        readAll(VaultArchive.openBlob(channel, entries.get(i))));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        try (InputStream in = new FileInputStream(blobFile)) {
+            new VaultArchive.Reader(in);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFilesWithoutIndex() throws Exception {
+        try (FileChannel channel = new RandomAccessFile(blobFile, "r").getChannel()) {
+            VaultArchive.readIndex(channel);
+        }
+    }
+
+    private static VaultArchive.Entry entry(int i) {
+        return new VaultArchive.Entry(NAMES[i], MIMES[i], LENGTHS[i] / 2, LENGTHS[i]);
+    }
+
+    private static void assertEntry(int i, final VaultArchive.Entry entry) {
+        assertEquals(NAMES[i], entry.name);
+        assertEquals(MIMES[i], entry.mime);
+        assertEquals(LENGTHS[i] / 2, entry.size);
+        assertEquals(LENGTHS[i], entry.blobLength);
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}